@@ -0,0 +1,83 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.FramePool;
+import jp.fjworks.ble2mqtt.bench.Corpus;
+
+/**
+ * 受信フレーム → 解析 → SpscRing → MqttPublisher → ローカルのスタブブローカまで通しで測る。
+ * 1 op = 1フレームを受信スレッド側で処理すること。キューは BLOCK なので、送信が追いつかなければ
+ * その分 op/s が下がる（＝通しのスループット）。
+ * MqttPublisher の設定は本番と同じく環境変数（MQTT_ASYNC, MQTT_BATCH_MAX, MQTT_PAYLOAD など）で変える。
+ * ワーカ数は -p workers=1,2,4 で変えられる。
+ * Main.MqttCfg がパッケージプライベートなので、このクラスだけ本体と同じパッケージに置く。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class EndToEndBench {
+    @Param("1")
+    public int workers;
+
+    private StubBroker broker;
+    private ShardedRing<Adv> q;
+    private MqttPublisher publisher;
+    private FramePool pool;
+    private byte[][] corpus;
+    private int i;
+    private AdvParser.OnParsedCallback toQueue;
+
+    @Setup
+    public void setup() throws Exception {
+        broker = new StubBroker();
+        q = new ShardedRing<>(workers, 1024, SpscRing.OverflowPolicy.BLOCK, Adv::getAddress, Adv::release);
+        toQueue = adv -> {
+            try { q.offer(adv); } catch (InterruptedException e) { adv.release(); Thread.currentThread().interrupt(); }
+        };
+        publisher = new MqttPublisher(new Main.MqttCfg(broker.uri(), "bench/adv", null, null, "bench"), q);
+        publisher.start();
+        List<byte[]> frames = Corpus.load();
+        corpus = frames.toArray(new byte[0][]);
+        pool = new FramePool(512, 2048, 2048, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisher.close();
+        broker.close();
+        System.out.printf("%n[BENCH] broker received=%d acked=%d frameMisses=%d%n",
+            broker.getPublished(), publisher.getAcked(), pool.getMisses());
+    }
+
+    @Benchmark
+    public void frameToBroker() {
+        byte[] b = corpus[i];
+        i = (i + 1 == corpus.length) ? 0 : i + 1;
+        Frame f = pool.acquire();
+        f.buffer().put(0, b);
+        AdvParsers.getInstance().parse(f, Corpus.MON_HDR_SIZE, Corpus.eventLength(b), 0, toQueue);
+        f.release();
+    }
+}
@@ -0,0 +1,100 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ベンチマーク用の最小限の MQTT 3.1.1 ブローカ。受け取るだけで配送はしない。
+ * CONNECT / PUBLISH (QoS 0〜2) / PINGREQ / DISCONNECT に応答する。
+ */
+final class StubBroker implements AutoCloseable {
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final LongAdder published = new LongAdder();
+    private volatile boolean running = true;
+
+    StubBroker() throws IOException {
+        server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptLoop, "stub-broker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String uri() {
+        return "tcp://127.0.0.1:" + server.getLocalPort();
+    }
+    long getPublished() {
+        return published.sum();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(s), "stub-broker-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s; DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(s.getInputStream()));
+             OutputStream out = s.getOutputStream()) {
+            byte[] body = new byte[1024];
+            while (running) {
+                int h = in.read();
+                if (h < 0) return;
+                int len = 0;
+                for (int shift = 0; ; shift += 7) {
+                    int b = in.readUnsignedByte();
+                    len |= (b & 0x7f) << shift;
+                    if ((b & 0x80) == 0) break;
+                }
+                if (body.length < len) body = new byte[len];
+                in.readFully(body, 0, len);
+                switch (h >> 4) {
+                    case 1: // CONNECT
+                        out.write(new byte[] { 0x20, 0x02, 0x00, 0x00 });
+                        break;
+                    case 3: { // PUBLISH
+                        published.increment();
+                        int qos = (h >> 1) & 3;
+                        if (qos == 0) break;
+                        int topicLen = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                        byte id0 = body[2 + topicLen], id1 = body[3 + topicLen];
+                        out.write(new byte[] { (byte)(qos == 1 ? 0x40 : 0x50), 0x02, id0, id1 });
+                        break;
+                    }
+                    case 6: // PUBREL
+                        out.write(new byte[] { 0x70, 0x02, body[0], body[1] });
+                        break;
+                    case 12: // PINGREQ
+                        out.write(new byte[] { (byte)0xd0, 0x00 });
+                        break;
+                    case 14: // DISCONNECT
+                        return;
+                    default:
+                        break;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 切断
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+    }
+}
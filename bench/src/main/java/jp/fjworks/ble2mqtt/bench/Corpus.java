@@ -0,0 +1,160 @@
+package jp.fjworks.ble2mqtt.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jp.fjworks.ble2mqtt.adv.AdCursor;
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.AdvType;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.ParseStatus;
+
+/**
+ * ベンチマーク用の HCI monitor フレーム（corpus/frames.hex）と、壊れたフレーム（corpus/malformed.hex）。
+ * 各フレームは hci_mon_hdr(6) + HCI イベント。HciMonitor.onFrame と同じく offset 6 から解析する。
+ */
+public final class Corpus {
+    public static final int MON_HDR_SIZE = 6;
+    public static final String RESOURCE = "/corpus/frames.hex";
+    public static final String MALFORMED = "/corpus/malformed.hex";
+
+    private Corpus() {}
+
+    /** 壊れたフレームと、解析したときに返るはずの結果 */
+    public static final class Malformed {
+        public final ParseStatus expected;
+        public final byte[] frame;
+        Malformed(ParseStatus expected, byte[] frame) {
+            this.expected = expected;
+            this.frame = frame;
+        }
+    }
+
+    /** 全フレーム */
+    public static List<byte[]> load() {
+        List<byte[]> frames = new ArrayList<>();
+        for (String line: lines(RESOURCE)) frames.add(hex(line));
+        return frames;
+    }
+
+    /** 壊れたフレーム（壊れていないが渡すレポートがないものも含む） */
+    public static List<Malformed> loadMalformed() {
+        List<Malformed> out = new ArrayList<>();
+        for (String line: lines(MALFORMED)) {
+            String[] f = line.split("\\s+");
+            out.add(new Malformed(ParseStatus.valueOf(f[0].toUpperCase()), hex(f[1])));
+        }
+        return out;
+    }
+
+    /** コメントと空行を除いた行 */
+    private static List<String> lines(String resource) {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = Corpus.class.getResourceAsStream(resource);
+             BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash >= 0) line = line.substring(0, hash);
+                line = line.trim();
+                if (!line.isEmpty()) lines.add(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) b[i] = (byte)Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        return b;
+    }
+
+    /**
+     * frame を1〜4か所ランダムに壊したもの（バイトの書き換え、長さフィールドを 0 / 0xff / ±1、切り詰め、ゴミの追加）。
+     * hci_mon_hdr の長さはフレームに合わせるので、HciMonitor.onFrame の検査は通る（壊れているのはイベントの中身）
+     */
+    public static byte[] mutate(byte[] frame, Random rnd) {
+        byte[] b = frame.clone();
+        for (int k = 1 + rnd.nextInt(4); k > 0; k--) {
+            int n = b.length;
+            switch (rnd.nextInt(6)) {
+                case 0 -> { if (n > MON_HDR_SIZE) b[MON_HDR_SIZE + rnd.nextInt(n - MON_HDR_SIZE)] = (byte)rnd.nextInt(256); }
+                case 1 -> { if (n > MON_HDR_SIZE + 3) b[MON_HDR_SIZE + 3] = (byte)(rnd.nextBoolean() ? 0 : 0xff); }   // レポート数
+                case 2 -> { if (n > MON_HDR_SIZE + 1) b[MON_HDR_SIZE + 1] += rnd.nextBoolean() ? 1 : -1; }         // パラメータ長
+                case 3 -> { if (n > MON_HDR_SIZE) b[MON_HDR_SIZE + rnd.nextInt(n - MON_HDR_SIZE)] = (byte)(rnd.nextBoolean() ? 0 : 0xff); }
+                case 4 -> b = Arrays.copyOf(b, MON_HDR_SIZE + rnd.nextInt(Math.max(1, n - MON_HDR_SIZE)));
+                default -> {
+                    int extra = 1 + rnd.nextInt(32);
+                    b = Arrays.copyOf(b, Math.min(MON_HDR_SIZE + 257, n + extra));
+                    for (int i = n; i < b.length; i++) b[i] = (byte)rnd.nextInt(256);
+                }
+            }
+        }
+        int len = b.length - MON_HDR_SIZE;
+        b[4] = (byte)len;
+        b[5] = (byte)(len >>> 8);
+        return b;
+    }
+
+    /** hci_mon_hdr の後ろのイベントの長さ（AdvParsers.parse の len） */
+    public static int eventLength(byte[] frame) {
+        return frame.length - MON_HDR_SIZE;
+    }
+
+    /** LE Meta のサブイベントで絞った（"all" / "legacy" / "extended" / "periodic"） */
+    public static List<byte[]> load(String kind) {
+        if ("all".equals(kind)) return load();
+        AdvType type = AdvType.valueOf(kind.toUpperCase());
+        List<byte[]> out = new ArrayList<>();
+        for (byte[] f: load()) {
+            if (typeOf(f) == type) out.add(f);
+        }
+        return out;
+    }
+
+    static AdvType typeOf(byte[] frame) {
+        AdvType[] t = new AdvType[1];
+        Frame f = Frame.wrap(ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN));
+        AdvParsers.getInstance().parse(f, MON_HDR_SIZE, eventLength(frame), 0, (Adv adv) -> {
+            t[0] = adv.getType();
+            adv.release();
+        });
+        f.release();
+        return t[0];
+    }
+
+    /** フレーム内の広告データ（AD structures）部分を取り出す（AdStructure.parse 用） */
+    public static List<byte[]> adData(List<byte[]> frames) {
+        List<byte[]> out = new ArrayList<>();
+        for (byte[] frame: frames) {
+            Frame f = Frame.wrap(ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN));
+            AdvParsers.getInstance().parse(f, MON_HDR_SIZE, eventLength(frame), 0, (Adv adv) -> {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                AdCursor c = adv.adCursor();
+                while (c.next()) {
+                    raw.write(c.valueLength() + 1);
+                    raw.write(c.type());
+                    for (int i = 0; i < c.valueLength(); i++) raw.write(c.u8(i));
+                }
+                out.add(raw.toByteArray());
+                adv.release();
+            });
+            f.release();
+        }
+        return out;
+    }
+}
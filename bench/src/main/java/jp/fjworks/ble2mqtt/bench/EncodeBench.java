@@ -0,0 +1,101 @@
+package jp.fjworks.ble2mqtt.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.fjworks.ble2mqtt.adv.AdStructure;
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.CborEncoder;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.JsonEncoder;
+
+/**
+ * 書き出し段: 解析済みの Adv を JSON / CBOR にする。
+ * 1 op = コーパスの1レポート（順に回す）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBench {
+    @Param({ "all", "legacy", "extended", "periodic" })
+    public String kind;
+
+    private final List<Frame> frames = new ArrayList<>();
+    private Adv[] advs;
+    private byte[][] adData;
+    private int i;
+    private final JsonEncoder json = new JsonEncoder();
+    private final CborEncoder cbor = new CborEncoder();
+
+    @Setup
+    public void setup() {
+        List<Adv> list = new ArrayList<>();
+        List<byte[]> corpus = Corpus.load(kind);
+        for (byte[] b: corpus) {
+            Frame f = Frame.wrap(ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN));
+            AdvParsers.getInstance().parse(f, Corpus.MON_HDR_SIZE, Corpus.eventLength(b), 0, list::add);
+            frames.add(f);
+        }
+        advs = list.toArray(new Adv[0]);
+        adData = Corpus.adData(corpus).toArray(new byte[0][]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Adv a: advs) a.release();
+        for (Frame f: frames) f.release();
+    }
+
+    private int next(int n) {
+        int k = i;
+        i = (k + 1 >= n) ? 0 : k + 1;
+        return k;
+    }
+
+    /** 送信と同じ経路（再利用バッファに書いて byte[] を取り出す） */
+    @Benchmark
+    public byte[] json() {
+        Adv adv = advs[next(advs.length)];
+        adv.writeJson(json.reset());
+        return json.toByteArray();
+    }
+
+    /** String を作る経路（Adv.toJsonString） */
+    @Benchmark
+    public String toJsonString() {
+        return advs[next(advs.length)].toJsonString();
+    }
+
+    /** オブジェクト版 AdStructure を作ってから JSON にする（以前の経路） */
+    @Benchmark
+    public String adStructureToJsonString() {
+        return AdStructure.toJsonString(AdStructure.parse(adData[next(adData.length)]));
+    }
+
+    @Benchmark
+    public byte[] cbor() {
+        Adv adv = advs[next(advs.length)];
+        adv.writeCbor(cbor.reset());
+        return cbor.toByteArray();
+    }
+}
@@ -0,0 +1,95 @@
+package jp.fjworks.ble2mqtt.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.FramePool;
+import jp.fjworks.ble2mqtt.adv.ParseStatus;
+
+/**
+ * 正しいフレームに壊れたフレームを badPercent % 混ぜて解析する（AdvParsers.parse）。
+ * 壊れたものは malformed.hex のエラーのものと、frames.hex を乱数で壊してエラーになったもの。
+ * 壊れたフレームが混ざっても 1 op（1フレーム）あたりの時間が延びないことを見る。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MalformedParseBench {
+    private static final int FRAMES = 1024;
+
+    @Param({ "0", "10", "50", "100" })
+    public int badPercent;
+
+    private FramePool pool;
+    private Frame[] frames;
+    private int[] lens;
+    private int i;
+    private Blackhole bh;
+    private final AdvParser.OnParsedCallback consume = this::consume;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        this.bh = bh;
+        List<byte[]> good = Corpus.load();
+        List<byte[]> bad = new ArrayList<>();
+        for (Corpus.Malformed m: Corpus.loadMalformed()) {
+            if (m.expected.isError()) bad.add(m.frame);
+        }
+        Random rnd = new Random(1);
+        while (bad.size() < 256) {
+            byte[] b = Corpus.mutate(good.get(rnd.nextInt(good.size())), rnd);
+            if (AdvParsers.getInstance().parse(ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN),
+                    Corpus.MON_HDR_SIZE, Adv::release).isError()) bad.add(b);
+        }
+        List<byte[]> mix = new ArrayList<>(FRAMES);
+        for (int k = 0; k < FRAMES; k++) {
+            mix.add(k * 100 < badPercent * FRAMES ? bad.get(k % bad.size()) : good.get(k % good.size()));
+        }
+        Collections.shuffle(mix, rnd);
+        pool = new FramePool(512, FRAMES + 64, FRAMES + 64, null);
+        frames = new Frame[FRAMES];
+        lens = new int[FRAMES];
+        for (int k = 0; k < FRAMES; k++) {
+            frames[k] = pool.acquire();
+            frames[k].buffer().put(0, mix.get(k));
+            lens[k] = Corpus.eventLength(mix.get(k));
+        }
+    }
+
+    private void consume(Adv adv) {
+        bh.consume(adv.getAddress());
+        adv.release();
+    }
+
+    @Benchmark
+    public ParseStatus parse() {
+        int k = i;
+        i = (k + 1 >= FRAMES) ? 0 : k + 1;
+        return AdvParsers.getInstance().parse(frames[k], Corpus.MON_HDR_SIZE, lens[k], 0, consume);
+    }
+}
@@ -0,0 +1,119 @@
+package jp.fjworks.ble2mqtt.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.fjworks.ble2mqtt.adv.AdCursor;
+import jp.fjworks.ble2mqtt.adv.AdStructure;
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.FramePool;
+
+/**
+ * 解析段: フレーム → AdvView（AdvParsers.parse）と、AD structure のデコード。
+ * 1 op = コーパスの1フレーム（順に回す）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBench {
+    @Param({ "all", "legacy", "extended", "periodic" })
+    public String kind;
+
+    private FramePool pool;
+    private Frame[] frames;
+    private int[] lens;
+    private byte[][] adData;
+    private ByteBuffer[] adBufs;
+    private int i;
+    private Blackhole bh;
+    private final AdCursor cursor = new AdCursor();
+    private final AdvParser.OnParsedCallback consume = this::consume;
+    private final AdvParser.OnParsedCallback walk = this::walk;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        this.bh = bh;
+        List<byte[]> corpus = Corpus.load(kind);
+        // 受信スレッドと同じく、プールのフレームを解析する（AdvView もプールから出る）
+        pool = new FramePool(512, corpus.size() + 64, corpus.size() + 64, null);
+        frames = new Frame[corpus.size()];
+        lens = new int[frames.length];
+        for (int k = 0; k < frames.length; k++) {
+            frames[k] = pool.acquire();
+            frames[k].buffer().put(0, corpus.get(k));
+            lens[k] = Corpus.eventLength(corpus.get(k));
+        }
+        adData = Corpus.adData(corpus).toArray(new byte[0][]);
+        adBufs = new ByteBuffer[adData.length];
+        for (int k = 0; k < adData.length; k++) adBufs[k] = ByteBuffer.wrap(adData[k]).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void consume(Adv adv) {
+        bh.consume(adv.getAddress());
+        adv.release();
+    }
+
+    private void walk(Adv adv) {
+        AdCursor c = adv.adCursor();
+        while (c.next()) bh.consume(c.type());
+        adv.release();
+    }
+
+    private int next(int n) {
+        int k = i;
+        i = (k + 1 >= n) ? 0 : k + 1;
+        return k;
+    }
+
+    /** AdvParsers.parse だけ（AdvView を作ってすぐ返す） */
+    @Benchmark
+    public void parseView() {
+        int k = next(frames.length);
+        AdvParsers.getInstance().parse(frames[k], Corpus.MON_HDR_SIZE, lens[k], 0, consume);
+    }
+
+    /** 解析して AD structure をカーソルでたどる（コピーなし） */
+    @Benchmark
+    public void parseAndWalk() {
+        int k = next(frames.length);
+        AdvParsers.getInstance().parse(frames[k], Corpus.MON_HDR_SIZE, lens[k], 0, walk);
+    }
+
+    /** 従来のオブジェクト版 AdStructure.parse（要素ごとにコピーとオブジェクトを作る） */
+    @Benchmark
+    public Collection<AdStructure> adStructureParse() {
+        return AdStructure.parse(adData[next(adData.length)]);
+    }
+
+    /** AdStructure.parse と同じ情報をカーソルで読む */
+    @Benchmark
+    public int adCursorWalk() {
+        ByteBuffer d = adBufs[next(adBufs.length)];
+        cursor.reset(d, 0, d.capacity());
+        int h = 0;
+        while (cursor.next()) h += cursor.type() + cursor.valueLength();
+        return h;
+    }
+}
@@ -0,0 +1,59 @@
+package jp.fjworks.ble2mqtt.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.fjworks.ble2mqtt.SpscRing;
+
+/**
+ * 受け渡し段: 受信スレッド → 送信スレッドの SpscRing。
+ * offer と poll を別スレッドで同時に回す。BLOCK だと計測終了時に producer が止まれないので、
+ * あふれたら捨てる方針で測る（既定の drop_oldest を含む）。
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBench {
+    @Param({ "drop_oldest", "drop_newest" })
+    public String policy;
+    @Param({ "1024" })
+    public int capacity;
+
+    private SpscRing<Object> ring;
+    private final Object item = new Object();
+
+    @Setup
+    public void setup() {
+        ring = new SpscRing<>(capacity, SpscRing.OverflowPolicy.parse(policy));
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer() throws InterruptedException {
+        return ring.offer(item);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Object poll() {
+        return ring.poll();
+    }
+}
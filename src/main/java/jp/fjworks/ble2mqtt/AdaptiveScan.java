@@ -0,0 +1,191 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+import jp.fjworks.ble2mqtt.adv.AdvFilter;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+
+/**
+ * 受信の負荷を見てスキャンの絞り込み（{@link ScanLevel}）を上げ下げする。
+ * intervalMillis ごとに次を見て、1つでも当てはまれば「過負荷」とする。
+ * <ul>
+ *   <li>送信待ちのキューが high（割合）以上たまっている</li>
+ *   <li>前回から捨てた広告（キューのあふれ・カーネルの取りこぼし）が増えた</li>
+ *   <li>受信レートが maxRate（件/秒、0 なら見ない）を超えた</li>
+ * </ul>
+ * 過負荷が sustain 回続いたら1段上げる。キューが low 以下・捨てたものなし・レートが maxRate の半分以下、が
+ * relax 回続いたら1段下げる（上げるより下げるほうを遅くして、行ったり来たりしないようにする）。
+ * 変えたときはログに出し、段階と回数は統計で見られる。
+ * <p>
+ * 段階の RSSI の下限・UUID・Pattern は {@link AdvParsers#setLoadFilter} で受信フレームのバイト列のまま判定し、
+ * 外れたレポートは AdvView を作る前に捨てる（bluez の SetDiscoveryFilter は D-Bus に出る結果にしか効かず、
+ * HCI モニタに届く量は減らないため）。コントローラで絞れるもの（hci の重複除去・ウィンドウ）は
+ * {@link ScanControl#setLevel} でも反映する。
+ */
+public final class AdaptiveScan implements Runnable, AutoCloseable {
+    private final ScanControl ctrl;
+    private final LongSupplier ingest;   // 受信した数（単調増加）
+    private final LongSupplier dropped;  // 捨てた数（単調増加）
+    private final ShardedRing<?> q;
+    private final long intervalMillis;
+    private final int sustain, relax;
+    private final double high, low;
+    private final long maxRate;
+    private final ScanLevel[] levels;    // [0] は ScanLevel.NONE
+    private final AdvFilter[] filters;   // 段階ごとのプロセス内フィルタ（[0] は null）
+    private final Thread th = new Thread(this, "scan-adapt");
+
+    private boolean ctrlAdjusts = true; // ScanControl でも変えられるか
+    private volatile int level;
+    private volatile long adjustments;
+    private volatile long lastRate;
+
+    /**
+     * @param rssiSteps 1段目からの RSSI の下限（段階の数もこれで決まる）
+     * @param uuids     最後の段階で使う 16bit サービスUUID（空なら使わない）
+     * @param pattern   最後の段階で使う Pattern（null なら使わない）
+     * @param ingest    受信した数。段階のフィルタを通ったものを数えるもの
+     */
+    public AdaptiveScan(ScanControl ctrl, LongSupplier ingest, LongSupplier dropped, ShardedRing<?> q,
+            long intervalMillis, int sustain, int relax, double high, double low, long maxRate,
+            short[] rssiSteps, List<String> uuids, String pattern) {
+        this.ctrl = ctrl;
+        this.ingest = ingest;
+        this.dropped = dropped;
+        this.q = q;
+        this.intervalMillis = intervalMillis;
+        this.sustain = Math.max(1, sustain);
+        this.relax = Math.max(1, relax);
+        this.high = high;
+        this.low = low;
+        this.maxRate = maxRate;
+        this.levels = new ScanLevel[rssiSteps.length + 1];
+        this.filters = new AdvFilter[rssiSteps.length + 1];
+        levels[0] = ScanLevel.NONE;
+        for (int i = 0; i < rssiSteps.length; i++) {
+            boolean last = i == rssiSteps.length - 1;
+            levels[i + 1] = new ScanLevel(i + 1, rssiSteps[i], false, last ? uuids : List.of(), last ? pattern : null);
+            filters[i + 1] = loadFilter(levels[i + 1]);
+        }
+    }
+
+    /** 段階の RSSI の下限と UUID・Pattern を AdvFilter にする（UUID と Pattern は両方に当たったものだけ通す） */
+    static AdvFilter loadFilter(ScanLevel l) {
+        StringBuilder spec = new StringBuilder("rssi ").append(l.getRssi());
+        if (!l.getUuids().isEmpty()) {
+            List<String> ids = new ArrayList<>();
+            for (String u: l.getUuids()) ids.add(uuid16(u));
+            spec.append(";allow uuid ").append(String.join(",", ids));
+        }
+        AdvFilter f = AdvFilter.compile(spec.toString());
+        if (l.getPattern() != null) {
+            if (l.getPattern().contains(",") || l.getPattern().contains(";")) {
+                throw new IllegalArgumentException("pattern must not contain ',' or ';': " + l.getPattern());
+            }
+            f = f.and(AdvFilter.compile("allow pattern " + l.getPattern()));
+        }
+        return f;
+    }
+
+    /** "feaa" / "0xfeaa" / "0000feaa-0000-1000-8000-00805f9b34fb" → "feaa"。それ以外の 128bit UUID は判定できない */
+    static String uuid16(String u) {
+        String s = u.trim().toLowerCase(Locale.ROOT);
+        if (s.startsWith("0x")) s = s.substring(2);
+        if (s.length() == 36 && s.startsWith("0000") && s.endsWith("-0000-1000-8000-00805f9b34fb")) s = s.substring(4, 8);
+        if (!s.matches("[0-9a-f]{4}")) throw new IllegalArgumentException("only 16-bit service UUIDs are supported: " + u);
+        return s;
+    }
+
+    /** "-85,-75,-65" */
+    public static short[] parseRssiSteps(String s) {
+        String[] parts = s.split(",");
+        short[] steps = new short[parts.length];
+        for (int i = 0; i < parts.length; i++) steps[i] = Short.parseShort(parts[i].trim());
+        return steps;
+    }
+
+    public void start() {
+        th.setDaemon(true);
+        th.start();
+        System.out.println("[SCAN] adaptive control on (" + (levels.length - 1) + " levels, every " + intervalMillis + "ms)");
+    }
+
+    @Override
+    public void close() {
+        th.interrupt();
+        try { th.join(1000); } catch (InterruptedException ignore) {}
+    }
+
+    @Override
+    public void run() {
+        long lastIngest = ingest.getAsLong();
+        long lastDropped = dropped.getAsLong();
+        long lastNanos = System.nanoTime();
+        int over = 0, under = 0;
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                long now = System.nanoTime();
+                long in = ingest.getAsLong();
+                long dr = dropped.getAsLong();
+                long rate = (in - lastIngest) * 1_000_000_000L / Math.max(1, now - lastNanos);
+                long newDrops = dr - lastDropped;
+                double fill = (double)q.size() / q.capacity();
+                lastIngest = in;
+                lastDropped = dr;
+                lastNanos = now;
+                lastRate = rate;
+
+                boolean overloaded = fill >= high || newDrops > 0 || (maxRate > 0 && rate > maxRate);
+                boolean idle = fill <= low && newDrops == 0 && (maxRate <= 0 || rate <= maxRate / 2);
+                over = overloaded ? over + 1 : 0;
+                under = idle ? under + 1 : 0;
+                String why = String.format("rate=%d/s queue=%.0f%% dropped=+%d", rate, fill * 100, newDrops);
+                if (over >= sustain && level < levels.length - 1) {
+                    change(level + 1, why);
+                    over = 0;
+                } else if (under >= relax && level > 0) {
+                    change(level - 1, why);
+                    under = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        }
+    }
+
+    private void change(int next, String why) {
+        ScanLevel l = levels[next];
+        if (ctrlAdjusts) {
+            try {
+                if (!ctrl.setLevel(l)) {
+                    System.out.println("[SCAN] scan backend cannot adjust; filtering reports in process only");
+                    ctrlAdjusts = false;
+                }
+            } catch (Exception e) {
+                System.err.println("[SCAN] adjusting to " + l + " failed: " + e.getMessage());
+                return;
+            }
+        }
+        AdvParsers.getInstance().setLoadFilter(filters[next]);
+        System.out.printf("[SCAN] load level %d -> %d (%s): %s in process%n", level, next, why, l);
+        level = next;
+        adjustments++;
+    }
+
+    /** いまの段階（0 が絞り込みなし） */
+    public int getLevel() {
+        return level;
+    }
+    /** 段階を変えた回数 */
+    public long getAdjustments() {
+        return adjustments;
+    }
+    /** 最後に測った受信レート（段階のフィルタを通った件/秒） */
+    public long getLastRate() {
+        return lastRate;
+    }
+}
@@ -0,0 +1,220 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.fjworks.ble2mqtt.adv.AdCursor;
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvSummary;
+import jp.fjworks.ble2mqtt.adv.AdvType;
+
+/**
+ * 広告を1件ずつ送る代わりに、デバイスごとに窓（windowSec 秒）の中で集計して、窓を閉じるたびに1件（{@link AdvSummary}）だけ送る。
+ * 集計するのは受信数、RSSI の最小・最大・平均・標準偏差、最後の TX Power Level（AD type 0x0A）、最後の広告データ。
+ *
+ * 窓は stepSec 秒ごとのバケツ windowSec/stepSec 個でできていて、stepSec ごとに直近 windowSec 秒ぶんを送る。
+ * stepSec = windowSec なら重ならない窓（tumbling）、短くすると重なる窓（hopping。ずれは stepSec 単位）になる。
+ * 値は LongSlotMap のスロット番号で引く配列に持ち、受信ごとにオブジェクトは作らない。
+ * 容量を超えたら最も古く見たものを追い出し、窓の中で1件も受けなかったデバイスは表から消す。
+ *
+ * 表の更新は受信スレッド、窓を閉じて送信キューに入れるのは専用スレッド（キューのプロデューサはこれだけ）。
+ * 受け取った広告はここで release() する。
+ */
+public final class AdvAggregator implements AdvParser.OnParsedCallback, Runnable, AutoCloseable {
+    private static final int AD_TX_POWER = 0x0A;
+
+    private final ShardedRing<Adv> q;
+    private final LongSlotMap devices; // スタンプ＝最後に見た時刻（ミリ秒）
+    private final int buckets;
+    private final int windowSec;
+    private final long stepMillis;
+
+    // [slot * buckets + バケツ番号]
+    private final int[] count;
+    private final long[] sum;
+    private final long[] sumSq;
+    private final int[] min;
+    private final int[] max;
+    private final long[] firstSeen;
+    // [slot]
+    private final AdvType[] type;
+    private final int[] adapter;
+    private final int[] txPower;
+    private final byte[][] data;
+    private final int[] dataLen;
+
+    private int cur; // いま書き込んでいるバケツ
+    private final Thread th = new Thread(this, "aggregator");
+
+    private volatile long aggregated;
+    private volatile long summaries;
+
+    /**
+     * @param capacity  覚えておくデバイス数の上限
+     * @param windowSec 窓の長さ（秒）
+     * @param stepSec   送る間隔（秒）。windowSec を割り切れる値
+     */
+    public AdvAggregator(int capacity, int windowSec, int stepSec, ShardedRing<Adv> q) {
+        if (stepSec < 1 || windowSec < stepSec || windowSec % stepSec != 0) {
+            throw new IllegalArgumentException(String.format("window (%ds) must be a multiple of step (%ds)", windowSec, stepSec));
+        }
+        this.q = q;
+        this.devices = new LongSlotMap(capacity);
+        this.buckets = windowSec / stepSec;
+        this.windowSec = windowSec;
+        this.stepMillis = stepSec * 1000L;
+        int n = capacity * buckets;
+        this.count = new int[n];
+        this.sum = new long[n];
+        this.sumSq = new long[n];
+        this.min = new int[n];
+        this.max = new int[n];
+        this.firstSeen = new long[n];
+        this.type = new AdvType[capacity];
+        this.adapter = new int[capacity];
+        this.txPower = new int[capacity];
+        this.data = new byte[capacity][];
+        this.dataLen = new int[capacity];
+    }
+
+    public void start() {
+        th.setDaemon(true);
+        th.start();
+        System.out.println("[AGG] summarizing every " + stepMillis / 1000 + "s over " + windowSec + "s windows (capacity=" + devices.capacity() + ")");
+    }
+
+    /** スレッドを止める。止まる前に集計中の窓を送る */
+    @Override
+    public void close() {
+        th.interrupt();
+        try { th.join(1000); } catch (InterruptedException ignore) {}
+    }
+
+    @Override
+    public void onParsed(Adv adv) {
+        try {
+            update(adv);
+        } finally {
+            adv.release();
+        }
+    }
+
+    private synchronized void update(Adv adv) {
+        long key = adv.getAddress();
+        long now = System.currentTimeMillis();
+        int slot = devices.find(key);
+        if (slot < 0) {
+            slot = devices.insert(key, now); // 満杯なら追い出したスロットを使い回す
+            int b = slot * buckets;
+            Arrays.fill(count, b, b + buckets, 0);
+            txPower[slot] = AdvSummary.NO_TX_POWER;
+        } else {
+            devices.touch(slot, now);
+        }
+        type[slot] = adv.getType();
+        adapter[slot] = adv.getAdapter();
+
+        int i = slot * buckets + cur;
+        int rssi = adv.getRssi();
+        if (count[i]++ == 0) {
+            sum[i] = 0;
+            sumSq[i] = 0;
+            min[i] = rssi;
+            max[i] = rssi;
+            firstSeen[i] = now;
+        } else {
+            if (rssi < min[i]) min[i] = rssi;
+            if (rssi > max[i]) max[i] = rssi;
+        }
+        sum[i] += rssi;
+        sumSq[i] += rssi * rssi;
+
+        // 広告データ（AD structure の並び）をコピーしながら TX Power Level を拾う
+        AdCursor c = adv.adCursor();
+        int from = -1, to = 0;
+        while (c.next()) {
+            if (from < 0) from = c.valueOffset() - 2;
+            to = c.valueOffset() + c.valueLength();
+            if (c.type() == AD_TX_POWER && c.valueLength() >= 1) txPower[slot] = (byte)c.u8(0);
+        }
+        int len = from < 0 ? 0 : to - from;
+        byte[] d = data[slot];
+        if (d == null || d.length < len) data[slot] = d = new byte[Math.max(32, len)];
+        if (len > 0) c.buffer().get(from, d, 0, len);
+        dataLen[slot] = len;
+        aggregated++;
+    }
+
+    /** 直近 windowSec 秒ぶんをまとめて、いちばん古いバケツを空ける。1件も受けなかったデバイスは消す */
+    private synchronized List<AdvSummary> roll() {
+        List<AdvSummary> out = new ArrayList<>(devices.size());
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (!devices.isUsed(slot)) continue;
+            int b = slot * buckets;
+            int n = 0, lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+            long s = 0, sq = 0, first = Long.MAX_VALUE;
+            for (int i = b; i < b + buckets; i++) {
+                if (count[i] == 0) continue;
+                n += count[i];
+                s += sum[i];
+                sq += sumSq[i];
+                lo = Math.min(lo, min[i]);
+                hi = Math.max(hi, max[i]);
+                first = Math.min(first, firstSeen[i]);
+            }
+            long key = devices.keyAt(slot);
+            if (n == 0) {
+                devices.remove(key);
+                continue;
+            }
+            double mean = (double)s / n;
+            double sd = Math.sqrt(Math.max(0, (double)sq / n - mean * mean));
+            out.add(new AdvSummary(type[slot], adapter[slot], key, windowSec, n, lo, hi,
+                (int)Math.round(mean * 10), (int)Math.round(sd * 10), txPower[slot],
+                Arrays.copyOf(data[slot], dataLen[slot]), first, devices.stampAt(slot)));
+        }
+        cur = (cur + 1) % buckets;
+        for (int slot = 0; slot < devices.capacity(); slot++) count[slot * buckets + cur] = 0;
+        return out;
+    }
+
+    @Override
+    public void run() {
+        boolean running = true;
+        while (running) {
+            try {
+                // 窓の区切りは時計の stepMillis の倍数にそろえる
+                long now = System.currentTimeMillis();
+                Thread.sleep((now / stepMillis + 1) * stepMillis - now);
+            } catch (InterruptedException e) {
+                running = false; // 最後に集計中の分を送って終わる
+            }
+            for (AdvSummary s: roll()) {
+                try {
+                    q.offer(s);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                summaries++;
+            }
+        }
+    }
+
+    /** 受け取って集計した広告の数 */
+    public long getAggregated() {
+        return aggregated;
+    }
+    /** 送信キューに入れたまとめの数 */
+    public long getSummaries() {
+        return summaries;
+    }
+    /** いま集計しているデバイス数 */
+    public synchronized int size() {
+        return devices.size();
+    }
+    public synchronized long getEvictions() {
+        return devices.getEvictions();
+    }
+}
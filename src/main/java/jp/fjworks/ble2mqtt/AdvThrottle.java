@@ -0,0 +1,104 @@
+package jp.fjworks.ble2mqtt;
+
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+
+/**
+ * デバイス（詰めたMACアドレス）ごとに前回送った内容を覚えておき、
+ * 変化がない広告を間引く段。HCI読み取りスレッド上で動く前提（スレッドセーフではない）。
+ *
+ * 次のどれかに当てはまるときだけ下流へ流す。
+ * <ul>
+ *   <li>広告データのハッシュが変わった</li>
+ *   <li>RSSIが前回送ったときから rssiDelta 以上動いた（0なら見ない）</li>
+ *   <li>前回送ってから heartbeatMillis 以上たった</li>
+ * </ul>
+ */
+public final class AdvThrottle implements AdvParser.OnParsedCallback {
+    private final AdvParser.OnParsedCallback next;
+    private final LongSlotMap devices;
+    private final int[] lastHash;
+    private final int[] lastRssi;
+    private final long[] lastSent;
+
+    private volatile boolean enabled = true;
+    private volatile long heartbeatMillis;
+    private volatile int rssiDelta;
+
+    private volatile long forwarded;
+    private volatile long suppressed;
+
+    public AdvThrottle(int maxDevices, long heartbeatMillis, int rssiDelta, AdvParser.OnParsedCallback next) {
+        this.next = next;
+        this.devices = new LongSlotMap(maxDevices);
+        this.lastHash = new int[maxDevices];
+        this.lastRssi = new int[maxDevices];
+        this.lastSent = new long[maxDevices];
+        this.heartbeatMillis = heartbeatMillis;
+        this.rssiDelta = rssiDelta;
+    }
+
+    @Override
+    public void onParsed(Adv adv) {
+        if (!enabled) {
+            next.onParsed(adv);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long key = adv.getAddress();
+        int hash = adv.getPayloadHash();
+        int rssi = adv.getRssi();
+        int slot = devices.find(key);
+        if (slot < 0) {
+            slot = devices.insert(key, now);
+        } else {
+            devices.touch(slot, now);
+            int delta = rssiDelta;
+            boolean changed = hash != lastHash[slot]
+                || (delta > 0 && Math.abs(rssi - lastRssi[slot]) >= delta)
+                || now - lastSent[slot] >= heartbeatMillis;
+            if (!changed) {
+                suppressed++;
+                adv.release();
+                return;
+            }
+        }
+        lastHash[slot] = hash;
+        lastRssi[slot] = rssi;
+        lastSent[slot] = now;
+        forwarded++;
+        next.onParsed(adv);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+    /** false なら間引かずにすべて流す（覚えている内容はそのまま） */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+    public int getRssiDelta() {
+        return rssiDelta;
+    }
+    public void setRssiDelta(int rssiDelta) {
+        this.rssiDelta = rssiDelta;
+    }
+    public long getForwarded() {
+        return forwarded;
+    }
+    public long getSuppressed() {
+        return suppressed;
+    }
+    public int getTrackedDevices() {
+        return devices.size();
+    }
+    public long getEvictions() {
+        return devices.getEvictions();
+    }
+}
@@ -10,7 +10,7 @@ import org.freedesktop.dbus.connections.impl.DBusConnectionBuilder;
 import java.util.Map;
 import java.util.HashMap;
 
-public final class BluezScanControl implements AutoCloseable {
+public final class BluezScanControl implements ScanControl {
   @DBusInterfaceName("org.bluez.Adapter1")
   public interface Adapter1 extends DBusInterface {
     void StartDiscovery();
@@ -55,7 +55,7 @@ public final class BluezScanControl implements AutoCloseable {
   }
 
   /** 必要ならスキャンを開始（既に動いていれば何もしない） */
-  public void ensureScanning() throws Exception {
+  @Override public void ensureScanning() throws Exception {
     ensureConn();
 
     // 必要に応じて電源ON（Powered=false の環境対策）
@@ -0,0 +1,33 @@
+package jp.fjworks.ble2mqtt;
+
+/**
+ * btsnoop / pcap の定数。
+ * btsnoop はすべてビッグエンディアン。時刻は西暦0年1月1日からのマイクロ秒。
+ * <pre>
+ * ファイルヘッダ: "btsnoop\0"(8) version(4)=1 datalink(4)
+ * レコード:       orig_len(4) incl_len(4) flags(4) drops(4) timestamp(8) data(incl_len)
+ * </pre>
+ * datalink 2001（Linux monitor）の flags は (index &lt;&lt; 16) | opcode で、data は monitor ヘッダを除いた中身。
+ */
+final class Btsnoop {
+    static final byte[] MAGIC = { 'b', 't', 's', 'n', 'o', 'o', 'p', 0 };
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 24;
+
+    static final int DATALINK_HCI     = 1001; // 生の HCI（flags で種別）
+    static final int DATALINK_UART    = 1002; // H4（先頭1バイトがパケット種別）
+    static final int DATALINK_MONITOR = 2001; // Linux monitor（btmon -w の形式）
+
+    /** 1970-01-01 を西暦0年起点のマイクロ秒で表したもの */
+    static final long EPOCH_DELTA_US = 0x00dcddb30f2f8000L;
+
+    // pcap
+    static final int PCAP_MAGIC_US = 0xa1b2c3d4;
+    static final int PCAP_MAGIC_NS = 0xa1b23c4d;
+    static final int PCAP_HEADER_SIZE = 24;
+    static final int PCAP_RECORD_HEADER_SIZE = 16;
+    static final int DLT_BLUETOOTH_LINUX_MONITOR = 254;
+
+    private Btsnoop() {}
+}
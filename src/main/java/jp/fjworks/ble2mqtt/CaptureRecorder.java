@@ -0,0 +1,213 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 受信した monitor フレームをそのまま btsnoop（datalink 2001、btmon -w と同じ形式）に書き残す。
+ * 書き込みは専用スレッドで行い、受信スレッドは空きスロットへコピーするだけで決して待たない。
+ * 空きがなければ（ディスクが追いつかなければ）そのフレームは捨てて数える。
+ *
+ * ファイルはサイズか時間で切り替え、古いものから消して keepFiles 個まで残す。
+ * 書いたファイルは BLE_REPLAY でそのまま再生できる。
+ */
+public final class CaptureRecorder implements AutoCloseable, Runnable {
+    private static final String PREFIX = "hci-";
+    private static final String SUFFIX = ".btsnoop";
+    private static final DateTimeFormatter NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** 受信スレッド → 書き込みスレッドで受け渡す1フレーム分 */
+    private static final class Slot {
+        final byte[] data = new byte[HciMonitor.FRAME_SIZE];
+        int len;
+        long tsMicros; // UNIXエポックからのマイクロ秒
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long maxNanos;
+    private final int keepFiles;
+    private final SpscRing<Slot> free;   // 書き込みスレッド → 受信スレッド
+    private final SpscRing<Slot> filled; // 受信スレッド → 書き込みスレッド
+    private final Thread th = new Thread(this, "capture-recorder");
+    private volatile boolean running;
+
+    private OutputStream out;
+    private Path current;
+    private long fileBytes;
+    private long fileOpenedNanos;
+    private String lastStamp;
+    private int seq;
+    private final byte[] rec = new byte[Btsnoop.RECORD_HEADER_SIZE];
+
+    private volatile long recorded;
+    private volatile long dropped;  // 更新は受信スレッドのみ
+    private volatile long files;
+
+    /**
+     * @param slots     受け渡し用に確保しておくフレーム数（2のべき乗）。書き込みが遅れたときの余裕
+     * @param maxBytes  1ファイルの上限（超えたら次のファイルへ）
+     * @param maxMillis 1ファイルの期間の上限（0 なら時間では切り替えない）
+     * @param keepFiles 残すファイル数（0 なら消さない）
+     */
+    public CaptureRecorder(Path dir, int slots, long maxBytes, long maxMillis, int keepFiles) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        this.keepFiles = keepFiles;
+        this.free = new SpscRing<>(slots, SpscRing.OverflowPolicy.DROP_NEWEST);
+        this.filled = new SpscRing<>(slots, SpscRing.OverflowPolicy.DROP_NEWEST);
+        try {
+            for (int i = 0; i < slots; i++) free.offer(new Slot());
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e); // DROP_NEWEST は待たない
+        }
+        Files.createDirectories(dir);
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+        th.setDaemon(true);
+        th.start();
+        System.out.println("[REC] recording to " + dir);
+    }
+
+    /**
+     * 受信スレッドから呼ぶ。bbuf の先頭 len バイト（monitor ヘッダ込み）を書き込み待ちにする。
+     * @return 空きがなくて捨てたら false
+     */
+    public boolean offer(ByteBuffer bbuf, int len, long tsMicros) {
+        Slot s = free.poll();
+        if (s == null) {
+            dropped++;
+            return false;
+        }
+        int n = Math.min(len, s.data.length);
+        bbuf.get(0, s.data, 0, n);
+        s.len = n;
+        s.tsMicros = tsMicros;
+        try {
+            filled.offer(s); // スロット数と同じ容量なのであふれない
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long lastFlush = System.nanoTime();
+        try {
+            while (running || filled.size() > 0) {
+                Slot s = filled.poll(100, TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                if (s != null) {
+                    write(s, now);
+                    free.offer(s);
+                }
+                if (out != null && (s == null || now - lastFlush > FLUSH_NANOS)) {
+                    out.flush();
+                    lastFlush = now;
+                }
+                if (out != null && maxNanos > 0 && now - fileOpenedNanos > maxNanos) rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("[REC] write failed, recording stopped: " + e);
+            running = false;
+        } catch (InterruptedException e) {
+            // 終了
+        }
+        closeFile();
+    }
+
+    private void write(Slot s, long now) throws IOException {
+        if (s.len < HciMonitor.MON_HDR_SIZE) return;
+        if (out == null || fileBytes >= maxBytes) rotate();
+        ByteBuffer hdr = ByteBuffer.wrap(s.data, 0, HciMonitor.MON_HDR_SIZE).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        int opcode = Short.toUnsignedInt(hdr.getShort(0));
+        int index  = Short.toUnsignedInt(hdr.getShort(2));
+        int orig   = Short.toUnsignedInt(hdr.getShort(4));
+        int incl   = s.len - HciMonitor.MON_HDR_SIZE;
+        ByteBuffer r = ByteBuffer.wrap(rec); // ビッグエンディアン
+        r.putInt(0, orig);
+        r.putInt(4, incl);
+        r.putInt(8, (index << 16) | opcode);
+        r.putInt(12, 0);
+        r.putLong(16, s.tsMicros + Btsnoop.EPOCH_DELTA_US);
+        out.write(rec);
+        out.write(s.data, HciMonitor.MON_HDR_SIZE, incl);
+        fileBytes += rec.length + incl;
+        recorded++;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        // hci-YYYYMMDD-HHMMSS-NNN.btsnoop（同じ秒に切り替えたら NNN を進める）。名前順が時刻順になる
+        String stamp = PREFIX + LocalDateTime.now().format(NAME);
+        seq = stamp.equals(lastStamp) ? seq + 1 : 0;
+        lastStamp = stamp;
+        Path p;
+        while (Files.exists(p = dir.resolve(String.format("%s-%03d%s", stamp, seq, SUFFIX)))) seq++;
+        out = new BufferedOutputStream(Files.newOutputStream(p), 1 << 16);
+        ByteBuffer h = ByteBuffer.allocate(Btsnoop.HEADER_SIZE);
+        h.put(Btsnoop.MAGIC).putInt(Btsnoop.VERSION).putInt(Btsnoop.DATALINK_MONITOR);
+        out.write(h.array());
+        current = p;
+        fileBytes = Btsnoop.HEADER_SIZE;
+        fileOpenedNanos = System.nanoTime();
+        files++;
+        prune();
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try { out.close(); } catch (IOException e) { System.err.println("[REC] close failed: " + e); }
+        out = null;
+    }
+
+    /** 古いファイルを消して keepFiles 個（書き込み中のものを含む）にする。名前順＝時刻順 */
+    private void prune() {
+        if (keepFiles <= 0) return;
+        List<Path> list = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p: ds) list.add(p);
+        } catch (IOException e) {
+            System.err.println("[REC] list failed: " + e);
+            return;
+        }
+        list.sort(null);
+        for (int i = 0; i < list.size() - keepFiles; i++) {
+            if (list.get(i).equals(current)) continue;
+            try { Files.deleteIfExists(list.get(i)); } catch (IOException e) { System.err.println("[REC] delete failed: " + e); }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try { th.join(5000); } catch (InterruptedException ignore) {}
+    }
+
+    public long getRecorded() {
+        return recorded;
+    }
+    /** 書き込みが追いつかずに捨てたフレーム数 */
+    public long getDropped() {
+        return dropped;
+    }
+    public long getFiles() {
+        return files;
+    }
+}
@@ -0,0 +1,247 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.FramePool;
+
+/**
+ * btsnoop（btmon -w）か pcap（DLT_BLUETOOTH_LINUX_MONITOR）のキャプチャを mmap して再生する。
+ * 各パケットを monitor フレームに組み直し、HciMonitor と同じ経路（onFrame → AdvParsers.parse）に流す。
+ * Bluetooth のない環境での負荷試験・スループット上限の計測用。
+ *
+ * speed は記録時の間隔に対する倍率（1 で実時間、10 で10倍速）。0 なら待たずに流す。
+ * btsnoop は datalink 2001（monitor）、1002（H4）、1001（HCI）を読む。H4 / HCI にはアダプタ番号がないので 0 とする。
+ */
+public final class CaptureReplay implements FrameSource, Runnable {
+    private static final int WINDOW = 256 << 20; // mmap は 256MB ずつ
+
+    private final AdvParser.OnParsedCallback out;
+    private final Path path;
+    private final double speed;
+    private final int loops;
+    private final FramePool pool;
+    private final Thread th = new Thread(this, "capture-replay");
+    private volatile boolean running;
+    private volatile Runnable onFinished;
+
+    private FileChannel ch;
+    private long fileSize;
+    private MappedByteBuffer win;
+    private long winStart;
+
+    private long frames;
+    private long skipped;
+
+    /**
+     * @param loops 繰り返す回数（0 以下なら止めるまで繰り返す）
+     */
+    public CaptureReplay(AdvParser.OnParsedCallback out, Path path, double speed, int loops, int maxFrames) {
+        this.out = out;
+        this.path = path;
+        this.speed = speed;
+        this.loops = loops;
+        this.pool = new FramePool(HciMonitor.FRAME_SIZE, Math.min(maxFrames, 256), maxFrames, null);
+    }
+
+    /** 最後まで再生し終えたときに（再生スレッドから）呼ばれる */
+    public void setOnFinished(Runnable r) {
+        this.onFinished = r;
+    }
+
+    @Override
+    public void start() {
+        if (running) return;
+        try {
+            ch = FileChannel.open(path, StandardOpenOption.READ);
+            fileSize = ch.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        running = true;
+        th.setDaemon(true);
+        th.start();
+        System.out.println("[REPLAY] " + path + " (speed=" + (speed > 0 ? speed + "x" : "max") + ")");
+    }
+
+    @Override
+    public FramePool getFramePool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (Thread.currentThread() != th) {
+            try { th.join(1000); } catch (InterruptedException ignore) {}
+        }
+        try { if (ch != null) ch.close(); } catch (IOException ignore) {}
+        ch = null;
+        win = null;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+    /** 広告と関係ない（イベント以外の）パケットの数 */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void run() {
+        long t0 = System.nanoTime();
+        try {
+            for (int n = 0; running && (loops <= 0 || n < loops); n++) {
+                replayOnce();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[REPLAY] failed: " + e);
+        }
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        System.out.printf("[REPLAY] done frames=%d skipped=%d in %dms (%.0f frames/s)%n",
+            frames, skipped, ms, frames * 1000.0 / Math.max(1, ms));
+        Runnable r = onFinished;
+        if (r != null && running) r.run();
+    }
+
+    private void replayOnce() throws IOException {
+        if (fileSize < Btsnoop.HEADER_SIZE) throw new IOException("not a btsnoop/pcap file: " + path);
+        int o = at(0, (int)Math.min(fileSize, Btsnoop.PCAP_HEADER_SIZE), ByteOrder.BIG_ENDIAN);
+        byte[] magic = new byte[Btsnoop.MAGIC.length];
+        win.get(o, magic);
+        if (Arrays.equals(magic, Btsnoop.MAGIC)) {
+            replayBtsnoop(win.getInt(o + 12));
+            return;
+        }
+        int m = win.getInt(o);
+        ByteOrder order = (m == Btsnoop.PCAP_MAGIC_US || m == Btsnoop.PCAP_MAGIC_NS) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        m = win.order(order).getInt(o);
+        if (m != Btsnoop.PCAP_MAGIC_US && m != Btsnoop.PCAP_MAGIC_NS || fileSize < Btsnoop.PCAP_HEADER_SIZE) {
+            throw new IOException("not a btsnoop/pcap file: " + path);
+        }
+        int linktype = win.getInt(o + 20);
+        if (linktype != Btsnoop.DLT_BLUETOOTH_LINUX_MONITOR) throw new IOException("unsupported pcap linktype: " + linktype);
+        replayPcap(order, m == Btsnoop.PCAP_MAGIC_NS);
+    }
+
+    private void replayBtsnoop(int datalink) throws IOException {
+        if (datalink != Btsnoop.DATALINK_MONITOR && datalink != Btsnoop.DATALINK_UART && datalink != Btsnoop.DATALINK_HCI) {
+            throw new IOException("unsupported btsnoop datalink: " + datalink);
+        }
+        Pacer pacer = new Pacer();
+        long pos = Btsnoop.HEADER_SIZE;
+        while (running && pos + Btsnoop.RECORD_HEADER_SIZE <= fileSize) {
+            int o = at(pos, Btsnoop.RECORD_HEADER_SIZE, ByteOrder.BIG_ENDIAN);
+            int incl  = win.getInt(o + 4);
+            int flags = win.getInt(o + 8);
+            long tsUs = win.getLong(o + 16);
+            long dataPos = pos + Btsnoop.RECORD_HEADER_SIZE;
+            if (incl < 0 || dataPos + incl > fileSize) break; // 途中で切れている
+            pos = dataPos + incl;
+
+            int opcode, index, skip;
+            if (datalink == Btsnoop.DATALINK_MONITOR) {
+                opcode = flags & 0xFFFF;
+                index = flags >>> 16;
+                skip = 0;
+            } else if (datalink == Btsnoop.DATALINK_UART) {
+                // 先頭がパケット種別（0x04 = イベント）
+                opcode = incl > 0 && win.get(at(dataPos, 1, ByteOrder.BIG_ENDIAN)) == 0x04 ? HciMonitor.MON_OPCODE_EVENT : -1;
+                index = 0;
+                skip = 1;
+            } else {
+                // flags: bit0 = 受信, bit1 = コマンド／イベント
+                opcode = (flags & 0x03) == 0x03 ? HciMonitor.MON_OPCODE_EVENT : -1;
+                index = 0;
+                skip = 0;
+            }
+            pacer.await((tsUs - Btsnoop.EPOCH_DELTA_US) * 1000);
+            feed(opcode, index, dataPos + skip, incl - skip);
+        }
+    }
+
+    private void replayPcap(ByteOrder order, boolean nanos) throws IOException {
+        Pacer pacer = new Pacer();
+        long pos = Btsnoop.PCAP_HEADER_SIZE;
+        while (running && pos + Btsnoop.PCAP_RECORD_HEADER_SIZE <= fileSize) {
+            int o = at(pos, Btsnoop.PCAP_RECORD_HEADER_SIZE, order);
+            long sec  = Integer.toUnsignedLong(win.getInt(o));
+            long frac = Integer.toUnsignedLong(win.getInt(o + 4));
+            int incl  = win.getInt(o + 8);
+            long dataPos = pos + Btsnoop.PCAP_RECORD_HEADER_SIZE;
+            if (incl < 0 || dataPos + incl > fileSize) break;
+            pos = dataPos + incl;
+            if (incl < 4) continue;
+            // 疑似ヘッダ: adapter_id(2) opcode(2)、ビッグエンディアン
+            o = at(dataPos, 4, ByteOrder.BIG_ENDIAN);
+            int index  = Short.toUnsignedInt(win.getShort(o));
+            int opcode = Short.toUnsignedInt(win.getShort(o + 2));
+            pacer.await(sec * 1_000_000_000L + (nanos ? frac : frac * 1000));
+            feed(opcode, index, dataPos + 4, incl - 4);
+        }
+    }
+
+    /** monitor フレーム（ヘッダ6バイト＋中身）をプールのフレームに組み立てて流す */
+    private void feed(int opcode, int index, long dataPos, int len) throws IOException {
+        if (opcode != HciMonitor.MON_OPCODE_EVENT || len < 3 || len > HciMonitor.FRAME_SIZE - HciMonitor.MON_HDR_SIZE) {
+            skipped++;
+            return;
+        }
+        Frame f = pool.acquire();
+        ByteBuffer b = f.buffer();
+        b.putShort(0, (short)opcode);
+        b.putShort(2, (short)index);
+        b.putShort(4, (short)len);
+        b.put(HciMonitor.MON_HDR_SIZE, win, at(dataPos, len, ByteOrder.BIG_ENDIAN), len);
+        frames++;
+        HciMonitor.onFrame(AdvParsers.getInstance(), f, HciMonitor.MON_HDR_SIZE + len, out);
+        f.release();
+    }
+
+    /**
+     * ファイルの [pos, pos+len) が win に入るように（必要なら map し直して）、win 上の位置を返す。
+     * win のバイト順は order にする。
+     */
+    private int at(long pos, int len, ByteOrder order) throws IOException {
+        if (win == null || pos < winStart || pos + len > winStart + win.limit()) {
+            long size = Math.min(WINDOW, fileSize - pos);
+            if (size < len) throw new IOException("unexpected end of file: " + path);
+            win = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            winStart = pos;
+        }
+        win.order(order);
+        return (int)(pos - winStart);
+    }
+
+    /** 記録時刻（ns）に合わせて待つ。最初のパケットを基準にする */
+    private final class Pacer {
+        private long firstTs = Long.MIN_VALUE;
+        private long startNanos;
+
+        void await(long tsNanos) {
+            if (speed <= 0) return;
+            if (firstTs == Long.MIN_VALUE) {
+                firstTs = tsNanos;
+                startNanos = System.nanoTime();
+                return;
+            }
+            long due = startNanos + (long)((tsNanos - firstTs) / speed);
+            long wait;
+            while (running && (wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * ブローカにつながらない間の送信メッセージをためておくディスク上のスプール。
+ * 固定長のセグメントファイルを mmap して追記していくだけのログで、合計は maxBytes まで。
+ * <pre>
+ * セグメント: spool-&lt;連番16桁&gt;.seg
+ * レコード:   len(4) crc32c(4) qos(1) topicLen(2) topic deviceKey(8) payload   （ビッグエンディアン、crc は len 以降）
+ * 読み出し位置: cursor ファイルに seq(8) pos(4)
+ * </pre>
+ * len を最後に書くので、途中で落ちても len=0 か crc の合わないところで読み止まる。
+ * 追記はメモリへのコピーだけで、ディスクへの書き出し（msync）は sync() でまとめて行う。
+ *
+ * いっぱいになったら一番古いセグメントを消す。COALESCE なら、消す前にデバイスごとの最新
+ * （それより新しいレコードがないもの）だけを新しいセグメントへ移す。最新が半分以上を占めるときは移さずに捨てる。
+ *
+ * 書き込み（append）と読み出し（peek / advance）は別スレッドから呼べる。読み出し側は1スレッドだけ。
+ */
+public final class DiskSpool implements AutoCloseable {
+    public enum FullPolicy {
+        DROP_OLDEST, COALESCE;
+        public static FullPolicy parse(String s) {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+    private static final int REC_HDR = 8;  // len(4) crc(4)
+    private static final int BODY_FIXED = 11; // qos(1) topicLen(2) deviceKey(8)
+    private static final int MAX_DEVICES = 16384;
+
+    /** 読み出した1件 */
+    public static final class Entry {
+        public final String topic;
+        public final byte[] payload;
+        public final int qos;
+        final long seq;
+        final int pos, next;
+        Entry(String topic, byte[] payload, int qos, long seq, int pos, int next) {
+            this.topic = topic; this.payload = payload; this.qos = qos;
+            this.seq = seq; this.pos = pos; this.next = next;
+        }
+    }
+
+    private static final class Segment {
+        final long seq;
+        final Path path;
+        final MappedByteBuffer buf;
+        int limit; // 書いたところまで
+        Segment(long seq, Path path, MappedByteBuffer buf) {
+            this.seq = seq; this.path = path; this.buf = buf;
+        }
+    }
+
+    private final Path dir;
+    private final int segBytes;
+    private final int maxSegments;
+    private final FullPolicy policy;
+    private final ArrayDeque<Segment> segs = new ArrayDeque<>(); // 先頭が読み出し中、末尾が書き込み中
+    private final List<Segment> sealed = new ArrayList<>();     // 書き終えてまだ sync していないもの
+    private final LongSlotMap latest = new LongSlotMap(MAX_DEVICES); // deviceKey → 最新レコードの位置（stamp）
+    private final CRC32C crc = new CRC32C();
+    private final FileChannel cursorCh;
+    private Segment write;
+    private int readPos;
+    private long nextSeq;
+    private boolean dirty;
+
+    private long pending;
+    private long appended;
+    private long replayed;
+    private long dropped;
+    private long coalesced;
+    private long corrupt;
+
+    /**
+     * @param segmentBytes セグメント1つの大きさ
+     * @param maxBytes     合計の上限（セグメント2つ分以上）
+     */
+    public DiskSpool(Path dir, int segmentBytes, long maxBytes, FullPolicy policy) throws IOException {
+        this.dir = dir;
+        this.segBytes = segmentBytes;
+        this.maxSegments = (int)Math.max(2, maxBytes / segmentBytes);
+        this.policy = policy;
+        Files.createDirectories(dir);
+        this.cursorCh = FileChannel.open(dir.resolve("cursor"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /** 前回の残りを読み込む。壊れたところから先は捨てる */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p: ds) files.add(p);
+        }
+        files.sort(null); // 連番は16進固定幅なので名前順
+        long cursorSeq = -1;
+        int cursorPos = 0;
+        ByteBuffer cursorBuf = ByteBuffer.allocate(12);
+        if (cursorCh.size() >= cursorBuf.capacity()) {
+            cursorCh.read(cursorBuf.clear(), 0);
+            cursorSeq = cursorBuf.getLong(0);
+            cursorPos = cursorBuf.getInt(8);
+        }
+        for (Path p: files) {
+            String name = p.getFileName().toString();
+            long seq = Long.parseUnsignedLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (seq < cursorSeq) { // 送り終えたもの
+                Files.delete(p);
+                continue;
+            }
+            Segment s = map(seq, p, (int)Math.max(Files.size(p), segBytes));
+            int pos = 0, end;
+            while ((end = recordEnd(s, pos)) > 0) {
+                index(s, pos);
+                pos = end;
+            }
+            s.limit = pos;
+            segs.addLast(s);
+        }
+        Segment first = segs.peekFirst();
+        if (first != null && first.seq == cursorSeq && cursorPos <= first.limit) readPos = cursorPos;
+        for (Segment s: segs) {
+            for (int pos = s == first ? readPos : 0; pos < s.limit; pos = recordEnd(s, pos)) pending++;
+        }
+        write = segs.peekLast();
+        if (pending > 0) System.out.printf("[SPOOL] %d messages left from last run%n", pending);
+    }
+
+    private Segment map(long seq, Path p, int size) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(seq, p, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /** pos のレコードが正しければ次のレコードの位置、なければ（終わり・壊れている）-1 */
+    private int recordEnd(Segment s, int pos) {
+        return recordEnd(s, pos, true);
+    }
+
+    /** countCorrupt が false なら、CRC が合わなくても corrupt に数えない（数え直すときに使う） */
+    private int recordEnd(Segment s, int pos, boolean countCorrupt) {
+        ByteBuffer b = s.buf;
+        if (pos + REC_HDR > b.capacity()) return -1;
+        int len = b.getInt(pos);
+        if (len < BODY_FIXED || pos + REC_HDR + len > b.capacity()) return -1;
+        if (crc(b, pos + REC_HDR, len) != b.getInt(pos + 4)) {
+            if (countCorrupt) corrupt++;
+            return -1;
+        }
+        return pos + REC_HDR + len;
+    }
+
+    /** s の先頭から読める件数 */
+    private long records(Segment s) {
+        long n = 0;
+        for (int pos = 0; pos < s.limit && (pos = recordEnd(s, pos, false)) > 0; ) n++;
+        return n;
+    }
+
+    private int crc(ByteBuffer b, int off, int len) {
+        crc.reset();
+        b.limit(off + len).position(off);
+        crc.update(b);
+        b.clear();
+        return (int)crc.getValue();
+    }
+
+    private static long location(Segment s, int pos) {
+        return (s.seq << 32) | pos;
+    }
+
+    private long keyAt(Segment s, int pos) {
+        int topicLen = Short.toUnsignedInt(s.buf.getShort(pos + REC_HDR + 1));
+        return s.buf.getLong(pos + REC_HDR + 3 + topicLen);
+    }
+
+    private void index(Segment s, int pos) {
+        long key = keyAt(s, pos);
+        if (key == -1) return;
+        int slot = latest.find(key);
+        if (slot < 0) latest.insert(key, location(s, pos));
+        else latest.touch(slot, location(s, pos));
+    }
+
+    /** そのデバイスの最新のレコードか（わからなければ最新とみなす） */
+    private boolean isLatest(Segment s, int pos) {
+        long key = keyAt(s, pos);
+        if (key == -1) return true;
+        int slot = latest.find(key);
+        return slot < 0 || latest.stampAt(slot) <= location(s, pos);
+    }
+
+    /**
+     * 1件追記する。
+     * @param deviceKey COALESCE でまとめる単位（MAC アドレスなど）。まとめないものは -1
+     * @return 大きすぎて入らなければ false
+     */
+    public synchronized boolean append(String topic, byte[] payload, int qos, long deviceKey) throws IOException {
+        byte[] t = topic.getBytes(StandardCharsets.UTF_8);
+        int len = BODY_FIXED + t.length + payload.length;
+        if (REC_HDR + len > segBytes || t.length > 0xFFFF) {
+            dropped++;
+            return false;
+        }
+        if (write == null || write.limit + REC_HDR + len > write.buf.capacity()) {
+            roll();
+            if (write.limit + REC_HDR + len > write.buf.capacity()) { // 移したものでほぼ埋まった
+                dropped++;
+                return false;
+            }
+        }
+        ByteBuffer b = write.buf;
+        int p = write.limit;
+        int o = p + REC_HDR;
+        b.put(o, (byte)qos);
+        b.putShort(o + 1, (short)t.length);
+        b.put(o + 3, t);
+        b.putLong(o + 3 + t.length, deviceKey);
+        b.put(o + BODY_FIXED + t.length, payload);
+        b.putInt(p + 4, crc(b, o, len));
+        b.putInt(p, len); // 最後に長さを書いて確定
+        write.limit = o + len;
+        if (deviceKey != -1) index(write, p);
+        pending++;
+        appended++;
+        dirty = true;
+        return true;
+    }
+
+    /** 新しいセグメントに切り替える。上限に達していたら一番古いものを追い出す */
+    private void roll() throws IOException {
+        if (write != null) sealed.add(write);
+        Segment old = segs.size() >= maxSegments ? segs.peekFirst() : null;
+        long seq = nextSeq++;
+        write = map(seq, dir.resolve(String.format("%s%016x%s", PREFIX, seq, SUFFIX)), segBytes);
+        segs.addLast(write);
+        if (old != null) evict(old);
+    }
+
+    /** 読み出し中の一番古いセグメントを消す。COALESCE なら各デバイスの最新だけ write へ移す */
+    private void evict(Segment old) throws IOException {
+        int unread = 0, superseded = 0, keepBytes = 0;
+        for (int pos = readPos, end; pos < old.limit; pos = end) {
+            end = recordEnd(old, pos);
+            if (end < 0) break;
+            unread++;
+            if (policy != FullPolicy.COALESCE) continue;
+            if (isLatest(old, pos)) keepBytes += end - pos;
+            else superseded++;
+        }
+        int moved = 0;
+        if (policy == FullPolicy.COALESCE && keepBytes <= segBytes / 2) { // 半分以上残るなら、まとめても空かないので捨てる
+            for (int pos = readPos, end; pos < old.limit; pos = end) {
+                end = recordEnd(old, pos);
+                if (end < 0) break;
+                if (!isLatest(old, pos)) continue;
+                int p = write.limit;
+                write.buf.put(p, old.buf, pos, end - pos);
+                write.limit = p + end - pos;
+                index(write, p);
+                moved++;
+            }
+        }
+        coalesced += superseded;
+        dropped += unread - superseded - moved;
+        pending -= unread - moved;
+        segs.removeFirst();
+        sealed.remove(old);
+        readPos = 0;
+        Files.deleteIfExists(old.path);
+    }
+
+    /** 次に送るものを返す（進めるのは advance）。なければ null */
+    public synchronized Entry peek() throws IOException {
+        while (true) {
+            Segment s = segs.peekFirst();
+            if (s == null) return null;
+            if (readPos < s.limit) {
+                int end = recordEnd(s, readPos);
+                if (end < 0) { // 壊れている。このセグメントの残りはあきらめる
+                    long left = 0;
+                    for (Segment o: segs) {
+                        if (o != s) left += records(o);
+                    }
+                    corrupt += Math.max(0, pending - left - 1); // 壊れていた1件は recordEnd が数えた
+                    pending = left;
+                    readPos = s.limit;
+                    continue;
+                }
+                ByteBuffer b = s.buf;
+                int o = readPos + REC_HDR;
+                int qos = b.get(o);
+                byte[] t = new byte[Short.toUnsignedInt(b.getShort(o + 1))];
+                b.get(o + 3, t);
+                byte[] payload = new byte[end - (o + BODY_FIXED + t.length)];
+                b.get(o + BODY_FIXED + t.length, payload);
+                return new Entry(new String(t, StandardCharsets.UTF_8), payload, qos, s.seq, readPos, end);
+            }
+            if (s == write) return null;
+            segs.removeFirst();
+            sealed.remove(s);
+            readPos = 0;
+            Files.deleteIfExists(s.path);
+        }
+    }
+
+    /** peek で返したものを送り終えた。その間に追い出されていれば何もしない */
+    public synchronized void advance(Entry e) {
+        Segment s = segs.peekFirst();
+        if (s == null || s.seq != e.seq || readPos != e.pos) return;
+        readPos = e.next;
+        pending--;
+        replayed++;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /** 書いた内容と読み出し位置をディスクへ書き出す。追記とは別のスレッドから定期的に呼ぶ */
+    public void sync() throws IOException {
+        List<Segment> force;
+        Segment w;
+        ByteBuffer cursor; // ロックの外で書くので毎回作る（sync は複数のスレッドから呼ばれうる）
+        synchronized (this) {
+            force = new ArrayList<>(sealed);
+            sealed.clear();
+            w = dirty ? write : null;
+            dirty = false;
+            Segment first = segs.peekFirst();
+            cursor = ByteBuffer.allocate(12).putLong(0, first != null ? first.seq : nextSeq).putInt(8, readPos);
+        }
+        for (Segment s: force) s.buf.force();
+        if (w != null) w.buf.force();
+        cursorCh.write(cursor, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        cursorCh.close();
+    }
+
+    /** まだ送っていない件数 */
+    public synchronized long getPending() {
+        return pending;
+    }
+    public synchronized long getAppended() {
+        return appended;
+    }
+    public synchronized long getReplayed() {
+        return replayed;
+    }
+    /** いっぱいで（または大きすぎて）捨てた件数 */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+    /** いっぱいになったとき、同じデバイスの新しいものがあるので捨てた件数 */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+    public synchronized long getCorrupt() {
+        return corrupt;
+    }
+    public synchronized long getBytes() {
+        return (long)segs.size() * segBytes;
+    }
+}
@@ -0,0 +1,38 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ファイルに追記する（BLE_SINK_FILE）。JSON なら1行1広告の NDJSON になる。
+ * 書けなかったら閉じて、次に書くときに開き直す（移されたり消されたりしても書けてしまうので、logrotate では copytruncate を使う）。
+ */
+final class FileSink extends StreamSink {
+    private final Path path;
+    private FileChannel ch;
+
+    FileSink(Path path, int producers, int capacity, SpscRing.OverflowPolicy policy, boolean newline) {
+        super("file", producers, capacity, policy, newline);
+        this.path = path;
+    }
+
+    @Override
+    protected WritableByteChannel open() throws IOException {
+        if (ch == null) ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return ch;
+    }
+
+    @Override
+    protected void broken() {
+        try { if (ch != null) ch.close(); } catch (IOException ignore) {}
+        ch = null;
+    }
+
+    @Override
+    protected void closeOutput() throws IOException {
+        if (ch != null) ch.close();
+    }
+}
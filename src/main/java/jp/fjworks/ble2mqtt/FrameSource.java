@@ -0,0 +1,14 @@
+package jp.fjworks.ble2mqtt;
+
+import jp.fjworks.ble2mqtt.adv.FramePool;
+
+/**
+ * HCI monitor フレームの入力元（実機の {@link HciMonitor} か、キャプチャを再生する {@link CaptureReplay}）。
+ * どちらも受け取ったフレームを AdvParsers.parse に通し、コールバックへ広告を渡す。
+ */
+public interface FrameSource extends AutoCloseable {
+    void start();
+    FramePool getFramePool();
+    @Override
+    void close();
+}
@@ -1,21 +1,35 @@
 package jp.fjworks.ble2mqtt;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.BlockingQueue;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.Memory;
 import jnr.ffi.Pointer;
-import jp.fjworks.ble2mqtt.adv.Adv;
 import jp.fjworks.ble2mqtt.adv.AdvParser;
 import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.Frame;
+import jp.fjworks.ble2mqtt.adv.FramePool;
 
-public final class HciMonitor implements AutoCloseable, Runnable {
+public final class HciMonitor implements FrameSource, Runnable {
 
-    BlockingQueue<Adv> outQ;
-    public HciMonitor(BlockingQueue<Adv> outQ) {
-        this.outQ = outQ;
+    AdvParser.OnParsedCallback out;
+    private final int batch;
+    private final FramePool pool;
+    public HciMonitor(AdvParser.OnParsedCallback out) {
+        this(out, 16, 2048);
+    }
+    /**
+     * @param batch recvmmsg 1回で受け取る最大フレーム数
+     * @param maxFrames 受信バッファ（フレーム）プールの上限。送信待ちの広告が参照している分も含む
+     */
+    public HciMonitor(AdvParser.OnParsedCallback out, int batch, int maxFrames) {
+        this.out = out;
+        this.batch = batch;
+        jnr.ffi.Runtime rt = jnr.ffi.Runtime.getSystemRuntime();
+        this.pool = new FramePool(FRAME_SIZE, Math.min(maxFrames, Math.max(batch * 2, 256)), maxFrames,
+            b -> Pointer.wrap(rt, b).address());
     }
     // ---- libc bindings ----
     public interface LibC {
@@ -23,7 +37,13 @@ public final class HciMonitor implements AutoCloseable, Runnable {
         int socket(int domain, int type, int protocol);
         int bind(int sockfd, Pointer addr, int addrlen);
         int read(int fd, Pointer buf, int count);
+        int write(int fd, byte[] buf, int count);
         int close(int fd);
+        int poll(Pointer fds, int nfds, int timeout);
+        int recvmmsg(int sockfd, Pointer msgvec, int vlen, int flags, Pointer timeout);
+        int eventfd(int initval, int flags);
+        int setsockopt(int sockfd, int level, int optname, Pointer optval, int optlen);
+        int getsockopt(int sockfd, int level, int optname, Pointer optval, Pointer optlen);
     }
 
     // constants (from hci(7) / bluez headers)
@@ -33,13 +53,54 @@ public final class HciMonitor implements AutoCloseable, Runnable {
     private static final short HCI_DEV_NONE = (short)0xffff;
     private static final short HCI_CHANNEL_MONITOR = 0x02; // passive monitor
     // monitor header（hci_mon_hdr）
-    private static final int MON_HDR_SIZE = 6;
-    private static final int MON_OPCODE_EVENT = 3;    // HCI_MON_EVENT_PKT
+    static final int MON_HDR_SIZE = 6;
+    static final int MON_OPCODE_EVENT = 3;    // HCI_MON_EVENT_PKT
+    // poll(2) / recvmmsg(2) / eventfd(2)
+    private static final short POLLIN = 0x0001;
+    private static final int MSG_DONTWAIT = 0x40;
+    private static final int EFD_NONBLOCK = 0x800;
+    private static final int EFD_CLOEXEC  = 0x80000;
+    // getsockopt(SO_MEMINFO): u32[SK_MEMINFO_VARS]
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_MEMINFO = 55;
+    private static final int SK_MEMINFO_RMEM_ALLOC = 0;
+    private static final int SK_MEMINFO_DROPS = 8;
+    private static final int SK_MEMINFO_VARS = 9;
+    private static final int EINTR  = 4;
+    private static final int EAGAIN = 11;
+    private static final int POLL_TIMEOUT_MS = 1000;
+
+    // LE Meta イベントは monitor ヘッダ込みで最大 6+2+255 バイト。これより長いフレーム（ACL等）は切り詰められるが使わない
+    static final int FRAME_SIZE = 512;
 
     private final Thread th = new Thread(this, "hci-monitor");
     private volatile boolean running;
     private int fd = -1;
+    private int wakeFd = -1; // close() から poll を起こすための eventfd
+    private boolean kernelFilter = true;
+    private int filterIndex = -1;
+    private CaptureRecorder recorder;
+    private final LongAdder framesRead = new LongAdder();
+    private final LongAdder recvCalls = new LongAdder();
+
+    /**
+     * start() 前に呼ぶ。有効ならカーネル側（BPF）で対応する LE Meta サブイベント以外を捨てる。
+     * @param adapterIndex 受け取るアダプタ番号。負なら全アダプタ
+     */
+    public void setKernelFilter(boolean enabled, int adapterIndex) {
+        this.kernelFilter = enabled;
+        this.filterIndex = adapterIndex;
+    }
 
+    /**
+     * start() 前に呼ぶ。受信したフレームを解析の前に recorder へ渡して記録させる。
+     * カーネルフィルタが有効なら、記録されるのもそれを通ったフレームだけ。
+     */
+    public void setRecorder(CaptureRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
     public void start() {
         if (running) return;
         // sockaddr_hci
@@ -53,6 +114,18 @@ public final class HciMonitor implements AutoCloseable, Runnable {
         if (fd < 0) throw new RuntimeException("socket(AF_BLUETOOTH) failed");
         int rc = LibC.INSTANCE.bind(fd, sa, 6);
         if (rc < 0) throw new RuntimeException("bind(HCI_MONITOR) failed");
+        if (kernelFilter) {
+            // 付けられなくても Java 側で同じ判定をしているので、警告だけ出して続ける
+            HciSocketFilter filter = HciSocketFilter.build(AdvParsers.getInstance().getSupportedSubevents(), filterIndex);
+            if (filter.attach(LibC.INSTANCE, rt, fd) < 0) {
+                System.err.println("[HCI] SO_ATTACH_FILTER failed: errno=" + rt.getLastError());
+            } else {
+                System.out.println("[HCI] kernel filter attached (" + filter.length() + " insns"
+                    + (filterIndex >= 0 ? ", hci" + filterIndex : "") + ").");
+            }
+        }
+        wakeFd = LibC.INSTANCE.eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+        if (wakeFd < 0) throw new RuntimeException("eventfd failed");
 
         running = true;
         th.setDaemon(true);
@@ -60,41 +133,149 @@ public final class HciMonitor implements AutoCloseable, Runnable {
         System.out.println("[HCI] monitor started.");
     }
 
+    @Override
+    public FramePool getFramePool() {
+        return pool;
+    }
+
     @Override
     public void close() {
         running = false;
-        try { th.join(300); } catch (InterruptedException ignore) {}
+        if (wakeFd >= 0) LibC.INSTANCE.write(wakeFd, new byte[] { 1, 0, 0, 0, 0, 0, 0, 0 }, 8);
+        try { th.join(1000); } catch (InterruptedException ignore) {}
         if (fd >= 0) LibC.INSTANCE.close(fd);
+        if (wakeFd >= 0) LibC.INSTANCE.close(wakeFd);
         fd = -1;
+        wakeFd = -1;
     }
 
     @Override
     public void run() {
-        final int MEM_SIZE = 4096;
         jnr.ffi.Runtime rt = jnr.ffi.Runtime.getSystemRuntime();
-        Pointer buf = Memory.allocate(rt, MEM_SIZE);
-        ByteBuffer bbuf = ByteBuffer.wrap((byte[])buf.array()).order(ByteOrder.LITTLE_ENDIAN);
+        LibC libc = LibC.INSTANCE;
+
+        // 受信スロット batch 個にプールのフレームを割り当てておき、受信したら差し替える
+        Frame[] frames = new Frame[batch];
+        for (int i = 0; i < batch; i++) frames[i] = pool.acquire();
+
+        // struct iovec[batch] / struct mmsghdr[batch]（ポインタ幅 P で配置が変わる）
+        int P = rt.addressSize();
+        int iovSize = 2 * P;
+        int msgLenOff = 7 * P;              // sizeof(struct msghdr)
+        int mmsgSize = align(msgLenOff + 4, P);
+        Pointer iovs = Memory.allocateDirect(rt, iovSize * batch, true);
+        Pointer msgs = Memory.allocateDirect(rt, mmsgSize * batch, true);
+        for (int i = 0; i < batch; i++) {
+            putAddress(iovs, i * iovSize, frames[i].address(), P);
+            putAddress(iovs, i * iovSize + P, FRAME_SIZE, P);
+            int m = i * mmsgSize;
+            putAddress(msgs, m + 2 * P, iovs.address() + (long)i * iovSize, P); // msg_iov
+            putAddress(msgs, m + 3 * P, 1, P);                                   // msg_iovlen
+        }
+
+        // struct pollfd[2]: 監視ソケットと停止用 eventfd
+        Pointer pfds = Memory.allocateDirect(rt, 16, true);
+        pfds.putInt(0, fd);
+        pfds.putShort(4, POLLIN);
+        pfds.putInt(8, wakeFd);
+        pfds.putShort(12, POLLIN);
+
         AdvParsers parser = AdvParsers.getInstance();
+        CaptureRecorder rec = recorder;
         while (running) {
-            int n = LibC.INSTANCE.read(fd, buf, MEM_SIZE);
-            if (n <= 0) continue; //TODO NIO的な待ちかたをさせたい。たぶんサイズ１のブロッキングキューに突っ込むが正解。（でも空ループは止まらないのでは。）
-
-            // parse monitor header
-            int op   = Short.toUnsignedInt(bbuf.getShort(0));   // opcode
-            int idx  = Short.toUnsignedInt(bbuf.getShort(2));   // index (unused here)
-            int len  = Short.toUnsignedInt(bbuf.getShort(4));   // payload length
-            if (MON_OPCODE_EVENT != op || n < MON_HDR_SIZE + len) continue;
-
-            int off = MON_HDR_SIZE;
-            // HCI Event packet begins here: evt(1), plen(1), params...
-
-            parser.parse(bbuf, off, new AdvParser.OnParsedCallback() {
-                @Override
-                public void onParsed(Adv adv) {
-                    try {  outQ.put(adv); } catch (InterruptedException e) { };
-                    // System.out.println(adv.toJsonString());
+            pfds.putShort(6, (short)0);
+            pfds.putShort(14, (short)0);
+            int rc = libc.poll(pfds, 2, POLL_TIMEOUT_MS);
+            if (rc < 0) {
+                if (rt.getLastError() == EINTR) continue;
+                System.err.println("[HCI] poll failed: errno=" + rt.getLastError());
+                break;
+            }
+            if (!running || (pfds.getShort(14) & POLLIN) != 0) break;
+            if ((pfds.getShort(6) & POLLIN) == 0) continue;
+
+            // 読めるだけまとめて受け取る
+            while (running) {
+                int n = libc.recvmmsg(fd, msgs, batch, MSG_DONTWAIT, null);
+                if (n <= 0) {
+                    int errno = rt.getLastError();
+                    if (n < 0 && errno != EAGAIN && errno != EINTR) {
+                        System.err.println("[HCI] recvmmsg failed: errno=" + errno);
+                    }
+                    break;
                 }
-            });
+                recvCalls.increment();
+                framesRead.add(n);
+                long nowUs = 0;
+                if (rec != null) {
+                    Instant t = Instant.now(); // まとめて受け取った分は同じ時刻にする
+                    nowUs = t.getEpochSecond() * 1_000_000L + t.getNano() / 1000;
+                }
+                for (int i = 0; i < n; i++) {
+                    int flen = msgs.getInt((long)i * mmsgSize + msgLenOff);
+                    Frame f = frames[i];
+                    if (rec != null) rec.offer(f.buffer(), flen, nowUs);
+                    onFrame(parser, f, flen, out);
+                    f.release(); // 広告が参照していなければここでプールに戻る
+                    frames[i] = pool.acquire();
+                    putAddress(iovs, i * iovSize, frames[i].address(), P);
+                }
+                if (n < batch) break;
+            }
         }
+        for (Frame f: frames) f.release();
+    }
+
+    /** 受信したフレーム数（カーネルフィルタを通ったもの） */
+    public long getFramesRead() {
+        return framesRead.sum();
+    }
+    /** フレームを受け取った recvmmsg の回数。framesRead との比が平均のまとめ数 */
+    public long getRecvCalls() {
+        return recvCalls.sum();
+    }
+    /** 受信キューがあふれてカーネルが捨てたフレーム数（SO_MEMINFO）。取れなければ -1 */
+    public long getKernelDrops() {
+        return meminfo(SK_MEMINFO_DROPS);
+    }
+    /** 受信キューにたまっているバイト数（SO_MEMINFO）。取れなければ -1 */
+    public long getSocketQueueBytes() {
+        return meminfo(SK_MEMINFO_RMEM_ALLOC);
+    }
+
+    private long meminfo(int field) {
+        int s = fd;
+        if (s < 0) return -1;
+        jnr.ffi.Runtime rt = jnr.ffi.Runtime.getSystemRuntime();
+        Pointer buf = Memory.allocate(rt, SK_MEMINFO_VARS * 4);
+        Pointer len = Memory.allocate(rt, 4);
+        len.putInt(0, SK_MEMINFO_VARS * 4);
+        if (LibC.INSTANCE.getsockopt(s, SOL_SOCKET, SO_MEMINFO, buf, len) < 0 || len.getInt(0) < (field + 1) * 4) return -1;
+        return Integer.toUnsignedLong(buf.getInt(field * 4));
+    }
+
+    /** 受信した monitor フレーム（先頭 n バイト）がイベントならレポートを解析して out に渡す */
+    static void onFrame(AdvParsers parser, Frame frame, int n, AdvParser.OnParsedCallback out) {
+        if (n < MON_HDR_SIZE) return;
+        ByteBuffer bbuf = frame.buffer();
+        // parse monitor header
+        int op   = Short.toUnsignedInt(bbuf.getShort(0));   // opcode
+        int idx  = Short.toUnsignedInt(bbuf.getShort(2));   // index
+        int len  = Short.toUnsignedInt(bbuf.getShort(4));   // payload length
+        if (MON_OPCODE_EVENT != op || n < MON_HDR_SIZE + len) return;
+
+        int off = MON_HDR_SIZE;
+        // HCI Event packet begins here: evt(1), plen(1), params...
+
+        parser.parse(frame, off, len, idx, out);
+    }
+
+    private static int align(int v, int a) {
+        return (v + a - 1) / a * a;
+    }
+
+    private static void putAddress(Pointer p, long off, long value, int addressSize) {
+        if (addressSize == 8) p.putLong(off, value);
+        else p.putInt(off, (int)value);
     }
 }
@@ -0,0 +1,276 @@
+package jp.fjworks.ble2mqtt;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+/**
+ * BlueZ の discovery を使わずに、HCI raw ソケットから LE Set (Extended) Scan Parameters / Enable を
+ * 直接送ってスキャンする。スキャン間隔・ウィンドウ（デューティ比）、パッシブ／アクティブ、PHY、
+ * コントローラ側の重複除去を選べる。
+ *
+ * コマンドの送信には CAP_NET_RAW が要る。bluetoothd も同じコントローラでスキャンを操作するので、
+ * BlueZ 側の discovery（bluetoothctl scan on など）とは同時に使わないこと。
+ */
+public final class HciScanControl implements ScanControl {
+    /** LE Set Scan Enable の Filter_Duplicates。RESET は extended のみ（スキャン周期ごとにリセット） */
+    public enum DuplicateFilter {
+        OFF, ON, RESET;
+
+        public static DuplicateFilter parse(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    // hci(7) / bluez headers
+    private static final int AF_BLUETOOTH = 31;
+    private static final int SOCK_RAW     = 3;
+    private static final int BTPROTO_HCI  = 1;
+    private static final short HCI_CHANNEL_RAW = 0;
+    private static final int SOL_HCI    = 0;
+    private static final int HCI_FILTER = 2;
+    private static final int HCI_COMMAND_PKT = 0x01;
+    private static final int HCI_EVENT_PKT   = 0x04;
+    private static final int EVT_CMD_COMPLETE = 0x0e;
+    private static final int EVT_CMD_STATUS   = 0x0f;
+    private static final short POLLIN = 0x0001;
+    private static final int CMD_TIMEOUT_MS = 2000;
+
+    // OGF 0x08 (LE Controller)
+    private static final int LE_READ_LOCAL_FEATURES     = 0x2003;
+    private static final int LE_SET_SCAN_PARAMETERS     = 0x200b;
+    private static final int LE_SET_SCAN_ENABLE         = 0x200c;
+    private static final int LE_SET_EXT_SCAN_PARAMETERS = 0x2041;
+    private static final int LE_SET_EXT_SCAN_ENABLE     = 0x2042;
+    private static final int FEATURE_LE_EXTENDED_ADV = 12; // LE Supported Features のビット
+
+    /** Scanning_PHYs のビット */
+    public static final int PHY_1M = 0x01, PHY_CODED = 0x04;
+
+    private final int devIndex;
+    private final boolean active;
+    private final int interval; // 0.625ms 単位
+    private final int window;
+    private final int phys;
+    private final DuplicateFilter dupFilter;
+    private final Boolean extended; // null なら LE Supported Features で決める
+
+    private int fd = -1;
+    private boolean useExtended;
+    private boolean startedByUs;
+    // 負荷に応じて setLevel で変える分（0 段階では window / dupFilter と同じ）
+    private int curWindow;
+    private DuplicateFilter curDup;
+
+    /**
+     * @param intervalMs スキャン間隔（ms、0.625ms 単位に丸める）
+     * @param windowMs   そのうち実際に受信する時間（ms）。intervalMs と同じなら常時受信
+     * @param phys       PHY_1M / PHY_CODED の組み合わせ（PHY_CODED は extended のときだけ）
+     * @param extended   extended のコマンドを使うか。null なら対応していれば使う
+     */
+    public HciScanControl(int devIndex, boolean active, double intervalMs, double windowMs, int phys,
+            DuplicateFilter dupFilter, Boolean extended) {
+        this.devIndex = devIndex;
+        this.active = active;
+        this.interval = toSlots(intervalMs);
+        this.window = Math.min(toSlots(windowMs), this.interval);
+        this.phys = phys;
+        this.dupFilter = dupFilter;
+        this.extended = extended;
+        this.curWindow = window;
+        this.curDup = dupFilter;
+    }
+
+    private static int toSlots(double ms) {
+        return Math.max(0x0004, Math.min(0x4000, (int)Math.round(ms / 0.625)));
+    }
+
+    /** "1m" / "coded" / "1m,coded" */
+    public static int parsePhys(String s) {
+        int phys = 0;
+        for (String p: s.split(",")) {
+            switch (p.trim().toLowerCase()) {
+                case "1m":    phys |= PHY_1M; break;
+                case "coded": phys |= PHY_CODED; break;
+                default: throw new IllegalArgumentException(String.format("unknown scan PHY: %s", p));
+            }
+        }
+        return phys;
+    }
+
+    private void open() {
+        if (fd >= 0) return;
+        HciMonitor.LibC libc = HciMonitor.LibC.INSTANCE;
+        jnr.ffi.Runtime rt = jnr.ffi.Runtime.getSystemRuntime();
+        fd = libc.socket(AF_BLUETOOTH, SOCK_RAW, BTPROTO_HCI);
+        if (fd < 0) throw new RuntimeException("socket(AF_BLUETOOTH) failed");
+        Pointer sa = Memory.allocate(rt, 6);
+        sa.putShort(0, (short)AF_BLUETOOTH);
+        sa.putShort(2, (short)devIndex);
+        sa.putShort(4, HCI_CHANNEL_RAW);
+        if (libc.bind(fd, sa, 6) < 0) {
+            closeSocket();
+            throw new RuntimeException("bind(hci" + devIndex + ") failed: errno=" + rt.getLastError());
+        }
+        // struct hci_ufilter { u32 type_mask; u32 event_mask[2]; u16 opcode; }: Command Complete / Status だけ受け取る
+        Pointer flt = Memory.allocate(rt, 16);
+        flt.putInt(0, 1 << HCI_EVENT_PKT);
+        flt.putInt(4, (1 << EVT_CMD_COMPLETE) | (1 << EVT_CMD_STATUS));
+        flt.putInt(8, 0);
+        flt.putShort(12, (short)0);
+        if (libc.setsockopt(fd, SOL_HCI, HCI_FILTER, flt, 16) < 0) {
+            closeSocket();
+            throw new RuntimeException("setsockopt(HCI_FILTER) failed: errno=" + rt.getLastError());
+        }
+    }
+
+    @Override
+    public void ensureScanning() throws Exception {
+        if (startedByUs) return;
+        open();
+        useExtended = extended != null ? extended : supportsExtended();
+        if (!useExtended && (phys & PHY_CODED) != 0) System.out.println("[HCI] Coded PHY needs extended scanning; using 1M only");
+        configure();
+        startedByUs = true;
+        System.out.printf("[HCI] scan started on hci%d (%s, %s, interval=%.2fms window=%.2fms, dup=%s)%n",
+            devIndex, useExtended ? "extended" : "legacy", active ? "active" : "passive",
+            interval * 0.625, window * 0.625, dupFilter);
+    }
+
+    /**
+     * 段階ごとにウィンドウを半分にし（デューティ比を下げる）、重複を受け取らない段階ではコントローラ側の重複除去を入れる。
+     * RSSI・UUID での絞り込みはコントローラにないので使わない。
+     */
+    @Override
+    public boolean setLevel(ScanLevel level) throws Exception {
+        if (!startedByUs) return false;
+        int i = level.getIndex();
+        curWindow = Math.max(0x0004, window >> i);
+        curDup = !level.isDuplicates() && dupFilter == DuplicateFilter.OFF ? DuplicateFilter.ON : dupFilter;
+        configure();
+        System.out.printf("[HCI] scan window=%.2fms dup=%s on hci%d%n", curWindow * 0.625, curDup, devIndex);
+        return true;
+    }
+
+    /** curWindow / curDup でスキャンし直す */
+    private void configure() {
+        // パラメータはスキャン中には変えられないので、いったん止める（止まっていればエラーになるが無視）
+        setEnable(false);
+        int st;
+        if (useExtended) {
+            st = command(LE_SET_EXT_SCAN_PARAMETERS, extParams());
+        } else {
+            st = command(LE_SET_SCAN_PARAMETERS, new byte[] {
+                (byte)(active ? 1 : 0),
+                (byte)interval, (byte)(interval >> 8),
+                (byte)curWindow, (byte)(curWindow >> 8),
+                0, // own address: public
+                0, // filter policy: accept all
+            });
+        }
+        if (st != 0) throw new RuntimeException(String.format("LE Set Scan Parameters failed: status=0x%02x", st));
+        st = setEnable(true);
+        if (st != 0) throw new RuntimeException(String.format("LE Set Scan Enable failed: status=0x%02x", st));
+    }
+
+    private byte[] extParams() {
+        int n = Integer.bitCount(phys & (PHY_1M | PHY_CODED));
+        byte[] p = new byte[3 + 5 * n];
+        p[0] = 0; // own address: public
+        p[1] = 0; // filter policy: accept all
+        p[2] = (byte)(phys & (PHY_1M | PHY_CODED));
+        for (int i = 0; i < n; i++) {
+            int o = 3 + 5 * i;
+            p[o] = (byte)(active ? 1 : 0);
+            p[o + 1] = (byte)interval;
+            p[o + 2] = (byte)(interval >> 8);
+            p[o + 3] = (byte)curWindow;
+            p[o + 4] = (byte)(curWindow >> 8);
+        }
+        return p;
+    }
+
+    private int setEnable(boolean on) {
+        int dup = on ? curDup.ordinal() : 0;
+        if (useExtended) {
+            // 通常は Duration / Period とも 0（止めるまで続ける）。
+            // RESET は周期が要るので 1.28s 周期で 1.27s ずつスキャンする（周期ごとに重複除去がリセットされる）
+            int duration = on && curDup == DuplicateFilter.RESET ? 127 : 0; // 10ms 単位
+            int period   = on && curDup == DuplicateFilter.RESET ? 1 : 0;   // 1.28s 単位
+            return command(LE_SET_EXT_SCAN_ENABLE, new byte[] { (byte)(on ? 1 : 0), (byte)dup,
+                (byte)duration, (byte)(duration >> 8), (byte)period, (byte)(period >> 8) });
+        }
+        return command(LE_SET_SCAN_ENABLE, new byte[] { (byte)(on ? 1 : 0), (byte)Math.min(dup, 1) });
+    }
+
+    private boolean supportsExtended() {
+        byte[] rp = new byte[9];
+        if (command(LE_READ_LOCAL_FEATURES, new byte[0], rp) != 0) return false;
+        int byteIdx = 1 + FEATURE_LE_EXTENDED_ADV / 8; // rp[0] は status
+        return (rp[byteIdx] & (1 << (FEATURE_LE_EXTENDED_ADV % 8))) != 0;
+    }
+
+    private int command(int opcode, byte[] params) {
+        return command(opcode, params, null);
+    }
+
+    /**
+     * コマンドを送り、対応する Command Complete / Status の status を返す。
+     * rp があれば Command Complete の戻り値（status 以降）をコピーする。
+     */
+    private int command(int opcode, byte[] params, byte[] rp) {
+        HciMonitor.LibC libc = HciMonitor.LibC.INSTANCE;
+        jnr.ffi.Runtime rt = jnr.ffi.Runtime.getSystemRuntime();
+        byte[] pkt = new byte[4 + params.length];
+        pkt[0] = HCI_COMMAND_PKT;
+        pkt[1] = (byte)opcode;
+        pkt[2] = (byte)(opcode >> 8);
+        pkt[3] = (byte)params.length;
+        System.arraycopy(params, 0, pkt, 4, params.length);
+        if (libc.write(fd, pkt, pkt.length) != pkt.length) {
+            throw new RuntimeException(String.format("HCI command 0x%04x write failed: errno=%d", opcode, rt.getLastError()));
+        }
+
+        Pointer pfd = Memory.allocateDirect(rt, 8, true);
+        Pointer buf = Memory.allocateDirect(rt, 260, true);
+        long deadline = System.currentTimeMillis() + CMD_TIMEOUT_MS;
+        while (true) {
+            int remain = (int)(deadline - System.currentTimeMillis());
+            if (remain <= 0) break;
+            pfd.putInt(0, fd);
+            pfd.putShort(4, POLLIN);
+            pfd.putShort(6, (short)0);
+            if (libc.poll(pfd, 1, remain) <= 0) continue;
+            int n = libc.read(fd, buf, 260);
+            if (n < 3 || (buf.getByte(0) & 0xFF) != HCI_EVENT_PKT) continue;
+            int evt = buf.getByte(1) & 0xFF;
+            if (evt == EVT_CMD_COMPLETE && n >= 7 && (buf.getShort(4) & 0xFFFF) == opcode) {
+                if (rp != null) buf.get(6, rp, 0, Math.min(rp.length, n - 6));
+                return buf.getByte(6) & 0xFF;
+            }
+            if (evt == EVT_CMD_STATUS && n >= 7 && (buf.getShort(5) & 0xFFFF) == opcode) {
+                int st = buf.getByte(3) & 0xFF;
+                if (st != 0) return st; // 成功なら後から Command Complete が来る
+            }
+        }
+        throw new RuntimeException(String.format("HCI command 0x%04x timed out", opcode));
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (startedByUs) {
+                int st = setEnable(false);
+                System.out.printf("[HCI] scan stopped on hci%d (status=0x%02x)%n", devIndex, st);
+            }
+        } catch (Exception e) {
+            System.out.println("[HCI] scan stop skipped: " + e.getMessage());
+        }
+        startedByUs = false;
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        if (fd >= 0) HciMonitor.LibC.INSTANCE.close(fd);
+        fd = -1;
+    }
+}
@@ -0,0 +1,123 @@
+package jp.fjworks.ble2mqtt;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+/**
+ * HCI 監視ソケットに付ける classic BPF（SO_ATTACH_FILTER）。
+ * LE Meta イベントのうち指定したサブイベントだけを通し、それ以外（コマンド・ACL・他のイベント）は
+ * カーネル内で捨てる。adapterIndex を指定すればそのアダプタのものだけを通す。
+ *
+ * 監視ソケットが受け取るフレーム:
+ * <pre>
+ *  0: opcode(LE16)  2: index(LE16)  4: len(LE16)  6: evt(1)  7: plen(1)  8: subevt(1) ...
+ * </pre>
+ * BPF の ldh はビッグエンディアンで読むので、16bit値は ldb で1バイトずつ、または入れ替えた値と比べる。
+ */
+final class HciSocketFilter {
+    // linux/filter.h
+    private static final int BPF_LD = 0x00, BPF_JMP = 0x05, BPF_RET = 0x06;
+    private static final int BPF_B = 0x10, BPF_H = 0x08, BPF_ABS = 0x20;
+    private static final int BPF_JA = 0x00, BPF_JEQ = 0x10, BPF_K = 0x00;
+    private static final int LDB = BPF_LD | BPF_B | BPF_ABS;
+    private static final int LDH = BPF_LD | BPF_H | BPF_ABS;
+    private static final int JEQ = BPF_JMP | BPF_JEQ | BPF_K;
+    private static final int RET = BPF_RET | BPF_K;
+    private static final int ACCEPT_ALL = 0x40000; // 戻り値は残す長さ。フレーム全体を残す
+
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_ATTACH_FILTER = 26;
+
+    private static final int MON_OPCODE_EVENT = 3;
+    private static final int EVT_LE_META = 0x3E;
+
+    /** struct sock_filter { u16 code; u8 jt; u8 jf; u32 k; } */
+    private static final int INSN_SIZE = 8;
+
+    /** 命令列。飛び先は後で解決するので REJECT/ACCEPT を仮の番号で持つ */
+    private final List<int[]> prog = new ArrayList<>();
+    private static final int NEXT = 0, REJECT = -1, ACCEPT = -2;
+
+    private HciSocketFilter() {}
+
+    /**
+     * @param subevents 通す LE Meta サブイベント（0x02 / 0x0d / 0x0f など）
+     * @param adapterIndex 通すアダプタ番号（hciN の N）。負なら全アダプタ
+     */
+    static HciSocketFilter build(int[] subevents, int adapterIndex) {
+        HciSocketFilter f = new HciSocketFilter();
+        f.load(LDB, 0).jeq(MON_OPCODE_EVENT & 0xFF, NEXT, REJECT);
+        f.load(LDB, 1).jeq(MON_OPCODE_EVENT >> 8, NEXT, REJECT);
+        if (adapterIndex >= 0) {
+            int swapped = ((adapterIndex & 0xFF) << 8) | ((adapterIndex >> 8) & 0xFF);
+            f.load(LDH, 2).jeq(swapped, NEXT, REJECT);
+        }
+        f.load(LDB, 6).jeq(EVT_LE_META, NEXT, REJECT);
+        f.load(LDB, 8);
+        for (int s: subevents) f.jeq(s, ACCEPT, NEXT);
+        f.ret(0);          // REJECT
+        f.ret(ACCEPT_ALL); // ACCEPT
+        return f;
+    }
+
+    int length() {
+        return prog.size();
+    }
+
+    private HciSocketFilter load(int code, int off) {
+        prog.add(new int[] { code, NEXT, NEXT, off });
+        return this;
+    }
+    private HciSocketFilter jeq(int k, int jt, int jf) {
+        prog.add(new int[] { JEQ, jt, jf, k });
+        return this;
+    }
+    private HciSocketFilter ret(int k) {
+        prog.add(new int[] { RET, NEXT, NEXT, k });
+        return this;
+    }
+
+    /** 命令列を struct sock_filter[] として書き出す（末尾2命令が REJECT / ACCEPT） */
+    private Pointer insns(jnr.ffi.Runtime rt) {
+        int n = prog.size();
+        int reject = n - 2, accept = n - 1;
+        Pointer p = Memory.allocateDirect(rt, n * INSN_SIZE, true);
+        for (int i = 0; i < n; i++) {
+            int[] ins = prog.get(i);
+            int off = i * INSN_SIZE;
+            p.putShort(off, (short)ins[0]);
+            if (ins[0] == JEQ) {
+                p.putByte(off + 2, (byte)target(ins[1], i, reject, accept));
+                p.putByte(off + 3, (byte)target(ins[2], i, reject, accept));
+            }
+            p.putInt(off + 4, ins[3]);
+        }
+        return p;
+    }
+
+    /** 飛び先を「次の命令から何個先か」に直す */
+    private static int target(int t, int i, int reject, int accept) {
+        int to = t == REJECT ? reject : t == ACCEPT ? accept : i + 1;
+        int d = to - (i + 1);
+        if (d > 0xFF) throw new IllegalStateException("BPF jump too far: " + d);
+        return d;
+    }
+
+    /** setsockopt(fd, SOL_SOCKET, SO_ATTACH_FILTER, &sock_fprog) */
+    int attach(HciMonitor.LibC libc, jnr.ffi.Runtime rt, int fd) {
+        Pointer insns = insns(rt);
+        // struct sock_fprog { unsigned short len; struct sock_filter *filter; }
+        int P = rt.addressSize();
+        Pointer fprog = Memory.allocateDirect(rt, 2 * P, true);
+        fprog.putShort(0, (short)prog.size());
+        if (P == 8) fprog.putLong(P, insns.address());
+        else fprog.putInt(P, (int)insns.address());
+        int rc = libc.setsockopt(fd, SOL_SOCKET, SO_ATTACH_FILTER, fprog, 2 * P);
+        Reference.reachabilityFence(insns); // カーネルがコピーし終わるまで解放させない
+        return rc;
+    }
+}
@@ -0,0 +1,74 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 待ち時間のヒストグラム。HdrHistogram と同じく2のべき乗ごとの区間を16等分したバケットに数える
+ * （相対誤差 1/16 以内、固定サイズで記録時に確保しない）。値はマイクロ秒。
+ * record は複数スレッドから呼べる。percentile はそのときの近似値。
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40; // 2^41µs（約25日）以上は最後のバケットに入れる
+    private static final int BUCKETS = SUB + (MAX_EXP - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int)v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        if (e > MAX_EXP) return BUCKETS - 1;
+        int sub = (int)(v >>> (e - SUB_BITS)) & (SUB - 1);
+        return SUB + (e - SUB_BITS) * SUB + sub;
+    }
+
+    /** バケットに入る最大の値 */
+    private static long upper(int i) {
+        if (i < SUB) return i;
+        int e = (i - SUB) / SUB + SUB_BITS;
+        int sub = (i - SUB) % SUB;
+        return ((long)(SUB + sub + 1) << (e - SUB_BITS)) - 1;
+    }
+
+    /** q（0〜1）分位の値（マイクロ秒）。記録がなければ 0 */
+    public long percentile(double q) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upper(i), getMax());
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+    /** 合計（マイクロ秒） */
+    public long getSum() {
+        return sum.sum();
+    }
+    public long getMax() {
+        return max.get();
+    }
+}
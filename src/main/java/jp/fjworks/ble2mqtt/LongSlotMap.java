@@ -0,0 +1,155 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.Arrays;
+
+/**
+ * long キー（詰めたMACアドレスなど）→ スロット番号 の有界オープンアドレス表。
+ * 値は呼び出し側がスロット番号で引く並列配列に持つ（ボクシングなし）。
+ *
+ * スロット番号はエントリが生きている間は変わらない。満杯で insert すると、
+ * 巡回カーソルから数スロットを見て最も古く触られたものを追い出す（近似LRU）。
+ */
+public final class LongSlotMap {
+    public interface EvictionListener {
+        /** slot のエントリ（key）が追い出される直前に呼ばれる */
+        void onEvict(int slot, long key);
+    }
+
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final int[] table;   // slot+1（0 は空き）
+    private final int tmask;
+    private final long[] keys;
+    private final long[] stamps;
+    private final boolean[] used;
+    private final int[] freeSlots;
+    private int freeTop;
+    private int size;
+    private int evictCursor;
+    private long evictions;
+    private EvictionListener evictionListener;
+
+    public LongSlotMap(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException(String.format("invalid capacity: %d", capacity));
+        int tsize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2; // 負荷率 0.5 以下
+        this.table = new int[tsize];
+        this.tmask = tsize - 1;
+        this.keys = new long[capacity];
+        this.stamps = new long[capacity];
+        this.used = new boolean[capacity];
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) freeSlots[i] = capacity - 1 - i;
+        this.freeTop = capacity;
+    }
+
+    public void setEvictionListener(EvictionListener l) {
+        this.evictionListener = l;
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    /** @return スロット番号。なければ -1 */
+    public int find(long key) {
+        for (int i = mix(key) & tmask; ; i = (i + 1) & tmask) {
+            int ref = table[i];
+            if (ref == 0) return -1;
+            if (keys[ref - 1] == key) return ref - 1;
+        }
+    }
+
+    /** key が無いことを確認してから呼ぶこと。満杯なら1件追い出す */
+    public int insert(long key, long stamp) {
+        if (freeTop == 0) evictOne();
+        int slot = freeSlots[--freeTop];
+        keys[slot] = key;
+        stamps[slot] = stamp;
+        used[slot] = true;
+        int i = mix(key) & tmask;
+        while (table[i] != 0) i = (i + 1) & tmask;
+        table[i] = slot + 1;
+        size++;
+        return slot;
+    }
+
+    public void touch(int slot, long stamp) {
+        stamps[slot] = stamp;
+    }
+
+    public boolean remove(long key) {
+        int i = mix(key) & tmask;
+        while (true) {
+            int ref = table[i];
+            if (ref == 0) return false;
+            if (keys[ref - 1] == key) break;
+            i = (i + 1) & tmask;
+        }
+        int slot = table[i] - 1;
+        // 線形探査の後方シフト削除
+        int j = i;
+        while (true) {
+            j = (j + 1) & tmask;
+            int ref = table[j];
+            if (ref == 0) break;
+            int home = mix(keys[ref - 1]) & tmask;
+            // home が (i, j] の外にあるなら i へ詰められる
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                table[i] = ref;
+                i = j;
+            }
+        }
+        table[i] = 0;
+        used[slot] = false;
+        freeSlots[freeTop++] = slot;
+        size--;
+        return true;
+    }
+
+    private void evictOne() {
+        int cap = keys.length;
+        int victim = -1;
+        for (int n = 0; n < EVICTION_SAMPLES; n++) {
+            int s = evictCursor;
+            evictCursor = (evictCursor + 1) % cap;
+            if (used[s] && (victim < 0 || stamps[s] < stamps[victim])) victim = s;
+        }
+        if (victim < 0) { // 満杯なので必ず見つかるはずだが念のため
+            for (int s = 0; s < cap && victim < 0; s++) if (used[s]) victim = s;
+        }
+        long key = keys[victim];
+        if (evictionListener != null) evictionListener.onEvict(victim, key);
+        remove(key);
+        evictions++;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+    public long stampAt(int slot) {
+        return stamps[slot];
+    }
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+    public int size() {
+        return size;
+    }
+    public int capacity() {
+        return keys.length;
+    }
+    public long getEvictions() {
+        return evictions;
+    }
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(used, false);
+        int cap = keys.length;
+        for (int i = 0; i < cap; i++) freeSlots[i] = cap - 1 - i;
+        freeTop = cap;
+        size = 0;
+    }
+}
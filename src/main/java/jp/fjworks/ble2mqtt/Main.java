@@ -4,59 +4,418 @@ import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 
 import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvFilter;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.AdvParsers;
+import jp.fjworks.ble2mqtt.adv.JsonEncoder;
+import jp.fjworks.ble2mqtt.adv.ParseStatus;
 
 public class Main {
   public static void main(String[] args) throws Exception {
     var cfg = MqttCfg.fromEnv();
 
     CountDownLatch quit = new CountDownLatch(1);
-    MqttSubscriber sub = new MqttSubscriber(cfg);
+    // 動作中に設定を変えるための制御用トピック（MQTT_CONTROL_TOPIC を指定したとき）
+    String controlTopic = MqttCfg.env("MQTT_CONTROL_TOPIC", null);
+    MqttSubscriber sub = controlTopic == null ? null : new MqttSubscriber(cfg, controlTopic);
 
     String hciIndex = System.getenv().getOrDefault("BLE_HCI_INDEX", "0");
-    boolean manageScan = "1".equals(System.getenv().getOrDefault("BLE_MANAGE_SCAN", "1"));
+    // キャプチャファイル（btsnoop / pcap）を指定すると実機の代わりにそれを再生する（スキャン制御もしない）
+    String replayPath = MqttCfg.env("BLE_REPLAY", null);
+    boolean manageScan = replayPath == null && "1".equals(System.getenv().getOrDefault("BLE_MANAGE_SCAN", "1"));
 
-    BluezScanControl scanCtrl = manageScan ?  BluezScanControl.withDefaults(hciIndex) : null;
+    // スキャンの制御: bluez（D-Bus の discovery）か hci（LE Set Scan コマンドを直接送る）
+    ScanControl scanCtrl = !manageScan ? null
+        : "hci".equals(MqttCfg.env("BLE_SCAN_BACKEND", "bluez")) ? new HciScanControl(
+            Integer.parseInt(hciIndex),
+            "1".equals(MqttCfg.env("BLE_SCAN_ACTIVE", "0")),
+            Double.parseDouble(MqttCfg.env("BLE_SCAN_INTERVAL_MS", "100")),
+            Double.parseDouble(MqttCfg.env("BLE_SCAN_WINDOW_MS", "100")),
+            HciScanControl.parsePhys(MqttCfg.env("BLE_SCAN_PHYS", "1m")),
+            HciScanControl.DuplicateFilter.parse(MqttCfg.env("BLE_SCAN_FILTER_DUP", "off")),
+            switch (MqttCfg.env("BLE_SCAN_EXTENDED", "auto")) { case "1" -> true; case "0" -> false; default -> null; })
+        : BluezScanControl.withDefaults(hciIndex);
     if (scanCtrl != null) {
       try { scanCtrl.ensureScanning(); }
       catch (Exception e) {
-        System.err.println("[DBus] ensureScanning failed: " + e.getMessage());
+        System.err.println("[SCAN] ensureScanning failed: " + e.getMessage());
       }
     }
 
-    BlockingQueue<Adv> q = new ArrayBlockingQueue<>(1);
+    // HCI読み取りスレッドがブローカ待ちで止まらないよう、既定ではあふれたら古いものから捨てる
+    int qCap = Integer.parseInt(MqttCfg.env("BLE_QUEUE_CAPACITY", "1024"));
+    var qPolicy = SpscRing.OverflowPolicy.parse(MqttCfg.env("BLE_QUEUE_POLICY", "drop_oldest"));
+    // エンコードと送信をするワーカの数。広告は MAC で振り分けるのでデバイスごとの順序は保たれる
+    int workers = Integer.parseInt(MqttCfg.env("BLE_WORKERS", "1"));
+    ShardedRing<Adv> q = new ShardedRing<>(workers, qCap, qPolicy, Adv::getAddress, Adv::release);
+
+    AdvParser.OnParsedCallback toQueue = adv -> {
+      try { q.offer(adv); } catch (InterruptedException e) { adv.release(); Thread.currentThread().interrupt(); }
+    };
+    // 1件ずつ送らず、デバイスごとに窓で集計して窓ごとに1件だけ送る（BLE_AGGREGATE=1 のとき）
+    AdvAggregator aggregator = null;
+    if ("1".equals(MqttCfg.env("BLE_AGGREGATE", "0"))) {
+      String window = MqttCfg.env("BLE_AGG_WINDOW_S", "60");
+      aggregator = new AdvAggregator(
+          Integer.parseInt(MqttCfg.env("BLE_AGG_MAX_DEVICES", "4096")),
+          Integer.parseInt(window),
+          Integer.parseInt(MqttCfg.env("BLE_AGG_STEP_S", window)),
+          q);
+    }
+    // 同じ内容の広告を間引く（BLE_THROTTLE=1 のとき。制御用トピックがあれば後から有効にできるよう作っておく）。
+    // 集計するときはまとめたものしか送らないので使わない
+    boolean throttleOn = "1".equals(System.getenv().getOrDefault("BLE_THROTTLE", "0"));
+    AdvThrottle throttle = aggregator == null && (throttleOn || sub != null)
+        ? new AdvThrottle(
+            Integer.parseInt(MqttCfg.env("BLE_THROTTLE_MAX_DEVICES", "4096")),
+            Long.parseLong(MqttCfg.env("BLE_THROTTLE_HEARTBEAT_MS", "10000")),
+            Integer.parseInt(MqttCfg.env("BLE_THROTTLE_RSSI_DELTA", "0")),
+            toQueue)
+        : null;
+    if (throttle != null) throttle.setEnabled(throttleOn);
+
+    // 受け取るデバイスの許可／拒否（書式は AdvFilter を参照）
+    AdvParsers.getInstance().setFilter(AdvFilter.compile(MqttCfg.env("BLE_FILTER", null)));
 
     MqttPublisher publisher = new MqttPublisher(cfg, q);
-    Thread publishTh = new Thread(publisher);
-    publishTh.setDaemon(true);
+    // MQTT のほかの出力先。エンコードは1回だけで、出力先ごとのキューに同じバイト列を渡す
+    boolean ndjson = !"cbor".equalsIgnoreCase(cfg.payloadFormat);
+    String sinkUnix = MqttCfg.env("BLE_SINK_UNIX", null);
+    if (sinkUnix != null) publisher.addSink(new UnixSocketSink(Path.of(sinkUnix), workers,
+        sinkQueue("UNIX"), sinkPolicy("UNIX"), ndjson));
+    String sinkUdp = MqttCfg.env("BLE_SINK_UDP", null);
+    if (sinkUdp != null) publisher.addSink(new UdpSink(UdpSink.parseTarget(sinkUdp),
+        Integer.parseInt(MqttCfg.env("BLE_SINK_UDP_TTL", "1")), MqttCfg.env("BLE_SINK_UDP_IF", null), workers,
+        sinkQueue("UDP"), sinkPolicy("UDP")));
+    String sinkFile = MqttCfg.env("BLE_SINK_FILE", null);
+    if (sinkFile != null) publisher.addSink(new FileSink(Path.of(sinkFile), workers,
+        sinkQueue("FILE"), sinkPolicy("FILE"), ndjson));
 
-    // 既存: HciMonitor や MQTT ブリッジの起動…
-    HciMonitor hciMon = new HciMonitor(q);
-    hciMon.start();
+    AdvParser.OnParsedCallback in = aggregator != null ? aggregator : throttle != null ? throttle : toQueue;
+    // いま見えているデバイスの表。出入りしたときだけ retained で知らせる（MQTT_PRESENCE_TOPIC を指定したとき）。
+    // 間引く前に置くので、内容が変わらない広告でも「見えている」ことは更新される
+    String presenceTopic = MqttCfg.env("MQTT_PRESENCE_TOPIC", null);
+    PresenceTable presence = presenceTopic == null ? null : new PresenceTable(
+        Integer.parseInt(MqttCfg.env("BLE_PRESENCE_MAX_DEVICES", "4096")),
+        Long.parseLong(MqttCfg.env("BLE_PRESENCE_TTL_S", "60")) * 1000,
+        publisher, presenceTopic, cfg.qos("PRESENCE"),
+        "1".equals(MqttCfg.env("MQTT_PRESENCE_CLEAR", "0")),
+        in);
+    if (presence != null) in = presence;
+    int maxFrames = Integer.parseInt(MqttCfg.env("BLE_FRAME_POOL", "2048"));
+    FrameSource source;
+    CaptureRecorder recorder = null;
+    HciMonitor hciMon = null;
+    CaptureReplay replay = null;
+    if (replayPath != null) {
+      // 実機の代わりにキャプチャを再生する。最後まで流したら送り終わるのを待って終了
+      replay = new CaptureReplay(in, Path.of(replayPath),
+          Double.parseDouble(MqttCfg.env("BLE_REPLAY_SPEED", "1")),
+          Integer.parseInt(MqttCfg.env("BLE_REPLAY_LOOPS", "1")),
+          maxFrames);
+      AdvAggregator agg = aggregator;
+      replay.setOnFinished(() -> {
+        if (agg != null) agg.close(); // 集計中の窓を送ってから待つ
+        long deadline = System.currentTimeMillis() + 30_000;
+        DiskSpool spool = publisher.getSpool();
+        while ((q.size() > 0 || publisher.getInFlight() > 0 || spool != null && spool.getPending() > 0)
+            && System.currentTimeMillis() < deadline) {
+          try { Thread.sleep(100); } catch (InterruptedException e) { break; }
+        }
+        System.exit(0);
+      });
+      source = replay;
+    } else {
+      // 既存: HciMonitor や MQTT ブリッジの起動…
+      hciMon = new HciMonitor(in,
+          Integer.parseInt(MqttCfg.env("BLE_RECV_BATCH", "16")),
+          maxFrames);
+      // 不要なHCIパケットはカーネル側で捨てる（BLE_FILTER_INDEX を指定するとそのアダプタだけ）
+      hciMon.setKernelFilter("1".equals(MqttCfg.env("BLE_KERNEL_FILTER", "1")),
+          Integer.parseInt(MqttCfg.env("BLE_FILTER_INDEX", "-1")));
+      // 受信したフレームを btsnoop に書き残す（BLE_RECORD_DIR を指定したとき）
+      String recordDir = MqttCfg.env("BLE_RECORD_DIR", null);
+      if (recordDir != null) {
+        recorder = new CaptureRecorder(Path.of(recordDir),
+            Integer.parseInt(MqttCfg.env("BLE_RECORD_BUFFER", "1024")),
+            Long.parseLong(MqttCfg.env("BLE_RECORD_MAX_MB", "64")) << 20,
+            Long.parseLong(MqttCfg.env("BLE_RECORD_ROTATE_MIN", "60")) * 60_000,
+            Integer.parseInt(MqttCfg.env("BLE_RECORD_KEEP", "10")));
+        recorder.start();
+        hciMon.setRecorder(recorder);
+      }
+      hciMon.start();
+      source = hciMon;
+    }
 
+    // 受信の負荷を見てスキャンを絞る（BLE_ADAPT=1 のとき。実機でスキャンを制御しているときだけ）
+    AdaptiveScan adapt = null;
+    if (scanCtrl != null && hciMon != null && "1".equals(MqttCfg.env("BLE_ADAPT", "0"))) {
+      HciMonitor mon = hciMon;
+      String uuids = MqttCfg.env("BLE_ADAPT_UUIDS", null);
+      adapt = new AdaptiveScan(scanCtrl, AdvParsers.getInstance()::getAccepted,
+          () -> q.getDropped() + Math.max(0, mon.getKernelDrops()), q,
+          Long.parseLong(MqttCfg.env("BLE_ADAPT_INTERVAL_S", "5")) * 1000,
+          Integer.parseInt(MqttCfg.env("BLE_ADAPT_SUSTAIN", "3")),
+          Integer.parseInt(MqttCfg.env("BLE_ADAPT_RELAX", "12")),
+          Double.parseDouble(MqttCfg.env("BLE_ADAPT_HIGH", "0.5")),
+          Double.parseDouble(MqttCfg.env("BLE_ADAPT_LOW", "0.1")),
+          Long.parseLong(MqttCfg.env("BLE_ADAPT_MAX_RATE", "0")),
+          AdaptiveScan.parseRssiSteps(MqttCfg.env("BLE_ADAPT_RSSI", "-85,-75,-65")),
+          uuids == null ? List.of() : List.of(uuids.split("\\s*,\\s*")),
+          MqttCfg.env("BLE_ADAPT_PATTERN", null));
+      adapt.start();
+    }
+
+    // 統計（Prometheus / JMX / MQTT）
+    Metrics metrics = buildMetrics(hciMon, replay, adapt, q, source, throttle, presence, aggregator, recorder, publisher);
+    if ("1".equals(MqttCfg.env("BLE_METRICS_JMX", "1"))) metrics.registerMBean();
+    String metricsPort = MqttCfg.env("BLE_METRICS_PORT", null);
+    if (metricsPort != null) {
+      metrics.serveHttp(MqttCfg.env("BLE_METRICS_BIND", "127.0.0.1"), Integer.parseInt(metricsPort));
+    }
+    String statsTopic = MqttCfg.env("MQTT_STATS_TOPIC", null);
+    if (statsTopic != null) {
+      long intervalMs = Long.parseLong(MqttCfg.env("MQTT_STATS_INTERVAL_S", "60")) * 1000;
+      Thread statsTh = new Thread(() -> {
+        var json = new JsonEncoder();
+        try {
+          while (true) {
+            Thread.sleep(intervalMs);
+            publisher.publishDirect(statsTopic, metrics.toJson(json), 0, false);
+          }
+        } catch (InterruptedException e) {
+          // 終了
+        }
+      }, "mqtt-stats");
+      statsTh.setDaemon(true);
+      statsTh.start();
+    }
+
+    CaptureRecorder rec = recorder;
+    AdaptiveScan adaptive = adapt;
+    AdvAggregator aggr = aggregator;
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-      try { hciMon.close(); } catch (Exception ignore) {}
+      try { source.close(); } catch (Exception ignore) {}
+      metrics.close();
+      if (presence != null) presence.close();
+      if (aggr != null) aggr.close();
+      try { if (rec != null) rec.close(); } catch (Exception ignore) {}
+      if (adaptive != null) adaptive.close();
       try { if (scanCtrl != null) scanCtrl.close(); } catch (Exception ignore) {}
-      try { sub.close(); } catch (Exception ignore) {}
+      try { if (sub != null) sub.close(); } catch (Exception ignore) {}
       try { publisher.close(); } catch (Exception ignore) {}
+      for (Sink s: publisher.getSinks()) {
+        s.close(); // ワーカが止まってから。残りを書き出す
+        System.out.printf("[SINK] %s written=%d bytes=%d dropped=%d errors=%d%n",
+            s.getName(), s.getWritten(), s.getBytes(), s.getDropped(), s.getErrors());
+      }
+      var lat = publisher.getLatency();
+      System.out.printf("[PUB] acked=%d failed=%d inflight=%d latency p50=%dus p99=%dus max=%dus%n",
+          publisher.getAcked(), publisher.getFailed(), publisher.getInFlight(),
+          lat.percentile(0.5), lat.percentile(0.99), lat.getMax());
+      var spool = publisher.getSpool();
+      if (spool != null) System.out.printf("[SPOOL] pending=%d appended=%d replayed=%d dropped=%d coalesced=%d%n",
+          spool.getPending(), spool.getAppended(), spool.getReplayed(), spool.getDropped(), spool.getCoalesced());
+      System.out.printf("[Q] policy=%s capacity=%d dropped=%d replaced=%d hwm=%d%n",
+          q.getPolicy(), q.capacity(), q.getDropped(), q.getReplaced(), q.getHighWaterMark());
+      var frames = source.getFramePool();
+      System.out.printf("[POOL] frames=%d frameMisses=%d views=%d viewMisses=%d%n",
+          frames.getAllocated(), frames.getMisses(), frames.views().getAllocated(), frames.views().getMisses());
+      AdvFilter flt = AdvParsers.getInstance().getFilter();
+      if (flt != null) System.out.printf("[FLT] accepted=%d rejected=%d rules=%s%n",
+          flt.getAccepted(), flt.getRejected(), flt.getRuleHits());
+      if (rec != null) System.out.printf("[REC] recorded=%d dropped=%d files=%d%n",
+          rec.getRecorded(), rec.getDropped(), rec.getFiles());
+      if (presence != null) System.out.printf("[PRESENCE] devices=%d online=%d offline=%d evicted=%d lost=%d unsent=%d%n",
+          presence.size(), presence.getOnline(), presence.getOffline(), presence.getEvictions(), presence.getLostEvents(), presence.getUnsent());
+      if (aggr != null) System.out.printf("[AGG] aggregated=%d summaries=%d devices=%d evicted=%d%n",
+          aggr.getAggregated(), aggr.getSummaries(), aggr.size(), aggr.getEvictions());
+      if (throttle != null) System.out.printf("[THR] forwarded=%d suppressed=%d devices=%d evicted=%d%n",
+          throttle.getForwarded(), throttle.getSuppressed(), throttle.getTrackedDevices(), throttle.getEvictions());
       quit.countDown();
     }, "shutdown"));
 
-    sub.start(cfg);
-    publishTh.start();
-    hciMon.start();
+    if (sub != null) {
+      MqttPublisher pub = publisher;
+      AdvThrottle thr = throttle;
+      sub.on("filter", v -> AdvParsers.getInstance().setFilter(AdvFilter.compile(v)));
+      if (thr != null) {
+        sub.on("throttle/enabled", v -> thr.setEnabled(parseFlag(v)))
+           .on("throttle/heartbeat_ms", v -> thr.setHeartbeatMillis(Long.parseLong(v)))
+           .on("throttle/rssi_delta", v -> thr.setRssiDelta(Integer.parseInt(v)));
+      }
+      sub.on("batch/max", v -> pub.setBatchMax(Integer.parseInt(v)))
+         .on("batch/ms", v -> pub.setBatchMillis(Long.parseLong(v)))
+         .on("log/level", v -> pub.setDebug(switch (v.toLowerCase()) {
+             case "debug" -> true;
+             case "info" -> false;
+             default -> throw new IllegalArgumentException("log level must be info or debug: " + v);
+           }));
+      sub.start(cfg);
+    }
+    for (Sink s: publisher.getSinks()) s.start();
+    publisher.start();
+    if (presence != null) presence.start();
+    if (aggregator != null) aggregator.start();
+    source.start();
     quit.await();
   }
 
+  /** 出力先ごとのキューの容量（BLE_SINK_<NAME>_QUEUE、なければ BLE_SINK_QUEUE） */
+  private static int sinkQueue(String name) {
+    return Integer.parseInt(MqttCfg.env("BLE_SINK_" + name + "_QUEUE", MqttCfg.env("BLE_SINK_QUEUE", "1024")));
+  }
+  /** 出力先ごとのあふれたときの扱い（BLE_SINK_<NAME>_POLICY、なければ BLE_SINK_POLICY） */
+  private static SpscRing.OverflowPolicy sinkPolicy(String name) {
+    return SpscRing.OverflowPolicy.parse(MqttCfg.env("BLE_SINK_" + name + "_POLICY", MqttCfg.env("BLE_SINK_POLICY", "drop_oldest")));
+  }
+
+  private static boolean parseFlag(String v) {
+    switch (v.toLowerCase()) {
+      case "1": case "true": case "on": return true;
+      case "0": case "false": case "off": return false;
+      default: throw new IllegalArgumentException("expected 1/0: " + v);
+    }
+  }
+
+  private static Metrics buildMetrics(HciMonitor hci, CaptureReplay replay, AdaptiveScan adapt, ShardedRing<Adv> q, FrameSource source,
+      AdvThrottle throttle, PresenceTable presence, AdvAggregator aggregator, CaptureRecorder recorder, MqttPublisher publisher) {
+    Metrics m = new Metrics();
+    if (hci != null) {
+      m.counter("ble_hci_frames_total", "Frames read from the HCI monitor socket", hci::getFramesRead)
+       .counter("ble_hci_recv_calls_total", "recvmmsg calls that returned frames", hci::getRecvCalls)
+       .counter("ble_hci_kernel_drops_total", "Frames dropped by the kernel (socket receive queue full)", hci::getKernelDrops)
+       .gauge("ble_hci_socket_queue_bytes", "Bytes waiting in the socket receive queue", hci::getSocketQueueBytes);
+    }
+    if (adapt != null) {
+      m.gauge("ble_scan_level", "Adaptive scan level (0 = no extra filtering)", adapt::getLevel)
+       .counter("ble_scan_adjustments_total", "Adaptive scan level changes", adapt::getAdjustments)
+       .gauge("ble_scan_ingest_rate", "Reports per second passing the filters at the last adaptive scan sample", adapt::getLastRate);
+    }
+    if (replay != null) {
+      m.counter("ble_replay_frames_total", "Frames replayed from the capture file", replay::getFrames)
+       .counter("ble_replay_skipped_total", "Non-event packets skipped in the capture file", replay::getSkipped);
+    }
+    AdvParsers parsers = AdvParsers.getInstance();
+    for (int sub: parsers.getSupportedSubevents()) {
+      m.counter("ble_hci_le_meta_events_total", "LE Meta events by subevent", "subevent", String.format("0x%02x", sub),
+          () -> parsers.getSubeventCount(sub));
+    }
+    m.counter("ble_hci_other_events_total", "HCI events other than LE Meta", parsers::getOtherEvents)
+     .counter("ble_hci_unsupported_subevents_total", "LE Meta events with an unsupported subevent", parsers::getUnsupported);
+    for (ParseStatus st: ParseStatus.values()) {
+      if (st.isError()) m.counter("ble_parse_errors_total", "Malformed events dropped by the parser", "reason", st.label(),
+          () -> parsers.getParseErrors(st));
+    }
+    // フィルタは制御用トピックで差し替わることがあるので、そのときのものを読む（差し替えると 0 に戻る）
+    m.counter("ble_filter_accepted_total", "Reports accepted by BLE_FILTER", () -> {
+        AdvFilter f = parsers.getFilter();
+        return f == null ? 0 : f.getAccepted();
+      })
+     .counter("ble_filter_rejected_total", "Reports rejected by BLE_FILTER", () -> {
+        AdvFilter f = parsers.getFilter();
+        return f == null ? 0 : f.getRejected();
+      })
+     .counters("ble_filter_rule_hits_total", "Reports matched by each BLE_FILTER rule", "rule", () -> {
+        AdvFilter f = parsers.getFilter();
+        return f == null ? Map.of() : f.getRuleHitCounts();
+      });
+    if (throttle != null) {
+      m.counter("ble_throttle_forwarded_total", "Reports forwarded by the throttle", throttle::getForwarded)
+       .counter("ble_throttle_suppressed_total", "Reports suppressed by the throttle", throttle::getSuppressed)
+       .gauge("ble_throttle_devices", "Devices tracked by the throttle", throttle::getTrackedDevices);
+    }
+    if (aggregator != null) {
+      m.counter("ble_agg_reports_total", "Reports folded into per-device windows", aggregator::getAggregated)
+       .counter("ble_agg_summaries_total", "Window summaries queued for publishing", aggregator::getSummaries)
+       .gauge("ble_agg_devices", "Devices with an open aggregation window", aggregator::size)
+       .counter("ble_agg_evicted_total", "Devices evicted because the aggregation table was full", aggregator::getEvictions);
+    }
+    if (presence != null) {
+      m.gauge("ble_presence_devices", "Devices currently in the presence table", presence::size)
+       .counter("ble_presence_online_total", "Online transitions published", presence::getOnline)
+       .counter("ble_presence_offline_total", "Offline transitions published (timeout or eviction)", presence::getOffline)
+       .counter("ble_presence_evicted_total", "Devices evicted because the presence table was full", presence::getEvictions)
+       .counter("ble_presence_lost_events_total", "Transitions lost because the handoff ring or the resend backlog was full", presence::getLostEvents)
+       .gauge("ble_presence_unsent", "Transitions waiting to be resent after the broker comes back", presence::getUnsent);
+    }
+    if (recorder != null) {
+      m.counter("ble_record_frames_total", "Frames written to the capture file", recorder::getRecorded)
+       .counter("ble_record_dropped_total", "Frames not recorded because the writer fell behind", recorder::getDropped);
+    }
+    m.gauge("ble_queue_depth", "Reports waiting to be published", q::size)
+     .gauge("ble_queue_high_water_mark", "Highest queue depth seen", q::getHighWaterMark)
+     .counter("ble_queue_dropped_total", "Reports dropped on queue overflow", q::getDropped)
+     .counter("ble_queue_replaced_total", "Reports replaced by a newer one from the same device", q::getReplaced);
+    for (int i = 0; i < publisher.getWorkers(); i++) {
+      int w = i;
+      m.counter("ble_worker_reports_total", "Reports encoded by each publish worker", "worker", String.valueOf(w),
+          () -> publisher.getWorkerReports(w));
+    }
+    for (int i = 0; i < q.shards(); i++) {
+      SpscRing<Adv> r = q.shard(i);
+      m.gauge("ble_worker_queue_depth", "Reports waiting for each publish worker", "worker", String.valueOf(i), r::size);
+    }
+    var frames = source.getFramePool();
+    m.gauge("ble_pool_frames", "Frame buffers allocated", frames::getAllocated)
+     .counter("ble_pool_frame_misses_total", "Frame acquisitions that found the pool empty", frames::getMisses)
+     .gauge("ble_pool_views", "Advertisement views allocated", frames.views()::getAllocated)
+     .counter("ble_pool_view_misses_total", "View acquisitions that found the pool empty", frames.views()::getMisses);
+    m.counter("mqtt_published_total", "Messages handed to the MQTT client", publisher::getPublished)
+     .counter("mqtt_published_bytes_total", "Payload bytes handed to the MQTT client", publisher::getBytesOut)
+     .counter("mqtt_acked_total", "Messages acknowledged by the broker", publisher::getAcked)
+     .counter("mqtt_failed_total", "Messages that failed to publish", publisher::getFailed)
+     .gauge("mqtt_inflight", "Messages waiting for the broker", publisher::getInFlight)
+     .latency("mqtt_publish_latency_seconds", "Time from publish to broker acknowledgement", publisher.getLatency());
+    for (Sink s: publisher.getSinks()) {
+      m.counter("ble_sink_written_total", "Reports written to each extra sink", "sink", s.getName(), s::getWritten)
+       .counter("ble_sink_bytes_total", "Payload bytes written to each extra sink", "sink", s.getName(), s::getBytes)
+       .counter("ble_sink_dropped_total", "Reports dropped on sink queue overflow", "sink", s.getName(), s::getDropped)
+       .counter("ble_sink_errors_total", "Reports discarded because writing to each extra sink failed", "sink", s.getName(), s::getErrors)
+       .gauge("ble_sink_queue_depth", "Reports waiting for each extra sink", "sink", s.getName(), s::getQueueDepth);
+    }
+    DiskSpool spool = publisher.getSpool();
+    if (spool != null) {
+      m.gauge("mqtt_spool_pending", "Messages waiting in the disk spool", spool::getPending)
+       .gauge("mqtt_spool_bytes", "Disk space used by spool segments", spool::getBytes)
+       .counter("mqtt_spool_appended_total", "Messages written to the disk spool", spool::getAppended)
+       .counter("mqtt_spool_replayed_total", "Messages replayed from the disk spool", spool::getReplayed)
+       .counter("mqtt_spool_dropped_total", "Messages dropped because the spool was full", spool::getDropped)
+       .counter("mqtt_spool_coalesced_total", "Messages dropped in favour of a newer one from the same device", spool::getCoalesced)
+       .counter("mqtt_spool_corrupt_total", "Corrupt spool records skipped", spool::getCorrupt);
+    }
+    return m;
+  }
 
   static class MqttCfg {
     final String broker, topic, username, password, clientIdPrefix;
+    // 非同期送信（応答を待たずに inflight 件まで送る）
+    final boolean async = "1".equals(env("MQTT_ASYNC","0"));
+    final int inflight = Integer.parseInt(env("MQTT_INFLIGHT","64"));
+    // まとめ送り（最大件数・最大待ち時間のどちらか早いほう）
+    final int batchMax = Integer.parseInt(env("MQTT_BATCH_MAX","1"));
+    final long batchMillis = Long.parseLong(env("MQTT_BATCH_MS","100"));
+    // ペイロード形式（json / cbor）
+    final String payloadFormat = env("MQTT_PAYLOAD","json");
+    // デバイスごとのトピック（例: {prefix}/{adapter}/{mac}/{type}）。null なら topic 固定
+    final String topicTemplate = env("MQTT_TOPIC_TEMPLATE",null);
+    final int topicCacheSize = Integer.parseInt(env("MQTT_TOPIC_CACHE","4096"));
+    // ブローカにつながらない間のディスクスプール。null なら使わない
+    final String spoolDir = env("MQTT_SPOOL_DIR",null);
+    final int spoolMaxMb = Integer.parseInt(env("MQTT_SPOOL_MAX_MB","256"));
+    final int spoolSegmentMb = Integer.parseInt(env("MQTT_SPOOL_SEGMENT_MB","16"));
+    final String spoolPolicy = env("MQTT_SPOOL_POLICY","drop_oldest");
+    final int spoolReplayRate = Integer.parseInt(env("MQTT_SPOOL_REPLAY_RATE","200"));
+    final long spoolSyncMillis = Long.parseLong(env("MQTT_SPOOL_SYNC_MS","1000"));
     MqttCfg(String b,String t,String u,String p,String c){broker=b;topic=t;username=u;password=p;clientIdPrefix=c;}
     static MqttCfg fromEnv() {
       String b = env("MQTT_BROKER","tcp://127.0.0.1:11883");
@@ -66,6 +425,8 @@ public class Main {
       String c = env("MQTT_CLIENT_ID_PREFIX","java-sample");
       return new MqttCfg(b,t,u,p,c);
     }
+    /** メッセージ種別ごとのQoS（MQTT_QOS_<種別>、なければ MQTT_QOS） */
+    int qos(String cls) { return Integer.parseInt(env("MQTT_QOS_" + cls.toUpperCase(), env("MQTT_QOS","1"))); }
     static String env(String k,String d){ var v=System.getenv(k); return (v==null||v.isBlank())?d:v; }
   }
 }
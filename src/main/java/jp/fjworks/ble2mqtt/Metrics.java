@@ -0,0 +1,228 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+import jp.fjworks.ble2mqtt.adv.JsonEncoder;
+
+/**
+ * 各部の統計をまとめて外に出す。値は登録した LongSupplier（各クラスの getter）から読むだけで、
+ * 受信・送信の経路には何も足さない。
+ * <ul>
+ * <li>Prometheus のテキスト形式（serveHttp で /metrics）</li>
+ * <li>JMX（registerMBean で jp.fjworks.ble2mqtt:type=Metrics）</li>
+ * <li>JSON（MQTT の統計メッセージ用）</li>
+ * </ul>
+ * 登録は公開を始める前にすませること。同じ名前でラベル違いのものは続けて登録する。
+ * ラベルの値が動作中に変わるもの（フィルタのルールなど）は {@link #counters} でまとめて登録する。
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_KEYS = { "_p50", "_p90", "_p99", "_p999" };
+
+    private static final class Entry {
+        final String name, help, type, label, labelValue;
+        final LongSupplier value;
+        final LatencyHistogram hist;
+        final Supplier<Map<String,Long>> values; // ラベルの値 → 値（counters）
+        Entry(String name, String help, String type, String label, String labelValue, LongSupplier value, LatencyHistogram hist) {
+            this(name, help, type, label, labelValue, value, hist, null);
+        }
+        Entry(String name, String help, String type, String label, String labelValue, LongSupplier value, LatencyHistogram hist,
+                Supplier<Map<String,Long>> values) {
+            this.name = name; this.help = help; this.type = type;
+            this.label = label; this.labelValue = labelValue;
+            this.value = value; this.hist = hist; this.values = values;
+        }
+        /** JMX・JSON で使う平らな名前 */
+        String key() {
+            return label == null ? name : name + "_" + labelValue;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private HttpServer http;
+
+    /** 単調に増える値 */
+    public Metrics counter(String name, String help, LongSupplier value) {
+        return counter(name, help, null, null, value);
+    }
+    public Metrics counter(String name, String help, String label, String labelValue, LongSupplier value) {
+        entries.add(new Entry(name, help, "counter", label, labelValue, value, null));
+        return this;
+    }
+    /** 読むたびにラベルの値ごとの値を返すもの（ラベルの組が動作中に変わってよい） */
+    public Metrics counters(String name, String help, String label, Supplier<Map<String,Long>> values) {
+        entries.add(new Entry(name, help, "counter", label, null, null, null, values));
+        return this;
+    }
+    /** 増えも減りもする値 */
+    public Metrics gauge(String name, String help, LongSupplier value) {
+        return gauge(name, help, null, null, value);
+    }
+    public Metrics gauge(String name, String help, String label, String labelValue, LongSupplier value) {
+        entries.add(new Entry(name, help, "gauge", label, labelValue, value, null));
+        return this;
+    }
+    /** ヒストグラム（Prometheus には秒単位の summary として出す） */
+    public Metrics latency(String name, String help, LatencyHistogram hist) {
+        entries.add(new Entry(name, help, "summary", null, null, null, hist));
+        return this;
+    }
+
+    /** Prometheus のテキスト形式（version 0.0.4） */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        String last = null;
+        for (Entry e: entries) {
+            if (!e.name.equals(last)) {
+                sb.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+                sb.append("# TYPE ").append(e.name).append(' ').append(e.type).append('\n');
+                last = e.name;
+            }
+            if (e.hist != null) {
+                for (double q: QUANTILES) {
+                    sb.append(e.name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(seconds(e.hist.percentile(q))).append('\n');
+                }
+                sb.append(e.name).append("_sum ").append(seconds(e.hist.getSum())).append('\n');
+                sb.append(e.name).append("_count ").append(e.hist.getCount()).append('\n');
+                continue;
+            }
+            if (e.values != null) {
+                for (Map.Entry<String,Long> v: e.values.get().entrySet()) {
+                    sb.append(e.name).append('{').append(e.label).append("=\"").append(escapeLabel(v.getKey())).append("\"} ")
+                        .append(v.getValue()).append('\n');
+                }
+                continue;
+            }
+            sb.append(e.name);
+            if (e.label != null) sb.append('{').append(e.label).append("=\"").append(e.labelValue).append("\"}");
+            sb.append(' ').append(e.value.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** 平らな名前 → 値（ヒストグラムは _count, _p50 … _max、秒） */
+    public Map<String,Object> snapshot() {
+        Map<String,Object> m = new LinkedHashMap<>();
+        for (Entry e: entries) {
+            if (e.hist != null) {
+                m.put(e.name + "_count", e.hist.getCount());
+                for (int i = 0; i < QUANTILES.length; i++) m.put(e.name + QUANTILE_KEYS[i], seconds(e.hist.percentile(QUANTILES[i])));
+                m.put(e.name + "_max", seconds(e.hist.getMax()));
+            } else if (e.values != null) {
+                for (Map.Entry<String,Long> v: e.values.get().entrySet()) {
+                    m.merge(e.name + "_" + v.getKey().replaceAll("[^A-Za-z0-9]+", "_"), v.getValue(), (x, y) -> (Long)x + (Long)y);
+                }
+            } else {
+                m.put(e.key(), e.value.getAsLong());
+            }
+        }
+        return m;
+    }
+
+    /** {"ts":"…","name":value,…} */
+    public byte[] toJson(JsonEncoder json) {
+        json.reset().ascii("{\"ts\":\"").now().ch('"');
+        for (Map.Entry<String,Object> e: snapshot().entrySet()) {
+            json.ascii(",\"").ascii(e.getKey()).ascii("\":");
+            Object v = e.getValue();
+            if (v instanceof Long) json.dec((Long)v);
+            else json.ascii(v.toString());
+        }
+        return json.ch('}').toByteArray();
+    }
+
+    /** http://bind:port/metrics で Prometheus 形式を返す */
+    public void serveHttp(String bind, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        http.createContext("/metrics", ex -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+        });
+        http.start();
+        System.out.println("[METRICS] http://" + bind + ":" + http.getAddress().getPort() + "/metrics");
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("jp.fjworks.ble2mqtt:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("[METRICS] JMX registration failed: " + e);
+        }
+    }
+
+    public void close() {
+        if (http != null) http.stop(0);
+    }
+
+    /** Prometheus のラベル値のエスケープ（バックスラッシュ・ダブルクォート・改行） */
+    private static String escapeLabel(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    /** 読み取り専用の属性だけを持つ MBean（属性名は snapshot のキー） */
+    private final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object v = snapshot().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+            return v;
+        }
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String,Object> m = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a: attributes) if (m.containsKey(a)) list.add(new Attribute(a, m.get(a)));
+            return list;
+        }
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read only: " + attribute.getName());
+        }
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // 操作は持たない
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (Map.Entry<String,Object> e: snapshot().entrySet()) {
+                attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "ble2mqtt metrics", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
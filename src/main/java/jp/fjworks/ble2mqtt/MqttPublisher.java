@@ -1,12 +1,20 @@
 package jp.fjworks.ble2mqtt;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -14,63 +22,424 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import jp.fjworks.ble2mqtt.Main.MqttCfg;
 import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvType;
+import jp.fjworks.ble2mqtt.adv.CborEncoder;
+import jp.fjworks.ble2mqtt.adv.JsonEncoder;
 
-public class MqttPublisher implements Runnable, AutoCloseable {
-    private MqttClient client = null;
+/**
+ * キューから広告を取り出して MQTT に送る。
+ * キューはデバイスごとに振り分けたリング（{@link ShardedRing}）で、リング1本ごとに
+ * ワーカスレッドを1本立てる。ワーカはそれぞれ自分のエンコーダとトピックキャッシュを持ち、
+ * MQTT クライアントと送信枠だけを共有する（デバイスごとの送信順はワーカの中で保たれる）。
+ * 非同期モード（MQTT_ASYNC=1）ではブローカの応答を待たずに次を送り、
+ * 応答待ちが inflight 件に達したときだけ待つ。同期モードはワーカ（とスプールの送り直し）が
+ * それぞれ自分の1件の完了を待つので、ワーカを増やせば同時に応答待ちにできる数も増える。
+ * MQTT_BATCH_MAX が2以上なら複数の広告を JSON 配列1つにまとめて送る。
+ * MQTT_PAYLOAD=cbor なら JSON の代わりに CBOR で送る。
+ * MQTT_TOPIC_TEMPLATE があればデバイスごとのトピックに振り分ける（まとめ送りでは使わない）。
+ * MQTT_SPOOL_DIR があれば、つながっていない間や送れなかったものをディスクにため、
+ * つながったら MQTT_SPOOL_REPLAY_RATE 件/秒で送り直す（その間の新しいものはそのまま送る）。
+ * {@link #addSink} した出力先があれば、エンコードした広告1件ごとのバイト列を1つだけ {@link Payload} にコピーし、
+ * 参照カウントで全出力先に共有して渡す（まとめ送りでも出力先へは1件ずつ渡す）。
+ */
+public class MqttPublisher implements AutoCloseable {
+    private MqttAsyncClient client = null;
     private String cid;
     private String topic;
-    private BlockingQueue<Adv> inQ;
-    public MqttPublisher(MqttCfg cfg, BlockingQueue<Adv> inQ) throws IOException {
+    private final ShardedRing<Adv> inQ;
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Sink> sinks = new ArrayList<>();
+    private final boolean async;
+    private final int inflight;
+    private final Semaphore window;
+    private final int[] advQos = new int[AdvType.values().length];
+    private volatile int batchMax;
+    private volatile long batchNanos;
+    private volatile boolean debug; // 送ったものを1件ずつ表示する
+    private final int batchQos;
+    private final boolean cbor;
+    private final DiskSpool spool; // null なら失敗したものは捨てる
+    private Thread drain;           // スプールの送り直し（spool があるときだけ）
+    private final long spoolIntervalNanos;
+    private final long spoolSyncNanos;
+
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram(); // publish からブローカの応答まで
+    private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            acked.increment();
+            latency.recordNanos(System.nanoTime() - (Long)token.getUserContext());
+            window.release();
+        }
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            failed.increment();
+            window.release();
+            // 非同期で送れなかったものもスプールへ（デバイスはわからないのでまとめない）。同期なら send が入れる
+            if (async && spool != null && token instanceof IMqttDeliveryToken && token.getTopics() != null) {
+                try {
+                    MqttMessage msg = ((IMqttDeliveryToken)token).getMessage();
+                    if (msg != null) spool.append(token.getTopics()[0], msg.getPayload(), msg.getQos(), -1);
+                } catch (MqttException | IOException e) {
+                    System.err.println("[SPOOL] append failed: " + e);
+                }
+            }
+        }
+    };
+
+    public MqttPublisher(MqttCfg cfg, ShardedRing<Adv> inQ) throws IOException {
         this.cid = cfg.clientIdPrefix + "-pub-" + UUID.randomUUID();
         this.inQ = inQ;
         this.topic = cfg.topic;
+        for (int i = 0; i < inQ.shards(); i++) {
+            workers.add(new Worker(i, inQ.shard(i),
+                cfg.topicTemplate != null ? new TopicRouter(cfg.topicTemplate, cfg.topic, cfg.topicCacheSize) : null));
+        }
+        this.async = cfg.async;
+        // 同期モードでは送るスレッドごとに1件。共有の1枠にするとワーカを増やしても往復が1本に並ぶ
+        this.inflight = cfg.async ? cfg.inflight : inQ.shards() + (cfg.spoolDir != null ? 1 : 0);
+        this.window = new Semaphore(inflight);
+        for (AdvType t: AdvType.values()) advQos[t.ordinal()] = cfg.qos(t.name());
+        this.batchMax = cfg.batchMax;
+        this.batchNanos = TimeUnit.MILLISECONDS.toNanos(cfg.batchMillis);
+        this.batchQos = cfg.qos("BATCH");
+        this.cbor = "cbor".equalsIgnoreCase(cfg.payloadFormat);
+        this.spool = cfg.spoolDir == null ? null : new DiskSpool(Path.of(cfg.spoolDir),
+            cfg.spoolSegmentMb << 20, (long)cfg.spoolMaxMb << 20, DiskSpool.FullPolicy.parse(cfg.spoolPolicy));
+        this.spoolIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, cfg.spoolReplayRate);
+        this.spoolSyncNanos = TimeUnit.MILLISECONDS.toNanos(cfg.spoolSyncMillis);
         try {
-            this.client = new MqttClient(cfg.broker, cid, new MemoryPersistence());
+            this.client = new MqttAsyncClient(cfg.broker, cid, new MemoryPersistence());
             var opt = new MqttConnectOptions();
             opt.setAutomaticReconnect(true);
             opt.setCleanSession(true);
+            opt.setMaxInflight(Math.max(inflight, 10));
             if (cfg.username != null) opt.setUserName(cfg.username);
             if (cfg.password != null) opt.setPassword(cfg.password.toCharArray());
-            client.connect(opt);
-            System.out.println("[PUB] connected to " + cfg.broker);
+            client.connect(opt).waitForCompletion();
+            System.out.println("[PUB] connected to " + cfg.broker + (async ? " (async, inflight=" + inflight + ")" : "")
+                + (workers.size() > 1 ? " workers=" + workers.size() : ""));
         } catch (MqttException e) {
             throw new IOException(e);
         }
     }
-    
-    private void publish(String payload) throws IOException {
+
+    /**
+     * 送る。つながっていないときや送れなかったときは、スプールがあればそこへ入れる。
+     * @param deviceKey スプールが COALESCE のときにまとめる単位。まとめないものは -1
+     */
+    private void send(String topic, byte[] payload, int qos, long deviceKey) throws IOException, InterruptedException {
+        if (spool != null && !client.isConnected()) {
+            spool.append(topic, payload, qos, deviceKey);
+            return;
+        }
+        try {
+            publish(topic, payload, qos, false);
+        } catch (IOException e) {
+            if (spool == null) throw e;
+            spool.append(topic, payload, qos, deviceKey);
+        }
+    }
+
+    /** 送信枠が空くまで待ち、完了は deliveryListener で受ける */
+    private void publish(String topic, byte[] payload, int qos, boolean retained) throws IOException, InterruptedException {
+        window.acquire();
+        IMqttDeliveryToken token;
         try {
-            client.publish(topic, new MqttMessage(payload.getBytes(StandardCharsets.UTF_8)));
-            // System.out.printf("[PUB] %s -> %s%n", topic, payload);
+            // userContext に送り始めた時刻を持たせる
+            token = client.publish(topic, payload, qos, retained, System.nanoTime(), deliveryListener);
+            published.increment();
+            bytesOut.add(payload.length);
         }
         catch (MqttException e) {
+            failed.increment();
+            window.release();
             throw new IOException(e);
         }
+        if (!async) {
+            try { token.waitForCompletion(); }
+            catch (MqttException e) { throw new IOException(e); }
+        }
+    }
+
+    /**
+     * キューと送信枠を通さずに送る（統計など、広告の流れと関係ないもの）。
+     * 応答は待たず、失敗はログに出す。
+     * @return クライアントが受け付けたら true（つながっていないときなどは false）
+     */
+    public boolean publishDirect(String topic, byte[] payload, int qos, boolean retained) {
+        try {
+            client.publish(topic, payload, qos, retained);
+            return true;
+        } catch (MqttException e) {
+            System.err.println("[PUB] publish to " + topic + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
     }
 
     @Override
     public void close() throws IOException {
+        for (Worker w: workers) w.th.interrupt();
+        if (drain != null) drain.interrupt();
+        for (Worker w: workers) {
+            try { w.th.join(1000); } catch (InterruptedException ignore) {}
+        }
+        // spool.sync / peek / publish の途中で切断・close しないよう、止まるのを待つ
+        if (drain != null) {
+            try { drain.join(3000); } catch (InterruptedException ignore) {}
+        }
         if (client != null) {
-            try { if (client.isConnected()) client.disconnect(); } catch (Exception ignore) {}
+            try { if (client.isConnected()) client.disconnect(1000).waitForCompletion(2000); } catch (Exception ignore) {}
             try { client.close(); } catch (Exception ignore) {}
         }
+        if (spool != null) spool.close();
     }
 
-    @Override
-    public void run() {
+    /** MQTT のほかの出力先を足す。start() より前に呼ぶこと */
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    public List<Sink> getSinks() {
+        return sinks;
+    }
+
+    /** ワーカ（と、スプールがあれば送り直しのスレッド）を動かし始める */
+    public void start() {
+        if (spool != null) {
+            drain = new Thread(this::drainSpool, "spool-drain");
+            drain.setDaemon(true);
+            drain.start();
+        }
+        // 出力先のキューに入りうる数だけプールしておく
+        int maxPayloads = 64;
+        for (Sink s: sinks) maxPayloads += s.getCapacity();
+        for (Worker w: workers) {
+            w.payloads = new PayloadPool(maxPayloads);
+            w.th.start();
+        }
+    }
+
+    /**
+     * つながっている間、スプールにたまったものを古い順に spoolIntervalNanos 間隔で送り直す。
+     * ついでに定期的にスプールをディスクへ書き出す（追記するスレッドは待たせない）。
+     */
+    private void drainSpool() {
+        long next = System.nanoTime();
+        long nextSync = next + spoolSyncNanos;
         try {
-            while(true) {
-                Adv adv = inQ.take();
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                if (now - nextSync >= 0) {
+                    spool.sync();
+                    nextSync = now + spoolSyncNanos;
+                }
+                DiskSpool.Entry e = client.isConnected() ? spool.peek() : null;
+                if (e == null) {
+                    Thread.sleep(100);
+                    next = System.nanoTime();
+                    continue;
+                }
                 try {
-                    publish(adv.toJsonString());
+                    publish(e.topic, e.payload, e.qos, false);
+                    spool.advance(e);
+                } catch (IOException ex) {
+                    Thread.sleep(1000); // 切れた。つながり直すのを待つ
+                    continue;
                 }
-                catch(IOException e) {
-                    e.printStackTrace();
+                next += spoolIntervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                else if (wait < -TimeUnit.SECONDS.toNanos(1)) next = System.nanoTime(); // 遅れを一気に取り戻さない
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        } catch (IOException e) {
+            System.err.println("[SPOOL] drain stopped: " + e);
+        }
+    }
+
+    /**
+     * リング1本を受け持つワーカ。広告を JSON / CBOR にしてそのスレッドのまま送る。
+     * エンコーダとトピックキャッシュはワーカごとに持つので、ワーカ間で共有するものはない。
+     */
+    private final class Worker implements Runnable {
+        final SpscRing<Adv> q;
+        final TopicRouter router; // null なら常に topic
+        final JsonEncoder json = new JsonEncoder();
+        final CborEncoder cborEnc = new CborEncoder();
+        final Thread th;
+        final LongAdder reports = new LongAdder();
+        final int index;
+        PayloadPool payloads; // start() で作る
+
+        Worker(int index, SpscRing<Adv> q, TopicRouter router) {
+            this.index = index;
+            this.q = q;
+            this.router = router;
+            this.th = new Thread(this, inQ.shards() > 1 ? "mqtt-worker-" + index : "mqtt-publisher");
+            th.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Adv adv = q.take();
+                    try {
+                        if (batchMax > 1) {
+                            publishBatch(adv);
+                            continue;
+                        }
+                        String t = router != null ? router.topicFor(adv) : topic;
+                        int qos = advQos[adv.getType().ordinal()];
+                        long key = adv.getAddress();
+                        byte[] payload = encode(adv);
+                        adv.release();
+                        if (debug) print(t, qos, payload);
+                        send(t, payload, qos, key);
+                    }
+                    catch(IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
+            catch (InterruptedException e) {
+                //nop break
+            }
+        }
+
+        /**
+         * first から始めて batchMax 件たまるか batchNanos たつまで集め、
+         * JSON 配列1つにまとめて送る。
+         */
+        private void publishBatch(Adv first) throws IOException, InterruptedException {
+            int max = batchMax;
+            long deadline = System.nanoTime() + batchNanos;
+            if (cbor) cborEnc.reset().beginIndefiniteArray();
+            else json.reset().ch('[');
+            appendBatch(first, true);
+            for (int n = 1; n < max; n++) {
+                long remain = deadline - System.nanoTime();
+                if (remain <= 0) break;
+                Adv adv = q.poll(remain, TimeUnit.NANOSECONDS);
+                if (adv == null) break;
+                appendBatch(adv, false);
+            }
+            byte[] payload;
+            if (cbor) payload = cborEnc.endIndefinite().toByteArray();
+            else payload = json.ch(']').toByteArray();
+            if (debug) print(topic, batchQos, payload);
+            send(topic, payload, batchQos, -1);
         }
-        catch (InterruptedException e) {
-            //nop break
+
+        private void appendBatch(Adv adv, boolean first) throws InterruptedException {
+            if (cbor) {
+                int start = cborEnc.length();
+                adv.writeCbor(cborEnc);
+                fanOut(cborEnc.array(), start, cborEnc.length() - start, adv.getAddress());
+            } else {
+                if (!first) json.ch(',');
+                int start = json.length();
+                adv.writeJson(json);
+                fanOut(json.array(), start, json.length() - start, adv.getAddress());
+            }
+            reports.increment();
+            adv.release();
+        }
+
+        private byte[] encode(Adv adv) throws InterruptedException {
+            reports.increment();
+            if (cbor) {
+                adv.writeCbor(cborEnc.reset());
+                fanOut(cborEnc.array(), 0, cborEnc.length(), adv.getAddress());
+                return cborEnc.toByteArray();
+            }
+            adv.writeJson(json.reset());
+            fanOut(json.array(), 0, json.length(), adv.getAddress());
+            return json.toByteArray();
+        }
+
+        /**
+         * 広告1件分のバイト列を全出力先に渡す。コピーは1回だけで、出力先ごとに参照を1つずつ渡す。
+         * MQTT に渡す byte[] は Paho が持ち続けるので別に作る。
+         */
+        private void fanOut(byte[] src, int off, int len, long key) throws InterruptedException {
+            if (sinks.isEmpty()) return;
+            Payload p = payloads.acquire().set(src, off, len, key);
+            try {
+                for (Sink s: sinks) s.offer(index, p.retain());
+            } finally {
+                p.release();
+            }
         }
     }
-}
\ No newline at end of file
+
+    private void print(String t, int qos, byte[] payload) {
+        System.out.printf("[PUB] %s | qos=%d | %s%n", t, qos,
+            cbor ? payload.length + " bytes (cbor)" : new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /** まとめ送りの最大件数（1 でまとめない）。動作中に変えてよく、次のメッセージから効く */
+    public void setBatchMax(int batchMax) {
+        this.batchMax = Math.max(1, batchMax);
+    }
+    public int getBatchMax() {
+        return batchMax;
+    }
+    /** まとめ送りで最初の1件から待つ最大時間 */
+    public void setBatchMillis(long millis) {
+        this.batchNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+    public long getBatchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(batchNanos);
+    }
+    /** true なら送ったものを1件ずつ標準出力に出す（重いので調べるときだけ） */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /** ブローカが受け取りを確認した件数（QoS 0 は送信完了） */
+    public long getAcked() {
+        return acked.sum();
+    }
+    public long getFailed() {
+        return failed.sum();
+    }
+    /** 送り出した件数（まとめ送りは1件） */
+    public long getPublished() {
+        return published.sum();
+    }
+    /** 送り出したペイロードの合計バイト数 */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+    /** publish してからブローカの応答を受けるまでの時間 */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    /** ディスクのスプール（MQTT_SPOOL_DIR がなければ null） */
+    public DiskSpool getSpool() {
+        return spool;
+    }
+    /** ワーカ数 */
+    public int getWorkers() {
+        return workers.size();
+    }
+    /** i 番目のワーカが処理した広告の数 */
+    public long getWorkerReports(int i) {
+        return workers.get(i).reports.sum();
+    }
+    /** 応答待ちの件数 */
+    public int getInFlight() {
+        return inflight - window.availablePermits();
+    }
+}
@@ -4,29 +4,74 @@ import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+/**
+ * 制御用トピック（MQTT_CONTROL_TOPIC）を購読し、{topic}/{キー} に届いた値で動作中の設定を変える。
+ * キーごとの処理は {@link #on} で登録する（Main が各部の setter につなぐ）。
+ * 受信スレッドやソケットはそのままで、次のレポートから新しい設定が効く。
+ * retained で置いておけば、起動したときにもその値が当たる。
+ * cleanSession なので自動再接続では購読が戻らない。つながり直したらこのスレッドで購読し直す
+ * （retained の値もそのときもう一度当たる）。
+ */
 final class MqttSubscriber implements AutoCloseable, Runnable {
     private final MqttClient client;
     private final String topic;
     private final Thread thread;
+    private final Map<String, Consumer<String>> handlers = new LinkedHashMap<>();
     private volatile boolean running = false;
+    private volatile boolean resubscribe = false;
 
-    MqttSubscriber(Main.MqttCfg cfg) throws MqttException {
-        this.topic = cfg.topic;
-        this.client = new MqttClient(cfg.broker, cfg.clientIdPrefix + "-sub-" + UUID.randomUUID(), new MemoryPersistence());
+    MqttSubscriber(Main.MqttCfg cfg, String controlTopic) throws MqttException {
+        this.topic = controlTopic;
+        this.client = new MqttClient(cfg.broker, cfg.clientIdPrefix + "-ctl-" + UUID.randomUUID(), new MemoryPersistence());
         this.thread = new Thread(this, "mqtt-sub");
         this.thread.setDaemon(false); // 前面プロセスで管理
-        client.setCallback(new MqttCallback() {
+        client.setCallback(new MqttCallbackExtended() {
+            public void connectComplete(boolean reconnect, String serverURI) {
+                if (!reconnect) return;
+                // コールバックのスレッドで待つ呼び出しはしない
+                resubscribe = true;
+                LockSupport.unpark(thread);
+            }
             public void connectionLost(Throwable cause) { System.out.println("[SUB] lost: " + cause); }
             public void messageArrived(String t, MqttMessage msg) {
-                System.out.printf("[SUB] %s | qos=%d | %s%n", t, msg.getQos(),
-                        new String(msg.getPayload(), StandardCharsets.UTF_8));
+                apply(t, new String(msg.getPayload(), StandardCharsets.UTF_8).trim());
             }
             public void deliveryComplete(IMqttDeliveryToken token) { }
         });
     }
 
+    /**
+     * {topic}/{key} に届いた値（前後の空白は除く）を handler に渡す。start() 前に登録すること。
+     * handler が IllegalArgumentException（NumberFormatException を含む）を投げたら、その値は使わずにログに出す。
+     */
+    MqttSubscriber on(String key, Consumer<String> handler) {
+        handlers.put(key, handler);
+        return this;
+    }
+
+    private void apply(String t, String value) {
+        if (!t.startsWith(topic + "/")) return;
+        String key = t.substring(topic.length() + 1);
+        Consumer<String> h = handlers.get(key);
+        if (h == null) {
+            System.out.println("[CTL] unknown key: " + key + " (known: " + String.join(", ", handlers.keySet()) + ")");
+            return;
+        }
+        try {
+            h.accept(value);
+            System.out.println("[CTL] " + key + " = " + value);
+        } catch (IllegalArgumentException e) {
+            System.out.println("[CTL] " + key + " rejected: " + e.getMessage());
+        }
+    }
+
     void start(Main.MqttCfg cfg) throws MqttException {
         var opt = new MqttConnectOptions();
         opt.setAutomaticReconnect(true);
@@ -34,23 +79,35 @@ final class MqttSubscriber implements AutoCloseable, Runnable {
         if (cfg.username != null) opt.setUserName(cfg.username);
         if (cfg.password != null) opt.setPassword(cfg.password.toCharArray());
         client.connect(opt);
-        client.subscribe(topic, 0);
-        System.out.println("[SUB] connected & subscribed to " + topic);
+        subscribe();
         running = true;
         thread.start();
     }
 
+    private void subscribe() throws MqttException {
+        client.subscribe(topic + "/#", 1);
+        System.out.println("[SUB] listening for control messages on " + topic + "/#");
+    }
+
     @Override public void run() {
-        // Paho は内部で受信スレッドが動くのでここでは待機だけ
-        try {
-            while (running) Thread.sleep(60_000);
-        } catch (InterruptedException ignored) { }
+        // 受信は Paho の内部スレッド。ここではつながり直したときの購読し直しだけ
+        while (running && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(60));
+            if (!resubscribe) continue;
+            resubscribe = false;
+            try {
+                subscribe();
+            } catch (MqttException e) {
+                // また切れた。次につながったときにやり直す
+                System.out.println("[SUB] resubscribe failed: " + e.getMessage());
+            }
+        }
     }
 
     @Override public void close() {
         running = false;
         thread.interrupt();
-        try { if (client.isConnected()) client.unsubscribe(topic); } catch (Exception ignore) {}
+        try { if (client.isConnected()) client.unsubscribe(topic + "/#"); } catch (Exception ignore) {}
         try { if (client.isConnected()) client.disconnect(); } catch (Exception ignore) {}
         try { client.close(); } catch (Exception ignore) {}
         System.out.println("[SUB] closed");
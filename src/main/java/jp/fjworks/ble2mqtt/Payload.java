@@ -0,0 +1,61 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * エンコード済みの広告1件（JSON / CBOR のバイト列）。ワーカが1回だけ作り、複数の {@link Sink} で共有する。
+ * 参照カウントで寿命を管理し、0 になったら {@link PayloadPool} に戻る（プールに属さないものは GC 任せ）。
+ * 受け取った Sink は書き終えたら（捨てたときも）release() すること。中身は書き換えない。
+ */
+public final class Payload {
+    private final PayloadPool pool;
+    private final AtomicInteger refs = new AtomicInteger();
+    private byte[] buf;
+    private int length;
+    private long key;
+    Payload next; // PayloadPool の空きリスト用
+
+    Payload(PayloadPool pool, int initialSize) {
+        this.pool = pool;
+        this.buf = new byte[initialSize];
+    }
+
+    /** src[off, off+len) をコピーする（足りなければバッファを広げる） */
+    Payload set(byte[] src, int off, int len, long key) {
+        if (buf.length < len) buf = new byte[Math.max(len, buf.length * 2)];
+        System.arraycopy(src, off, buf, 0, len);
+        this.length = len;
+        this.key = key;
+        return this;
+    }
+
+    /** 先頭から length() バイトが中身（後ろは前の使い回しの残り） */
+    public byte[] array() {
+        return buf;
+    }
+    public int length() {
+        return length;
+    }
+    /** 元の広告のアドレス（LATEST_PER_DEVICE で使う） */
+    public long key() {
+        return key;
+    }
+
+    public Payload retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (r < 0) {
+            throw new IllegalStateException("payload released too many times");
+        }
+    }
+
+    void acquired() {
+        refs.set(1);
+    }
+}
@@ -0,0 +1,57 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link Payload} のプール。ワーカごとに1つ持つ。
+ * acquire はそのワーカのスレッドだけから呼ぶこと（release はどの Sink のスレッドからでもよい）。
+ * 空なら maxPayloads まで新しく作り、それも超えたらプールに戻らないものを渡す（ワーカは待たない）。
+ */
+final class PayloadPool {
+    private static final int INITIAL_SIZE = 512;
+
+    private final int maxPayloads;
+    private final AtomicReference<Payload> free = new AtomicReference<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicLong misses = new AtomicLong();
+
+    PayloadPool(int maxPayloads) {
+        this.maxPayloads = maxPayloads;
+    }
+
+    /** 参照カウント1で返す */
+    Payload acquire() {
+        Payload p;
+        while (true) {
+            p = free.get();
+            if (p == null) break;
+            // pop するのは1スレッドだけなので ABA は起きない
+            if (free.compareAndSet(p, p.next)) break;
+        }
+        if (p == null) {
+            if (allocated.get() >= maxPayloads) misses.incrementAndGet();
+            p = new Payload(allocated.incrementAndGet() <= maxPayloads ? this : null, INITIAL_SIZE);
+        }
+        p.next = null;
+        p.acquired();
+        return p;
+    }
+
+    void recycle(Payload p) {
+        while (true) {
+            Payload head = free.get();
+            p.next = head;
+            if (free.compareAndSet(head, p)) return;
+        }
+    }
+
+    /** 上限を超えて使い捨てにした回数 */
+    long getMisses() {
+        return misses.get();
+    }
+    int getAllocated() {
+        return Math.min(allocated.get(), maxPayloads);
+    }
+}
@@ -0,0 +1,291 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.fjworks.ble2mqtt.adv.Adv;
+import jp.fjworks.ble2mqtt.adv.AdvParser;
+import jp.fjworks.ble2mqtt.adv.JsonEncoder;
+
+/**
+ * いま見えているデバイス（詰めたMACアドレス）の表。最後に見た時刻・RSSI・広告データのハッシュ・受信回数を持つ。
+ * 値は LongSlotMap のスロット番号で引く配列に持ち、容量を超えたら最も古く見たものを追い出す。
+ * ttlMillis 見えなかったものは消す。MACを変え続けるスマホがいてもメモリは増えない。
+ *
+ * 表に入ったとき（online）と消えたとき（offline）だけ {prefix}/{AABBCCDDEEFF} に retained で送る。
+ * 表の更新は受信スレッド、送信と期限切れの掃除は専用スレッドで行う。
+ * 受信スレッドからの online / 追い出しの offline はリングで送信スレッドへ渡すので、受信スレッドは待たない。
+ * ブローカにつながっていない間に送れなかった状態変化はデバイスごとに最新だけ残し、
+ * つながったら起きた順に送り直す（retained の状態が実際とずれたままにならない）。
+ * periodic（アドレスを持たない）は対象外。
+ */
+public final class PresenceTable implements AdvParser.OnParsedCallback, Runnable, AutoCloseable {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** 受信スレッド → 送信スレッドで受け渡す状態の変化 */
+    private static final class Event {
+        final long key;
+        final String state;  // online / offline
+        final String reason; // offline の理由（timeout / evicted）。online は null
+        final int adapter, rssi;
+        final long seen, lastSeen;
+        Event(long key, String state, String reason, int adapter, int rssi, long seen, long lastSeen) {
+            this.key = key; this.state = state; this.reason = reason;
+            this.adapter = adapter; this.rssi = rssi; this.seen = seen; this.lastSeen = lastSeen;
+        }
+    }
+
+    /** ある時点のデバイスの状態 */
+    public static final class Device {
+        private final long address;
+        private final int adapter, rssi, payloadHash;
+        private final long seen, lastSeenMillis;
+        Device(long address, int adapter, int rssi, int payloadHash, long seen, long lastSeenMillis) {
+            this.address = address; this.adapter = adapter; this.rssi = rssi;
+            this.payloadHash = payloadHash; this.seen = seen; this.lastSeenMillis = lastSeenMillis;
+        }
+        public long getAddress() { return address; }
+        public int getAdapter() { return adapter; }
+        /** 最後に受けたときの RSSI */
+        public int getRssi() { return rssi; }
+        public int getPayloadHash() { return payloadHash; }
+        /** 表に入ってから受けた広告の数 */
+        public long getSeen() { return seen; }
+        public long getLastSeenMillis() { return lastSeenMillis; }
+    }
+
+    private final AdvParser.OnParsedCallback next;
+    private final LongSlotMap devices; // スタンプ＝最後に見た時刻（ミリ秒）
+    private final int[] adapter;
+    private final int[] lastRssi;
+    private final int[] lastHash;
+    private final long[] seen;
+    private final long ttlMillis;
+    private final long sweepMillis;
+
+    private final MqttPublisher publisher;
+    private final String prefix;
+    private final int qos;
+    private final boolean clearOffline;
+    private final SpscRing<Event> events;
+    private final JsonEncoder json = new JsonEncoder();
+    private final StringBuilder topic = new StringBuilder(64);
+    private final Thread th = new Thread(this, "presence");
+    // 送れなかった状態変化（送信スレッドだけが触る）。デバイスごとに最新だけ、古い順
+    private final LinkedHashMap<Long, Event> unsent = new LinkedHashMap<>();
+    private final int maxUnsent;
+    private volatile int unsentCount;
+    private volatile long lostUnsent;
+
+    private volatile long onlineCount;
+    private volatile long offlineCount;
+
+    /**
+     * @param capacity     覚えておくデバイス数の上限
+     * @param ttlMillis    これだけ見えなかったら offline にする
+     * @param prefix       送信先トピックの前半（後ろに /AABBCCDDEEFF が付く）
+     * @param clearOffline true なら offline は retained にせず、続けて空の retained を送って消す
+     *                     （MACを変えるデバイスの retained がブローカにたまらない）
+     */
+    public PresenceTable(int capacity, long ttlMillis, MqttPublisher publisher, String prefix, int qos,
+            boolean clearOffline, AdvParser.OnParsedCallback next) {
+        this.next = next;
+        this.devices = new LongSlotMap(capacity);
+        this.adapter = new int[capacity];
+        this.lastRssi = new int[capacity];
+        this.lastHash = new int[capacity];
+        this.seen = new long[capacity];
+        this.ttlMillis = ttlMillis;
+        this.sweepMillis = Math.max(100, Math.min(1000, ttlMillis / 10));
+        this.publisher = publisher;
+        this.prefix = prefix;
+        this.qos = qos;
+        this.clearOffline = clearOffline;
+        this.events = new SpscRing<>(Integer.highestOneBit(Math.max(1024, capacity)), SpscRing.OverflowPolicy.DROP_NEWEST);
+        this.maxUnsent = capacity * 2; // 表にあるものと、つながっていない間に消えたもの
+        // 満杯で追い出したものも offline として知らせる（insert の中、ロックを持ったまま呼ばれる）
+        devices.setEvictionListener((slot, key) -> emit(event(slot, key, "offline", "evicted")));
+    }
+
+    public void start() {
+        th.setDaemon(true);
+        th.start();
+        System.out.println("[PRESENCE] publishing to " + prefix + "/<mac> (ttl=" + ttlMillis + "ms, capacity=" + devices.capacity() + ")");
+    }
+
+    @Override
+    public void close() {
+        th.interrupt();
+        try { th.join(1000); } catch (InterruptedException ignore) {}
+    }
+
+    @Override
+    public void onParsed(Adv adv) {
+        long key = adv.getAddress();
+        if ((key & Adv.SYNC_HANDLE_KEY) == 0) update(adv, key);
+        next.onParsed(adv);
+    }
+
+    private synchronized void update(Adv adv, long key) {
+        long now = System.currentTimeMillis();
+        int slot = devices.find(key);
+        boolean added = slot < 0;
+        if (added) {
+            slot = devices.insert(key, now);
+            seen[slot] = 0;
+        } else {
+            devices.touch(slot, now);
+        }
+        adapter[slot] = adv.getAdapter();
+        lastRssi[slot] = adv.getRssi();
+        lastHash[slot] = adv.getPayloadHash();
+        seen[slot]++;
+        if (added) emit(event(slot, key, "online", null));
+    }
+
+    private Event event(int slot, long key, String state, String reason) {
+        return new Event(key, state, reason, adapter[slot], lastRssi[slot], seen[slot], devices.stampAt(slot));
+    }
+
+    /** 受信スレッドから。あふれたら捨てる（getLostEvents で数える） */
+    private void emit(Event e) {
+        try {
+            events.offer(e);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // DROP_NEWEST は待たない
+        }
+    }
+
+    /** ttlMillis 見えなかったものを表から消して返す */
+    private synchronized List<Event> sweep(long now) {
+        List<Event> expired = null;
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (!devices.isUsed(slot) || now - devices.stampAt(slot) < ttlMillis) continue;
+            long key = devices.keyAt(slot);
+            if (expired == null) expired = new ArrayList<>();
+            expired.add(event(slot, key, "offline", "timeout"));
+            devices.remove(key);
+        }
+        return expired;
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + sweepMillis;
+        try {
+            while (true) {
+                // 受信スレッドからの分を送りながら、時間が来たら掃除する。
+                // 掃除で消えるのは ttlMillis 以上前に入ったものだけなので、その online はもう送ってある
+                long wait = nextSweep - System.currentTimeMillis();
+                Event e = wait > 0 ? events.poll(wait, TimeUnit.MILLISECONDS) : events.poll();
+                if (!unsent.isEmpty() && publisher.isConnected()) resend();
+                if (e != null) deliver(e);
+                long now = System.currentTimeMillis();
+                if (now < nextSweep) continue;
+                List<Event> expired = sweep(now);
+                if (expired != null) for (Event x: expired) deliver(x);
+                nextSweep = now + sweepMillis;
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        }
+    }
+
+    /** 送る。先に送れていないものがあれば順序を保つため後ろに並べる */
+    private void deliver(Event e) {
+        if (unsent.isEmpty() && publish(e)) return;
+        unsent.remove(e.key); // 同じデバイスの古い状態は要らない。順番は今のものの位置にする
+        if (unsent.size() >= maxUnsent) {
+            Iterator<Event> it = unsent.values().iterator();
+            it.next();
+            it.remove();
+            lostUnsent++;
+        }
+        unsent.put(e.key, e);
+        unsentCount = unsent.size();
+    }
+
+    /** 送れなかったものを古い順に送り直す。また失敗したらそこで止める */
+    private void resend() {
+        for (Iterator<Event> it = unsent.values().iterator(); it.hasNext(); ) {
+            if (!publish(it.next())) break;
+            it.remove();
+        }
+        unsentCount = unsent.size();
+    }
+
+    /** @return 送れたら true */
+    private boolean publish(Event e) {
+        json.reset().ascii("{\"state\":\"").ascii(e.state).ascii("\",\"addr\":\"").mac(e.key)
+            .ascii("\",\"adapter\":\"hci").dec(e.adapter).ascii("\",\"rssi\":").dec(e.rssi)
+            .ascii(",\"seen\":").dec(e.seen)
+            .ascii(",\"last_seen\":\"").instant(Math.floorDiv(e.lastSeen, 1000), Math.floorMod(e.lastSeen, 1000) * 1_000_000).ch('"');
+        if (e.reason != null) json.ascii(",\"reason\":\"").ascii(e.reason).ch('"');
+        byte[] payload = json.ascii(",\"ts\":\"").now().ascii("\"}").toByteArray();
+        String t = topicFor(e.key);
+        boolean online = "online".equals(e.state);
+        boolean sent;
+        if (online || !clearOffline) {
+            sent = publisher.publishDirect(t, payload, qos, true);
+        } else {
+            sent = publisher.publishDirect(t, payload, qos, false) && publisher.publishDirect(t, new byte[0], qos, true);
+        }
+        if (sent) {
+            if (online) onlineCount++; else offlineCount++;
+        }
+        return sent;
+    }
+
+    private String topicFor(long key) {
+        topic.setLength(0);
+        topic.append(prefix).append('/');
+        for (int shift = 44; shift >= 0; shift -= 4) topic.append(HEX[(int)(key >>> shift) & 0x0F]);
+        return topic.toString();
+    }
+
+    /** いま表にある key の状態。なければ null */
+    public synchronized Device get(long key) {
+        int slot = devices.find(key);
+        return slot < 0 ? null : device(slot);
+    }
+
+    /** いま表にある全デバイス */
+    public synchronized List<Device> snapshot() {
+        List<Device> list = new ArrayList<>(devices.size());
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (devices.isUsed(slot)) list.add(device(slot));
+        }
+        return list;
+    }
+
+    private Device device(int slot) {
+        return new Device(devices.keyAt(slot), adapter[slot], lastRssi[slot], lastHash[slot], seen[slot], devices.stampAt(slot));
+    }
+
+    /** いま表にあるデバイス数 */
+    public synchronized int size() {
+        return devices.size();
+    }
+    public synchronized long getEvictions() {
+        return devices.getEvictions();
+    }
+    /** 送った online の数 */
+    public long getOnline() {
+        return onlineCount;
+    }
+    /** 送った offline の数（期限切れと追い出しの合計） */
+    public long getOffline() {
+        return offlineCount;
+    }
+    /** 受け渡しのリングか、送り直し待ちがあふれて送れなかった状態変化の数 */
+    public long getLostEvents() {
+        return events.getDropped() + lostUnsent;
+    }
+    /** つながっていなくて送り直しを待っている状態変化の数 */
+    public int getUnsent() {
+        return unsentCount;
+    }
+}
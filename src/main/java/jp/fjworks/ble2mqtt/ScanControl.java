@@ -0,0 +1,20 @@
+package jp.fjworks.ble2mqtt;
+
+/**
+ * スキャンの開始／停止。BlueZ（D-Bus）経由の {@link BluezScanControl} と、
+ * HCI コマンドを直接送る {@link HciScanControl} がある。
+ */
+public interface ScanControl extends AutoCloseable {
+    /** 必要ならスキャンを開始する */
+    void ensureScanning() throws Exception;
+    /**
+     * 負荷に応じて絞り込みを変える（{@link ScanLevel#NONE} で起動時の設定に戻す）。
+     * @return 反映したら true。この制御方法で変えられなければ false
+     */
+    default boolean setLevel(ScanLevel level) throws Exception {
+        return false;
+    }
+    /** 自分が開始したスキャンだけを止める */
+    @Override
+    void close();
+}
@@ -0,0 +1,62 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.List;
+
+/**
+ * 負荷に応じたスキャンの絞り込みの段階（{@link AdaptiveScan} が決めて {@link ScanControl#setLevel} に渡す）。
+ * 0 は絞り込みなし（起動時の設定）。段階が上がるほど受け取る広告が減る。
+ * RSSI の下限と、最後の段階の UUIDs / Pattern は、どちらの制御方法でもプロセス内で受信フレームに当てる
+ * （{@link jp.fjworks.ble2mqtt.adv.AdvParsers#setLoadFilter}）。そのほかにスキャンの制御方法で反映するもの:
+ * <ul>
+ * <li>bluez: なし（SetDiscoveryFilter は HCI モニタに届く量を減らさない）</li>
+ * <li>hci: コントローラ側の重複除去と、段階ごとにスキャンウィンドウを半分にする</li>
+ * </ul>
+ */
+public final class ScanLevel {
+    public static final ScanLevel NONE = new ScanLevel(0, (short)-127, true, List.of(), null);
+
+    private final int index;
+    private final short rssi;
+    private final boolean duplicates;
+    private final List<String> uuids;
+    private final String pattern;
+
+    public ScanLevel(int index, short rssi, boolean duplicates, List<String> uuids, String pattern) {
+        this.index = index;
+        this.rssi = rssi;
+        this.duplicates = duplicates;
+        this.uuids = uuids;
+        this.pattern = pattern;
+    }
+
+    /** 0 が絞り込みなし */
+    public int getIndex() {
+        return index;
+    }
+    /** これ未満の RSSI の広告は受け取らない */
+    public short getRssi() {
+        return rssi;
+    }
+    /** 同じデバイスの同じ内容の広告を毎回受け取るか（hci がコントローラの重複除去で反映する。プロセス内では見ない） */
+    public boolean isDuplicates() {
+        return duplicates;
+    }
+    /** 空でなければこれらのサービスUUIDを持つものだけ受け取る */
+    public List<String> getUuids() {
+        return uuids;
+    }
+    /** null でなければアドレスか名前がこれで始まるものだけ受け取る */
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        // プロセス内で当てるものだけ（スキャンの制御方法が反映したものは、それぞれがログに出す）
+        sb.append("level=").append(index).append(" rssi>=").append(rssi);
+        if (!uuids.isEmpty()) sb.append(" uuids=").append(String.join(",", uuids));
+        if (pattern != null) sb.append(" pattern=").append(pattern);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * デバイスごとに決まった1本の {@link SpscRing} へ振り分ける。
+ * 入れるのは受信スレッド1本、各リングから取り出すのはそれぞれ別のワーカ1本。
+ * 同じデバイスの要素はいつも同じリング（＝同じワーカ）に入るので、デバイスごとの順序は崩れない。
+ * 統計はリング全体の合計（最高水位は各リングの最大）。
+ */
+public final class ShardedRing<E> {
+    private final SpscRing<E>[] rings;
+    private final ToLongFunction<? super E> deviceKey;
+
+    /**
+     * @param shards   リングの数（ワーカ数）
+     * @param capacity リング1本の容量（2のべき乗）
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedRing(int shards, int capacity, SpscRing.OverflowPolicy policy,
+            ToLongFunction<? super E> deviceKey, Consumer<? super E> onDrop) {
+        if (shards < 1) throw new IllegalArgumentException(String.format("shards must be positive: %d", shards));
+        this.rings = (SpscRing<E>[])new SpscRing<?>[shards];
+        for (int i = 0; i < shards; i++) rings[i] = new SpscRing<>(capacity, policy, deviceKey, onDrop);
+        this.deviceKey = deviceKey;
+    }
+
+    /** key を受け持つリングの番号 */
+    public int shardOf(long key) {
+        if (rings.length == 1) return 0;
+        // MAC の下位ビットは偏りがある（ランダムアドレスの種別ビットなど）ので混ぜてから割る
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(((h >>> 32) * rings.length) >>> 32);
+    }
+
+    /** プロデューサ側。振り分け先のリングのポリシーに従う */
+    public boolean offer(E e) throws InterruptedException {
+        return rings[shardOf(deviceKey.applyAsLong(e))].offer(e);
+    }
+
+    public int shards() {
+        return rings.length;
+    }
+    /** i 番目のリング（コンシューマはこれから取り出す） */
+    public SpscRing<E> shard(int i) {
+        return rings[i];
+    }
+
+    public int size() {
+        int n = 0;
+        for (SpscRing<E> r: rings) n += r.size();
+        return n;
+    }
+    /** 全リングの容量の合計 */
+    public int capacity() {
+        return rings[0].capacity() * rings.length;
+    }
+    public SpscRing.OverflowPolicy getPolicy() {
+        return rings[0].getPolicy();
+    }
+    public long getDropped() {
+        long n = 0;
+        for (SpscRing<E> r: rings) n += r.getDropped();
+        return n;
+    }
+    public long getReplaced() {
+        long n = 0;
+        for (SpscRing<E> r: rings) n += r.getReplaced();
+        return n;
+    }
+    public int getHighWaterMark() {
+        int m = 0;
+        for (SpscRing<E> r: rings) m = Math.max(m, r.getHighWaterMark());
+        return m;
+    }
+}
@@ -0,0 +1,157 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MQTT のほかにエンコード済みの広告（{@link Payload}）を書き出す先。
+ * ワーカごとに1本ずつ自分のキュー（{@link SpscRing}）を持ち、専用スレッドで書き出す。
+ * あふれたときはキューのポリシーに従うので、遅い出力先があってもほかの出力先やワーカは待たない
+ * （BLOCK にしたときだけワーカが待つ）。
+ * 書き出しに失敗したものは捨てて数え、次の広告で書き出し直す（つなぎ直しなどはサブクラスが write の中で行う）。
+ * 件数は実際に書けたときに数える。ためてからまとめて書くサブクラスは、書けたときに {@link #written}、
+ * 書けずに捨てたときに {@link #failed} でためていた分を数える。
+ */
+public abstract class Sink implements Runnable, AutoCloseable {
+    private final String name;
+    private final SpscRing<Payload>[] rings;
+    private final Thread th;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long lastErrorLog;
+
+    /**
+     * @param producers キューに入れるワーカの数
+     * @param capacity  ワーカ1本あたりのキューの容量（2のべき乗）
+     */
+    @SuppressWarnings("unchecked")
+    protected Sink(String name, int producers, int capacity, SpscRing.OverflowPolicy policy) {
+        this.name = name;
+        this.rings = (SpscRing<Payload>[])new SpscRing<?>[producers];
+        for (int i = 0; i < producers; i++) rings[i] = new SpscRing<>(capacity, policy, Payload::key, Payload::release);
+        this.th = new Thread(this, "sink-" + name);
+        th.setDaemon(true);
+    }
+
+    /**
+     * 1件書く。array() の先頭 length() バイト。呼び出しのあと p は release される
+     * @return 書き終えたら true。ためただけなら false（あとで written / failed で数える）
+     */
+    protected abstract boolean write(Payload p) throws IOException;
+
+    /** キューが空になったときに呼ばれる（ためていたものを書き出す。失敗はサブクラスが failed で数える） */
+    protected void flush() {
+    }
+
+    /** スレッドが止まったあとに呼ばれる */
+    protected abstract void closeOutput() throws IOException;
+
+    public void start() {
+        th.start();
+        System.out.println("[SINK] " + name + " started (queue=" + rings[0].capacity() + "x" + rings.length
+            + ", policy=" + rings[0].getPolicy() + ")");
+    }
+
+    /** ワーカ producer から。p の参照は1つ渡す（あふれて捨てたときはキューが release する） */
+    boolean offer(int producer, Payload p) throws InterruptedException {
+        return rings[producer].offer(p);
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        try {
+            while (true) {
+                boolean any = false;
+                for (SpscRing<Payload> r: rings) {
+                    Payload p = r.poll();
+                    if (p == null) continue;
+                    any = true;
+                    deliver(p);
+                }
+                if (any) continue;
+                flush();
+                // どのキューも空。順番に1本ずつ少し待つ（ほかのキューに来たものは次の周で拾う）
+                Payload p = rings[idle].poll(1, TimeUnit.MILLISECONDS);
+                idle = idle + 1 == rings.length ? 0 : idle + 1;
+                if (p != null) deliver(p);
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        }
+    }
+
+    private void deliver(Payload p) {
+        try {
+            if (write(p)) written(1, p.length());
+        } catch (IOException e) {
+            failed(1, e);
+        } finally {
+            p.release();
+        }
+    }
+
+    /** reports 件（ペイロード合わせて bytes バイト）を書けた */
+    protected final void written(int reports, long bytes) {
+        written.add(reports);
+        this.bytes.add(bytes);
+    }
+
+    /** 書けずに reports 件を捨てた */
+    protected final void failed(int reports, IOException e) {
+        errors.add(reports);
+        long now = System.currentTimeMillis();
+        if (now - lastErrorLog >= 10_000) { // 出力先が止まっている間ログがあふれないように
+            lastErrorLog = now;
+            System.err.println("[SINK] " + name + ": " + (e.getMessage() != null ? e.getMessage() : e));
+        }
+    }
+
+    @Override
+    public void close() {
+        th.interrupt();
+        try { th.join(1000); } catch (InterruptedException ignore) {}
+        // 残っている分も書いてから閉じる（ワーカは先に止めておくこと）
+        for (SpscRing<Payload> r: rings) {
+            for (Payload p; (p = r.poll()) != null; ) deliver(p);
+        }
+        flush();
+        try {
+            closeOutput();
+        } catch (IOException e) {
+            System.err.println("[SINK] " + name + " close: " + e.getMessage());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+    /** 書き出した件数 */
+    public long getWritten() {
+        return written.sum();
+    }
+    public long getBytes() {
+        return bytes.sum();
+    }
+    /** 書き出しに失敗して捨てた件数 */
+    public long getErrors() {
+        return errors.sum();
+    }
+    /** キューがあふれて捨てた件数 */
+    public long getDropped() {
+        long n = 0;
+        for (SpscRing<Payload> r: rings) n += r.getDropped() + r.getReplaced();
+        return n;
+    }
+    /** ワーカ1本あたりのキューの容量 */
+    public int getCapacity() {
+        return rings[0].capacity();
+    }
+    public int getQueueDepth() {
+        int n = 0;
+        for (SpscRing<Payload> r: rings) n += r.size();
+        return n;
+    }
+}
@@ -0,0 +1,229 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * 単一プロデューサ／単一コンシューマのロックフリー有界リングバッファ。
+ * 容量は2のべき乗。あふれたときの挙動は {@link OverflowPolicy} で選ぶ。
+ *
+ * スロットごとに通し番号（seq）を持つ（Vyukov の有界キューと同じ考え方）。
+ * seq が i なら位置 i を入れてよい空き、i+1 なら位置 i の要素が入っている。
+ * 取り出すときは先に head を CAS で進めて位置 h を「確保」し、確保した側だけがスロットを読んで
+ * seq を h+容量（次の周の空き）にする。DROP_OLDEST ではプロデューサも同じ手順で最古の要素を奪うので、
+ * コンシューマが h を読んだあとに奪われて次の周の要素を先に渡してしまうことはない。
+ */
+public final class SpscRing<E> {
+    public enum OverflowPolicy {
+        /** 空きができるまでプロデューサを待たせる */
+        BLOCK,
+        /** 新しい要素を捨てる */
+        DROP_NEWEST,
+        /** 最古の要素を捨てて入れる */
+        DROP_OLDEST,
+        /** 同じデバイスの未送信要素があれば置き換える。なければ DROP_OLDEST */
+        LATEST_PER_DEVICE;
+
+        public static OverflowPolicy parse(String s) {
+            return valueOf(s.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray seq;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final ToLongFunction<? super E> deviceKey;
+    private final Consumer<? super E> onDrop;
+
+    private final AtomicLong head = new AtomicLong(); // 次に取り出す位置
+    private final AtomicLong tail = new AtomicLong(); // 次に入れる位置（プロデューサのみ更新）
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    // 統計（更新はプロデューサのみ）
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity 2のべき乗
+     * @param deviceKey LATEST_PER_DEVICE のときのデバイス識別子（他のポリシーでは null 可）
+     * @param onDrop 捨てた／置き換えた要素の後始末（null 可）
+     */
+    public SpscRing(int capacity, OverflowPolicy policy, ToLongFunction<? super E> deviceKey, Consumer<? super E> onDrop) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException(String.format("capacity must be a power of two: %d", capacity));
+        if (policy == OverflowPolicy.LATEST_PER_DEVICE && deviceKey == null)
+            throw new IllegalArgumentException("deviceKey is required for LATEST_PER_DEVICE");
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.seq = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) seq.set(i, i);
+        this.mask = capacity - 1;
+        this.policy = policy;
+        this.deviceKey = deviceKey;
+        this.onDrop = onDrop;
+    }
+
+    public SpscRing(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null, null);
+    }
+
+    /**
+     * プロデューサ側。BLOCK 以外では待たない。
+     * @return e を入れたら true（DROP_NEWEST で捨てたときだけ false）
+     */
+    public boolean offer(E e) throws InterruptedException {
+        while (true) {
+            long t = tail.get();
+            int ti = (int)t & mask;
+            if (seq.get(ti) == t) {
+                slots.set(ti, e);
+                seq.set(ti, t + 1);
+                tail.set(t + 1);
+                int depth = (int)(t + 1 - head.get());
+                if (depth > highWaterMark) highWaterMark = depth;
+                Thread w = waitingConsumer;
+                if (w != null) LockSupport.unpark(w);
+                return true;
+            }
+            long h = head.get();
+            if (h != t - mask - 1) {
+                // コンシューマが最古を確保してまだ空けていない途中。すぐ空くので譲って待つ（ここで奪うと余計に捨てる）
+                Thread.yield();
+                continue;
+            }
+            switch (policy) {
+                case BLOCK:
+                    waitingProducer = Thread.currentThread();
+                    if (seq.get(ti) != t) LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    waitingProducer = null;
+                    if (Thread.interrupted()) throw new InterruptedException();
+                    break;
+                case DROP_NEWEST:
+                    drop(e);
+                    return false;
+                case LATEST_PER_DEVICE:
+                    if (replace(e, h, t)) return true;
+                    dropOldest(h); // 置き換え先がなければ最古を捨てる
+                    break;
+                case DROP_OLDEST:
+                    dropOldest(h);
+                    break;
+            }
+        }
+    }
+
+    private void dropOldest(long h) {
+        E old = claim(h);
+        if (old != null) drop(old);
+        // null ならコンシューマが先に取った。呼び出し側で空きができたか見直す
+    }
+
+    private boolean replace(E e, long h, long t) {
+        long key = deviceKey.applyAsLong(e);
+        for (long i = t - 1; i >= h; i--) {
+            int idx = (int)i & mask;
+            E old = slots.get(idx);
+            // コンシューマが確保済み（null）なら CAS は失敗する
+            if (old != null && deviceKey.applyAsLong(old) == key && slots.compareAndSet(idx, old, e)) {
+                replaced.incrementAndGet();
+                if (onDrop != null) onDrop.accept(old);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(E e) {
+        dropped.incrementAndGet();
+        if (onDrop != null) onDrop.accept(e);
+    }
+
+    /**
+     * 位置 h の要素を取り出す。h が入っていて head を h から進められたときだけ要素を返し、
+     * スロットを次の周の空きにする。ほかのスレッドが先に進めたか、まだ入っていなければ null
+     */
+    private E claim(long h) {
+        int hi = (int)h & mask;
+        if (seq.get(hi) != h + 1 || !head.compareAndSet(h, h + 1)) return null;
+        // 確保してから読む。LATEST_PER_DEVICE の置き換えとは getAndSet で順序がつく
+        E e = slots.getAndSet(hi, null);
+        seq.set(hi, h + mask + 1);
+        return e;
+    }
+
+    /** コンシューマ側。空なら null */
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            if (seq.get((int)h & mask) != h + 1) return null;
+            E e = claim(h);
+            if (e != null) {
+                Thread w = waitingProducer;
+                if (w != null) LockSupport.unpark(w);
+                return e;
+            }
+            // プロデューサに奪われた（DROP_OLDEST）ので次を見る
+        }
+    }
+
+    /** コンシューマ側。要素が来るまで待つ */
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /** コンシューマ側。timeout までに来なければ null */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) return e;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            waitingConsumer = Thread.currentThread();
+            e = poll();
+            if (e != null) {
+                waitingConsumer = null;
+                return e;
+            }
+            long remain = deadline - System.nanoTime();
+            if (remain <= 0) {
+                waitingConsumer = null;
+                return null;
+            }
+            LockSupport.parkNanos(this, Math.min(remain, MAX_PARK_NANOS));
+            if (Thread.interrupted()) {
+                waitingConsumer = null;
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    public int size() {
+        long h = head.get();
+        return (int)Math.max(0, tail.get() - h);
+    }
+    public int capacity() {
+        return mask + 1;
+    }
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+    /** あふれて捨てた件数（DROP_*、LATEST_PER_DEVICE で置き換え先がなかった分） */
+    public long getDropped() {
+        return dropped.get();
+    }
+    /** LATEST_PER_DEVICE で置き換えた件数 */
+    public long getReplaced() {
+        return replaced.get();
+    }
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
@@ -0,0 +1,57 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * バイト列を続けて書く出力先（ソケット・ファイル）。広告をバッファにためて、いっぱいになるかキューが空になったら書く。
+ * JSON のときは1件ごとに改行を入れる（NDJSON）。CBOR はそのまま並べる（CBOR シーケンス）。
+ */
+abstract class StreamSink extends Sink {
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private final boolean newline;
+    private int pending;       // out にためている件数
+    private long pendingBytes; // そのペイロードのバイト数（改行は含めない）
+
+    StreamSink(String name, int producers, int capacity, SpscRing.OverflowPolicy policy, boolean newline) {
+        super(name, producers, capacity, policy);
+        this.newline = newline;
+    }
+
+    /** 書き出し先。開いていなければ開く */
+    protected abstract WritableByteChannel open() throws IOException;
+
+    /** 書けなかった。閉じて、次の open() で開き直す */
+    protected abstract void broken();
+
+    @Override
+    protected boolean write(Payload p) throws IOException {
+        int n = p.length() + (newline ? 1 : 0);
+        if (out.remaining() < n) flush();
+        if (out.remaining() < n) throw new IOException(String.format("payload too large: %d bytes", p.length()));
+        out.put(p.array(), 0, p.length());
+        if (newline) out.put((byte)'\n');
+        pending++;
+        pendingBytes += p.length();
+        return false;
+    }
+
+    @Override
+    protected void flush() {
+        if (pending == 0) return;
+        out.flip();
+        try {
+            WritableByteChannel ch = open();
+            while (out.hasRemaining()) ch.write(out);
+            written(pending, pendingBytes);
+        } catch (IOException e) {
+            broken();
+            failed(pending, e); // ためていた分は捨てる
+        } finally {
+            out.clear();
+            pending = 0;
+            pendingBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package jp.fjworks.ble2mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.fjworks.ble2mqtt.adv.Adv;
+
+/**
+ * トピックのテンプレート（例: {prefix}/{adapter}/{mac}/{type}）から広告ごとの送信先を決める。
+ * 組み立てたトピックはデバイス（詰めたMAC＋アダプタ＋種別）ごとにキャッシュし、
+ * 2回目以降は文字列を作らない。満杯のときは長く使っていないものから追い出す。送信スレッドだけから使うこと（スレッドセーフではない）。
+ *
+ * 使えるプレースホルダ:
+ * <ul>
+ *   <li>{prefix}  MQTT_TOPIC</li>
+ *   <li>{adapter} hci0 など</li>
+ *   <li>{mac}     AABBCCDDEEFF（periodic は sync-XXXX）</li>
+ *   <li>{type}    legacy / extended / periodic</li>
+ *   <li>{mfr}     Company ID（4桁16進、なければ none）</li>
+ *   <li>{uuid}    16bitサービスUUID（4桁16進、なければ none）</li>
+ * </ul>
+ */
+public final class TopicRouter {
+    private static final String[] NAMES = { "prefix", "adapter", "mac", "type", "mfr", "uuid" };
+    private static final int PREFIX = 0, ADAPTER = 1, MAC = 2, TYPE = 3, MFR = 4, UUID = 5;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String prefix;
+    private final List<Object> parts = new ArrayList<>(); // String（固定部分）か Integer（プレースホルダ）
+    private final boolean usesMfr;
+    private final boolean usesUuid;
+
+    private final LongSlotMap cache;
+    private final String[] topics;
+    private final int[] mfrs;
+    private final int[] uuids;
+    private long tick; // 使った順（満杯のとき古いものから追い出すため）
+    private final StringBuilder sb = new StringBuilder(64);
+
+    public TopicRouter(String template, String prefix, int cacheSize) {
+        this.prefix = prefix;
+        int i = 0;
+        while (i < template.length()) {
+            int open = template.indexOf('{', i);
+            int close = open < 0 ? -1 : template.indexOf('}', open);
+            if (close < 0) {
+                parts.add(template.substring(i));
+                break;
+            }
+            if (open > i) parts.add(template.substring(i, open));
+            String name = template.substring(open + 1, close);
+            int code = List.of(NAMES).indexOf(name);
+            if (code < 0) throw new IllegalArgumentException(String.format("unknown topic placeholder: {%s}", name));
+            parts.add(code);
+            i = close + 1;
+        }
+        this.usesMfr = parts.contains(MFR);
+        this.usesUuid = parts.contains(UUID);
+        this.cache = new LongSlotMap(cacheSize);
+        this.topics = new String[cacheSize];
+        this.mfrs = new int[cacheSize];
+        this.uuids = new int[cacheSize];
+    }
+
+    /** periodic の sync handle（12bit）やアダプタ・種別と衝突しないように詰める */
+    private static long cacheKey(Adv adv) {
+        return adv.getAddress()
+            ^ ((long)(adv.getAdapter() & 0xFF) << 52)
+            ^ ((long)adv.getType().ordinal() << 60);
+    }
+
+    public String topicFor(Adv adv) {
+        long key = cacheKey(adv);
+        int mfr = usesMfr ? adv.getCompanyId() : -1;
+        int uuid = usesUuid ? adv.getServiceUuid16() : -1;
+        int slot = cache.find(key);
+        if (slot >= 0) {
+            cache.touch(slot, ++tick);
+            if (mfrs[slot] == mfr && uuids[slot] == uuid) return topics[slot];
+        } else {
+            slot = cache.insert(key, ++tick);
+        }
+        mfrs[slot] = mfr;
+        uuids[slot] = uuid;
+        topics[slot] = build(adv, mfr, uuid);
+        return topics[slot];
+    }
+
+    private String build(Adv adv, int mfr, int uuid) {
+        sb.setLength(0);
+        for (Object p: parts) {
+            if (p instanceof String) {
+                sb.append((String)p);
+                continue;
+            }
+            switch ((Integer)p) {
+                case PREFIX:  sb.append(prefix); break;
+                case ADAPTER: sb.append("hci").append(adv.getAdapter()); break;
+                case MAC:     appendAddress(adv.getAddress()); break;
+                case TYPE:    sb.append(adv.getType().label()); break;
+                case MFR:     appendHex16(mfr); break;
+                case UUID:    appendHex16(uuid); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendAddress(long addr) {
+        if ((addr & Adv.SYNC_HANDLE_KEY) != 0) {
+            sb.append("sync-");
+            appendHex16((int)(addr & 0xFFFF));
+            return;
+        }
+        for (int shift = 44; shift >= 0; shift -= 4) sb.append(HEX[(int)(addr >>> shift) & 0x0F]);
+    }
+
+    private void appendHex16(int v) {
+        if (v < 0) {
+            sb.append("none");
+            return;
+        }
+        for (int shift = 12; shift >= 0; shift -= 4) sb.append(Character.toLowerCase(HEX[(v >>> shift) & 0x0F]));
+    }
+}
@@ -0,0 +1,63 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 1広告を UDP データグラム1つで送る（BLE_SINK_UDP）。宛先がマルチキャストアドレスなら LAN のダッシュボードなどへ配れる。
+ * 受け取る側がいなくても、遅くても待たない（届かなかったものはわからない）。
+ */
+final class UdpSink extends Sink {
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final InetSocketAddress target;
+    private final DatagramChannel ch;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    /**
+     * @param ttl   マルチキャストの TTL（1 ならそのセグメントの中だけ）
+     * @param iface マルチキャストを出すインタフェース名（null なら OS まかせ）
+     */
+    UdpSink(InetSocketAddress target, int ttl, String iface, int producers, int capacity, SpscRing.OverflowPolicy policy) throws IOException {
+        super("udp", producers, capacity, policy);
+        this.target = target;
+        this.ch = DatagramChannel.open(target.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        if (target.getAddress().isMulticastAddress()) {
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            if (iface != null) {
+                NetworkInterface ni = NetworkInterface.getByName(iface);
+                if (ni == null) throw new IOException("unknown interface: " + iface);
+                ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            }
+        }
+    }
+
+    /** "239.255.0.1:5683"、"[ff02::1]:5683" */
+    static InetSocketAddress parseTarget(String s) {
+        int colon = s.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("expected host:port: " + s);
+        String host = s.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, Integer.parseInt(s.substring(colon + 1)));
+    }
+
+    @Override
+    protected boolean write(Payload p) throws IOException {
+        if (p.length() > MAX_DATAGRAM) throw new IOException(String.format("payload too large for a datagram: %d bytes", p.length()));
+        out.clear();
+        out.put(p.array(), 0, p.length()).flip();
+        ch.send(out, target);
+        return true;
+    }
+
+    @Override
+    protected void closeOutput() throws IOException {
+        ch.close();
+    }
+}
@@ -0,0 +1,54 @@
+package jp.fjworks.ble2mqtt;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * 同じ機械で動くプロセスが待ち受けている Unix ドメインソケットにつないで書く（BLE_SINK_UNIX）。
+ * 相手がいない・切れたときは1秒おきにつなぎ直し、その間の広告は捨てる。
+ * 相手の読み込みが遅ければこのスレッドが待ち、キューがあふれた分を捨てる。
+ */
+final class UnixSocketSink extends StreamSink {
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Path path;
+    private SocketChannel ch;
+    private long retryAt;
+
+    UnixSocketSink(Path path, int producers, int capacity, SpscRing.OverflowPolicy policy, boolean newline) {
+        super("unix", producers, capacity, policy, newline);
+        this.path = path;
+    }
+
+    @Override
+    protected WritableByteChannel open() throws IOException {
+        if (ch != null) return ch;
+        if (System.currentTimeMillis() < retryAt) throw new IOException("not connected to " + path);
+        SocketChannel c = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            c.connect(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            c.close();
+            retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+            throw new IOException("connect " + path + ": " + e.getMessage(), e);
+        }
+        System.out.println("[SINK] unix connected to " + path);
+        return ch = c;
+    }
+
+    @Override
+    protected void broken() {
+        try { if (ch != null) ch.close(); } catch (IOException ignore) {}
+        ch = null;
+        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+    }
+
+    @Override
+    protected void closeOutput() throws IOException {
+        if (ch != null) ch.close();
+    }
+}
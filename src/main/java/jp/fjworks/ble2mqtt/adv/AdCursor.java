@@ -0,0 +1,84 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * バッファ上の広告データを AD structure ごとにたどる、使い回せるカーソル。
+ * AdStructure.parse と違ってオブジェクトもコピーも作らない。打ち切り条件（L=0、範囲外）は parse と同じ。
+ * <pre>
+ * AdCursor c = adv.adCursor();
+ * while (c.next()) { if (c.type() == 0xff) ... c.u16(0) ... }
+ * </pre>
+ */
+public final class AdCursor {
+    private ByteBuffer buf;
+    private int pos;
+    private int end;
+    private int type;
+    private int valueOff;
+    private int valueLen;
+
+    public AdCursor reset(ByteBuffer buf, int off, int len) {
+        this.buf = buf;
+        this.pos = off;
+        this.end = off + len;
+        this.type = -1;
+        this.valueOff = off;
+        this.valueLen = 0;
+        return this;
+    }
+
+    /** 次の要素へ進む。もうなければ false */
+    public boolean next() {
+        if (buf == null || pos >= end) return false;
+        int l = buf.get(pos) & 0xFF;
+        if (l == 0 || pos + 1 + l > end) {
+            pos = end;
+            return false;
+        }
+        type = buf.get(pos + 1) & 0xFF;
+        valueOff = pos + 2;
+        valueLen = l - 1;
+        pos += 1 + l;
+        return true;
+    }
+
+    /** AD type（0x01 Flags、0xff Manufacturer Specific Data など） */
+    public int type() {
+        return type;
+    }
+    /** 値（L と T を除いた中身）の先頭位置 */
+    public int valueOffset() {
+        return valueOff;
+    }
+    public int valueLength() {
+        return valueLen;
+    }
+    public ByteBuffer buffer() {
+        return buf;
+    }
+    /** 値の i バイト目（符号なし） */
+    public int u8(int i) {
+        return buf.get(valueOff + i) & 0xFF;
+    }
+    /** 値の i バイト目からのリトルエンディアン16bit（符号なし） */
+    public int u16(int i) {
+        return Short.toUnsignedInt(buf.getShort(valueOff + i));
+    }
+    /** 値の [i, i+n) が bytes[from..] と一致するか */
+    public boolean valueEquals(int i, byte[] bytes, int from, int n) {
+        if (i + n > valueLen) return false;
+        for (int k = 0; k < n; k++) {
+            if (buf.get(valueOff + i + k) != bytes[from + k]) return false;
+        }
+        return true;
+    }
+    /** この要素をオブジェクトにする（コピーが必要なときだけ） */
+    public AdStructure toAdStructure() {
+        byte[] b = new byte[valueLen + 2];
+        b[0] = (byte)(valueLen + 1);
+        b[1] = (byte)type;
+        buf.get(valueOff, b, 2, valueLen);
+        return AdStructure.parse(b).iterator().next();
+    }
+}
@@ -8,6 +8,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
+/**
+ * AD structure（広告データの L/T/V 要素）。
+ * JSON/CBOR への書き出しはバッファ上のバイト列から直接行う static メソッドが本体で、
+ * オブジェクト版（parse で作るもの）もそれを呼ぶ。
+ */
 public class AdStructure {
     private int type;
     private byte[] data;
@@ -45,34 +50,146 @@ public class AdStructure {
         }
         return adStructures;
     }
+    public int getType() {
+        return type;
+    }
+    public byte[] getData() {
+        return data;
+    }
+
+    // ---- バッファ上の広告データ [off, off+len) を直接読む ----
+
+    /** 要素の先頭位置を返す。L=0 や長さが範囲外なら -1（parse と同じ打ち切り条件） */
+    private static int next(ByteBuffer b, int i, int end) {
+        if (i >= end) return -1;
+        int l = b.get(i) & 0xFF;
+        if (l == 0 || i + 1 + l > end) return -1;
+        return i;
+    }
+
+    /** 最初の Manufacturer Specific Data の Company ID。なければ -1 */
+    public static int companyId(ByteBuffer b, int off, int len) {
+        int end = off + len;
+        for (int i = next(b, off, end); i >= 0; i = next(b, i + 1 + (b.get(i) & 0xFF), end)) {
+            int l = b.get(i) & 0xFF;
+            if ((b.get(i + 1) & 0xFF) == 0xff && l >= 3) return Short.toUnsignedInt(b.getShort(i + 2));
+        }
+        return -1;
+    }
+
+    /** 最初に出てくる16bitサービスUUID（0x02/0x03 の一覧、0x16 の Service Data）。なければ -1 */
+    public static int serviceUuid16(ByteBuffer b, int off, int len) {
+        int end = off + len;
+        for (int i = next(b, off, end); i >= 0; i = next(b, i + 1 + (b.get(i) & 0xFF), end)) {
+            int l = b.get(i) & 0xFF;
+            int t = b.get(i + 1) & 0xFF;
+            if ((t == 0x02 || t == 0x03 || t == 0x16) && l >= 3) return Short.toUnsignedInt(b.getShort(i + 2));
+        }
+        return -1;
+    }
+
+    /** 広告データ全体を JSON 配列で書く（toJsonString(parse(data)) と同じ出力） */
+    public static void writeJson(JsonEncoder enc, ByteBuffer b, int off, int len) {
+        enc.ch('[');
+        int end = off + len;
+        boolean first = true;
+        for (int i = next(b, off, end); i >= 0; i = next(b, i + 1 + (b.get(i) & 0xFF), end)) {
+            int l = b.get(i) & 0xFF;
+            if (!first) enc.ch(',');
+            writeJson(enc, b.get(i + 1) & 0xFF, b, i + 2, l - 1);
+            first = false;
+        }
+        enc.ch(']');
+    }
+
+    /** 広告データ全体を [[type, value], ...] の CBOR 配列で書く */
+    public static void writeCbor(CborEncoder enc, ByteBuffer b, int off, int len) {
+        int end = off + len;
+        int n = 0;
+        for (int i = next(b, off, end); i >= 0; i = next(b, i + 1 + (b.get(i) & 0xFF), end)) n++;
+        enc.array(n);
+        for (int i = next(b, off, end); i >= 0; i = next(b, i + 1 + (b.get(i) & 0xFF), end)) {
+            int l = b.get(i) & 0xFF;
+            enc.array(2).integer(b.get(i + 1) & 0xFF).bytes(b, i + 2, l - 1);
+        }
+    }
+
+    /**
+     * 1要素を JSON オブジェクトで書く。
+     * 既知の type でも値が短すぎて解釈できないものは UNKNOWN_VALUE として書く。
+     */
+    public static void writeJson(JsonEncoder enc, int type, ByteBuffer b, int off, int n) {
+        enc.ascii("{\"type\":\"0x").hexInt(type, 2).ch('"');
+        switch (type) {
+            case 0x01:
+                if (n < 1) break;
+                Flags.writeValueJson(enc, b.get(off));
+                return;
+            case 0x02: case 0x03: case 0x04: case 0x05: case 0x06: case 0x07:
+                enc.ascii(",\"").ascii(Service.uuidType(type)).ascii("\":\"").hex(b, off, n).ascii("\"}");
+                return;
+            case 0x08: case 0x09:
+                enc.ascii(",\"").ascii(Name.nameType(type)).ascii("\":\"").asciiBytes(b, off, n).ascii("\"}");
+                return;
+            case 0x0a:
+                if (n < 1) break;
+                enc.ascii(",\"tx\":").dec(b.get(off)).ch('}');
+                return;
+            case 0x16:
+                if (n < 2) break;
+                enc.ascii(",\"service_uuid\":\"").hex(b, off, 2)
+                    .ascii("\",\"service_data\":\"").hex(b, off + 2, n - 2).ascii("\"}");
+                return;
+            case 0xff:
+                if (n < 2) break;
+                enc.ascii(",\"manufacturar\":\"0x").hexInt(b.getShort(off), 4)
+                    .ascii("\",\"specific_value\":\"").hex(b, off + 2, n - 2).ascii("\"}");
+                return;
+        }
+        enc.ascii(",\"UNKNOWN_VALUE\":\"").hex(b, off, n).ascii("\"}");
+    }
+
+    // ---- オブジェクト版 ----
+
     public static String toJsonString(Collection<AdStructure> adStructures) {
-        StringBuilder sb = new StringBuilder("[");
+        JsonEncoder enc = new JsonEncoder();
+        writeJson(enc, adStructures);
+        return enc.toString();
+    }
+    public static void writeJson(JsonEncoder enc, Collection<AdStructure> adStructures) {
+        enc.ch('[');
         if(adStructures != null){
+            boolean first = true;
             for (AdStructure adStructure: adStructures) {
-                if(sb.length()>1) sb.append(",");
-                sb.append(adStructure.toJsonString());
+                if(!first) enc.ch(',');
+                adStructure.writeJson(enc);
+                first = false;
             }
         }
-        sb.append("]");
-        return sb.toString();
+        enc.ch(']');
     }
     public String toJsonString() {
-        return String.format("{\"type\":\"0x%02x\",\"UNKNOWN_VALUE\":\"%s\"}",type,BaseAdvParser.hex(data, 0, data.length));
+        JsonEncoder enc = new JsonEncoder(64);
+        writeJson(enc);
+        return enc.toString();
+    }
+    public void writeJson(JsonEncoder enc) {
+        writeJson(enc, type, ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), 0, data.length);
     }
 
     public static class ManufacuturarSpecific extends AdStructure {
         private int manufacturarId;
-        private String manufacturarIdStr;
         private byte[] data;
         private ManufacuturarSpecific(int type, byte[] b) {
             super(type, b);
             this.manufacturarId = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getShort(0);
-            this.manufacturarIdStr = String.format("%04x",this.manufacturarId);
             this.data = Arrays.copyOfRange(b, 2,b.length);
         }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"manufacturar\":\"0x%s\",\"specific_value\":\"%s\"}",super.type, this.manufacturarIdStr, BaseAdvParser.hex(data,0,data.length));
+        public int getManufacturarId() {
+            return manufacturarId & 0xFFFF;
+        }
+        public byte[] getSpecificValue() {
+            return data;
         }
     }
     public static class Name extends AdStructure {
@@ -80,29 +197,34 @@ public class AdStructure {
         private String name;
         private Name(int type, byte[] b) {
             super(type, b);
-            this.nameType = type == 0x09 ? "full_name":"short_name";
+            this.nameType = nameType(type);
             this.name = new String(b,StandardCharsets.US_ASCII);
         }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"%s\":\"%s\"}",super.type, this.nameType, this.name);
+        static String nameType(int type) {
+            return type == 0x09 ? "full_name":"short_name";
+        }
+        public String getNameType() {
+            return nameType;
+        }
+        public String getName() {
+            return name;
         }
     }
     public static class Service extends AdStructure {
         private String uuidType;
-        private String uuid;
         private Service(int type, byte[] b) {
             super(type, b);
-            this.uuidType = type == 0x03 ? "more_16bit_uuids":
+            this.uuidType = uuidType(type);
+        }
+        static String uuidType(int type) {
+            return type == 0x03 ? "more_16bit_uuids":
                 type == 0x04 ? "complete_16bit_uuids":
                 type == 0x05 ? "more_32bit_uuids":
                 type == 0x06 ? "complete_32bit_uuids":
                 type == 0x07 ? "more_128bit_uuids":"complete_128bit_uuids";
-            this.uuid = BaseAdvParser.hex(b, 0, b.length);
         }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"%s\":\"%s\"}",super.type, this.uuidType, this.uuid);
+        public String getUuidType() {
+            return uuidType;
         }
     }
     public static class TxPowerLevel extends AdStructure {
@@ -111,17 +233,17 @@ public class AdStructure {
             super(type, b);
             this.tx = (byte)b[0];
         }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"tx\":%d}",super.type, this.tx);
+        /** dBm */
+        public int getTx() {
+            return tx;
         }
     }
     public static class ServiceData extends AdStructure {
-        private String uuid;
+        private int uuid;
         private byte[] data;
         private ServiceData(int type, byte[] b) {
             super(type, b);
-            this.uuid = BaseAdvParser.hex(b, 0, 2);
+            this.uuid = (b[0] & 0xFF) | (b[1] & 0xFF) << 8;
             if(b.length>2) {
                 this.data = Arrays.copyOfRange(b, 2, b.length);
             }
@@ -129,9 +251,11 @@ public class AdStructure {
                 this.data = new byte[0];
             }
         }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"service_uuid\":\"%s\",\"service_data\":\"%s\"}",super.type, this.uuid, BaseAdvParser.hex(this.data, 0,this.data.length));
+        public int getUuid() {
+            return uuid;
+        }
+        public byte[] getServiceData() {
+            return data;
         }
     }
     public static class Flags extends AdStructure {
@@ -141,31 +265,28 @@ public class AdStructure {
         private static int BLE_GAP_ADV_FLAG_LE_BR_EDR_CONTROLLER = 0x08;
         private static int BLE_GAP_ADV_FLAG_LE_BR_EDR_HOST = 0x10;
         private int flags;
-        private boolean flag_le_limited_disc_mode;
-        private boolean flag_le_general_disc_mode;
-        private boolean flag_br_edr_not_supported;
-        private boolean flag_le_br_edr_controller;
-        private boolean flag_le_br_edr_host;
-        private String str;
         private Flags(int type, byte[] b) {
             super(type, b);
             this.flags = (byte)b[0];
-            this.flag_le_limited_disc_mode = (this.flags & BLE_GAP_ADV_FLAG_LE_LIMITED_DISC_MODE)!=0;
-            this.flag_le_general_disc_mode = (this.flags & BLE_GAP_ADV_FLAG_LE_GENERAL_DISC_MODE)!=0;
-            this.flag_br_edr_not_supported = (this.flags & BLE_GAP_ADV_FLAG_BR_EDR_NOT_SUPPORTED)!=0;
-            this.flag_le_br_edr_controller = (this.flags & BLE_GAP_ADV_FLAG_LE_BR_EDR_CONTROLLER)!=0;
-            this.flag_le_br_edr_host = (this.flags & BLE_GAP_ADV_FLAG_LE_BR_EDR_HOST)!=0;
-            List<String> flgstrs = new ArrayList<>();
-            if (flag_le_limited_disc_mode) flgstrs.add("BLE_GAP_ADV_FLAG_LE_LIMITED_DISC_MODE");
-            if (flag_le_general_disc_mode) flgstrs.add("BLE_GAP_ADV_FLAG_LE_GENERAL_DISC_MODE");
-            if (flag_br_edr_not_supported) flgstrs.add("BLE_GAP_ADV_FLAG_BR_EDR_NOT_SUPPORTED");
-            if (flag_le_br_edr_controller) flgstrs.add("BLE_GAP_ADV_FLAG_LE_BR_EDR_CONTROLLER");
-            if (flag_le_br_edr_host) flgstrs.add("BLE_GAP_ADV_FLAG_LE_BR_EDR_HOST");
-            this.str = String.join("|", flgstrs);
-        }
-        @Override
-        public String toJsonString() {
-            return String.format("{\"type\":\"0x%02x\",\"flags\":\"0x%02x\",\"flags_str\":\"%s\"}",super.type, this.flags, this.str);
+        }
+        public int getFlags() {
+            return flags & 0xFF;
+        }
+        /** ,"flags":"0xNN","flags_str":"..."} を書く（flags は符号付きのまま 0x%02x） */
+        static void writeValueJson(JsonEncoder enc, int flags) {
+            enc.ascii(",\"flags\":\"0x").hexInt(flags, 2).ascii("\",\"flags_str\":\"");
+            boolean first = true;
+            if ((flags & BLE_GAP_ADV_FLAG_LE_LIMITED_DISC_MODE)!=0) first = flagStr(enc, first, "BLE_GAP_ADV_FLAG_LE_LIMITED_DISC_MODE");
+            if ((flags & BLE_GAP_ADV_FLAG_LE_GENERAL_DISC_MODE)!=0) first = flagStr(enc, first, "BLE_GAP_ADV_FLAG_LE_GENERAL_DISC_MODE");
+            if ((flags & BLE_GAP_ADV_FLAG_BR_EDR_NOT_SUPPORTED)!=0) first = flagStr(enc, first, "BLE_GAP_ADV_FLAG_BR_EDR_NOT_SUPPORTED");
+            if ((flags & BLE_GAP_ADV_FLAG_LE_BR_EDR_CONTROLLER)!=0) first = flagStr(enc, first, "BLE_GAP_ADV_FLAG_LE_BR_EDR_CONTROLLER");
+            if ((flags & BLE_GAP_ADV_FLAG_LE_BR_EDR_HOST)!=0) first = flagStr(enc, first, "BLE_GAP_ADV_FLAG_LE_BR_EDR_HOST");
+            enc.ascii("\"}");
+        }
+        private static boolean flagStr(JsonEncoder enc, boolean first, String name) {
+            if (!first) enc.ch('|');
+            enc.ascii(name);
+            return false;
         }
     }
 }
@@ -1,6 +1,41 @@
 package jp.fjworks.ble2mqtt.adv;
 
+import java.util.Collection;
+
+/**
+ * 1件の広告レポート。受信バッファを参照していることがあるので、
+ * 受け取った側は使い終わったら（送信・破棄のどちらでも）必ず release() すること。
+ */
 public interface Adv {
+    /** アドレスを持たない広告（periodic）は sync handle をこのビットと組み合わせて識別する */
+    public static final long SYNC_HANDLE_KEY = 1L << 48;
+
     public int getTotalLength();
-    public String toJsonString();
+    public AdvType getType();
+    /** 受信したアダプタの番号（hciN の N） */
+    public int getAdapter();
+    /** 48bitに詰めたアドレス（AA:BB:CC:DD:EE:FF の AA が最上位） */
+    public long getAddress();
+    public int getRssi();
+    /** 広告データ（AD structures）部分のハッシュ。内容の変化検出用 */
+    public int getPayloadHash();
+    /** 最初の Manufacturer Specific Data の Company ID。なければ -1 */
+    public int getCompanyId();
+    /** 最初に出てくる16bitサービスUUID（サービス一覧／Service Data）。なければ -1 */
+    public int getServiceUuid16();
+    /** AD structure をコピーせずにたどるカーソル（release() まで有効） */
+    public AdCursor adCursor();
+    /** AD structure をオブジェクトにして返す（呼ばれたときにデコードする）。空なら null */
+    public Collection<AdStructure> getAdStructures();
+    public void writeJson(JsonEncoder enc);
+    /** 書式は README の「CBOR ペイロード」を参照 */
+    public void writeCbor(CborEncoder enc);
+    public default String toJsonString() {
+        JsonEncoder enc = new JsonEncoder();
+        writeJson(enc);
+        return enc.toString();
+    }
+    /** 参照している受信バッファを返す。以後このオブジェクトは使えない */
+    public default void release() {
+    }
 }
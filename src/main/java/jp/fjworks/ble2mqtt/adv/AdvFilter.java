@@ -0,0 +1,329 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 受信フレーム上のバイト列のまま判定する許可／拒否フィルタ。
+ * パーサが AdvView を作る前に呼ぶので、捨てるレポートには何も確保しない。
+ * 起動時に {@link #compile(String)} で1回だけ組み立て、以後は解析スレッドからだけ使う（数は統計のスレッドからも読む）。
+ *
+ * 書式（; 区切り、大文字小文字は区別しない）:
+ * <pre>
+ * allow mac AA:BB:CC:DD:EE:FF,11:22:33:44:55:66
+ * deny  oui 00:1A:7D
+ * allow addrtype public,random,2
+ * allow mfr 004c,0059
+ * allow uuid feaa,fe9f
+ * allow pattern AA:BB,Beacon
+ * rssi  -90
+ * </pre>
+ * deny のどれかに当たれば捨てる。次に RSSI が rssi 未満なら捨てる。
+ * allow が1つでもあれば、どれかに当たったものだけ通す。
+ * mfr は Manufacturer Specific Data の Company ID、uuid は 16bit サービスUUID（一覧と Service Data）。
+ * pattern は BlueZ の Pattern と同じく、アドレス（AA:BB:CC:DD:EE:FF、大文字小文字は区別しない）か
+ * Local Name がその文字列で始まるもの。
+ * periodic はアドレスを持たないので mac / oui / addrtype には当たらない。
+ */
+public final class AdvFilter {
+    public enum Kind { MAC, OUI, ADDRTYPE, MFR, UUID, PATTERN, RSSI }
+
+    private static final class Rule {
+        final boolean allow;
+        final Kind kind;
+        final String spec;
+        final LongHashSet addrs; // MAC / OUI
+        final long[] bits;       // ADDRTYPE（256）/ MFR・UUID（65536）
+        final List<byte[]> prefixes; // PATTERN（UTF-8）
+        int rssiFloor;
+        final LongAdder hits = new LongAdder();
+
+        Rule(boolean allow, Kind kind, String spec) {
+            this.allow = allow;
+            this.kind = kind;
+            this.spec = spec;
+            this.addrs = kind == Kind.MAC || kind == Kind.OUI ? new LongHashSet() : null;
+            this.bits = kind == Kind.ADDRTYPE ? new long[4]
+                : kind == Kind.MFR || kind == Kind.UUID ? new long[1024] : null;
+            this.prefixes = kind == Kind.PATTERN ? new ArrayList<>() : null;
+        }
+        void set(int v) {
+            bits[v >>> 6] |= 1L << v;
+        }
+        boolean has(int v) {
+            return v >= 0 && (v >>> 6) < bits.length && (bits[v >>> 6] & (1L << v)) != 0;
+        }
+    }
+
+    private final Rule[] denies;
+    private final Rule[] allows;
+    private final Rule rssiRule;
+    private final AdvFilter next; // これも通ったものだけ通す（null なら見ない）
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private AdvFilter(List<Rule> rules) {
+        this(rules.stream().filter(r -> !r.allow && r.kind != Kind.RSSI).toArray(Rule[]::new),
+            rules.stream().filter(r -> r.allow).toArray(Rule[]::new),
+            rules.stream().filter(r -> r.kind == Kind.RSSI).reduce((x, y) -> y).orElse(null), null);
+    }
+
+    private AdvFilter(Rule[] denies, Rule[] allows, Rule rssiRule, AdvFilter next) {
+        this.denies = denies;
+        this.allows = allows;
+        this.rssiRule = rssiRule;
+        this.next = next;
+    }
+
+    /**
+     * このフィルタと other の両方を通ったものだけ通すフィルタ（allow は1つのフィルタの中では「どれか」なので、
+     * 「どちらも」にしたいときに使う）。ヒット数はそれぞれのルールに数える。other が null ならこのまま
+     */
+    public AdvFilter and(AdvFilter other) {
+        if (other == null) return this;
+        return new AdvFilter(denies, allows, rssiRule, next == null ? other : next.and(other));
+    }
+
+    /** 書式はクラスのコメントを参照。空なら null（フィルタなし） */
+    public static AdvFilter compile(String spec) {
+        if (spec == null || spec.isBlank()) return null;
+        List<Rule> rules = new ArrayList<>();
+        for (String part: spec.split(";")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            String[] t = part.split("\\s+");
+            if (t[0].equalsIgnoreCase("rssi") && t.length == 2) {
+                Rule r = new Rule(false, Kind.RSSI, part);
+                r.rssiFloor = Integer.parseInt(t[1]);
+                rules.add(r);
+                continue;
+            }
+            if (t.length != 3 || !(t[0].equalsIgnoreCase("allow") || t[0].equalsIgnoreCase("deny"))) {
+                throw new IllegalArgumentException(String.format("invalid filter rule: %s", part));
+            }
+            Rule r = new Rule(t[0].equalsIgnoreCase("allow"), Kind.valueOf(t[1].toUpperCase()), part);
+            for (String v: t[2].split(",")) {
+                v = v.trim();
+                switch (r.kind) {
+                    case MAC:      r.addrs.add(parseHexAddress(v, 6)); break;
+                    case OUI:      r.addrs.add(parseHexAddress(v, 3)); break;
+                    case ADDRTYPE: r.set(parseAddrType(v, r)); break;
+                    case MFR:
+                    case UUID:     r.set(Integer.parseInt(v.startsWith("0x") ? v.substring(2) : v, 16) & 0xFFFF); break;
+                    case PATTERN:  r.prefixes.add(v.getBytes(StandardCharsets.UTF_8)); break;
+                    default: throw new IllegalArgumentException(String.format("invalid filter rule: %s", part));
+                }
+            }
+            rules.add(r);
+        }
+        return new AdvFilter(rules);
+    }
+
+    /** AA:BB:CC（区切りなしでもよい）を上位から詰める */
+    private static long parseHexAddress(String s, int bytes) {
+        String h = s.replace(":", "").replace("-", "");
+        if (h.length() != bytes * 2) throw new IllegalArgumentException(String.format("invalid address: %s", s));
+        return Long.parseLong(h, 16);
+    }
+
+    /** public は 0/2（identity 含む）、random は 1/3。数値ならその値だけ */
+    private static int parseAddrType(String v, Rule r) {
+        switch (v.toLowerCase()) {
+            case "public": r.set(2); return 0;
+            case "random": r.set(3); return 1;
+            default: return Integer.decode(v) & 0xFF;
+        }
+    }
+
+    /**
+     * @param addr     詰めたアドレス（periodic は -1）
+     * @param addrType アドレス種別（periodic は -1）
+     * @return 通すなら true
+     */
+    public boolean accept(ByteBuffer b, long addr, int addrType, int rssi, int dataOff, int dlen) {
+        for (Rule r: denies) {
+            if (matches(r, b, addr, addrType, dataOff, dlen)) return reject(r);
+        }
+        if (rssiRule != null && rssi < rssiRule.rssiFloor) return reject(rssiRule);
+        if (allows.length == 0) return acceptNext(b, addr, addrType, rssi, dataOff, dlen);
+        for (Rule r: allows) {
+            if (matches(r, b, addr, addrType, dataOff, dlen)) {
+                r.hits.increment();
+                return acceptNext(b, addr, addrType, rssi, dataOff, dlen);
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    private boolean acceptNext(ByteBuffer b, long addr, int addrType, int rssi, int dataOff, int dlen) {
+        if (next != null && !next.accept(b, addr, addrType, rssi, dataOff, dlen)) {
+            rejected.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+
+    private boolean reject(Rule r) {
+        r.hits.increment();
+        rejected.increment();
+        return false;
+    }
+
+    private boolean matches(Rule r, ByteBuffer b, long addr, int addrType, int dataOff, int dlen) {
+        switch (r.kind) {
+            case MAC:      return addrType >= 0 && r.addrs.contains(addr);
+            case OUI:      return addrType >= 0 && r.addrs.contains(addr >>> 24);
+            case ADDRTYPE: return addrType >= 0 && r.has(addrType);
+            case MFR:      return anyCompanyId(r, b, dataOff, dlen);
+            case UUID:     return anyUuid16(r, b, dataOff, dlen);
+            case PATTERN:  return anyPrefix(r, b, addr, addrType, dataOff, dlen);
+            default:       return false;
+        }
+    }
+
+    /** 打ち切り条件は AdStructure / AdCursor と同じ */
+    private static boolean anyCompanyId(Rule r, ByteBuffer b, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; ) {
+            int l = b.get(i) & 0xFF;
+            if (l == 0 || i + 1 + l > end) break;
+            if ((b.get(i + 1) & 0xFF) == 0xff && l >= 3 && r.has(Short.toUnsignedInt(b.getShort(i + 2)))) return true;
+            i += 1 + l;
+        }
+        return false;
+    }
+
+    private static boolean anyUuid16(Rule r, ByteBuffer b, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; ) {
+            int l = b.get(i) & 0xFF;
+            if (l == 0 || i + 1 + l > end) break;
+            int t = b.get(i + 1) & 0xFF;
+            if (t == 0x02 || t == 0x03) {
+                for (int k = i + 2; k + 2 <= i + 1 + l; k += 2) {
+                    if (r.has(Short.toUnsignedInt(b.getShort(k)))) return true;
+                }
+            } else if (t == 0x16 && l >= 3 && r.has(Short.toUnsignedInt(b.getShort(i + 2)))) {
+                return true;
+            }
+            i += 1 + l;
+        }
+        return false;
+    }
+
+    /** アドレスか Local Name（0x08 / 0x09）がどれかの prefix で始まるか */
+    private static boolean anyPrefix(Rule r, ByteBuffer b, long addr, int addrType, int off, int len) {
+        for (byte[] p: r.prefixes) {
+            if (addrType >= 0 && addressStartsWith(addr, p)) return true;
+        }
+        int end = off + len;
+        for (int i = off; i < end; ) {
+            int l = b.get(i) & 0xFF;
+            if (l == 0 || i + 1 + l > end) break;
+            int t = b.get(i + 1) & 0xFF;
+            if (t == 0x08 || t == 0x09) {
+                for (byte[] p: r.prefixes) {
+                    if (p.length <= l - 1 && startsWith(b, i + 2, p)) return true;
+                }
+            }
+            i += 1 + l;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer b, int pos, byte[] p) {
+        for (int k = 0; k < p.length; k++) {
+            if (b.get(pos + k) != p[k]) return false;
+        }
+        return true;
+    }
+
+    /** "AA:BB:CC:DD:EE:FF" を作らずに先頭を比べる */
+    private static boolean addressStartsWith(long addr, byte[] p) {
+        if (p.length > 17) return false;
+        for (int k = 0; k < p.length; k++) {
+            int c;
+            if (k % 3 == 2) {
+                c = ':';
+            } else {
+                int nibble = (int)(addr >>> (44 - (k / 3) * 8 - (k % 3) * 4)) & 0x0F;
+                c = "0123456789ABCDEF".charAt(nibble);
+            }
+            if (Character.toUpperCase(p[k]) != c) return false;
+        }
+        return true;
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+    public long getRejected() {
+        return rejected.sum();
+    }
+    /** ルールごとのヒット数（"allow mfr 004c=123" の形） */
+    public List<String> getRuleHits() {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String,Long> e: getRuleHitCounts().entrySet()) out.add(e.getKey() + "=" + e.getValue());
+        return out;
+    }
+    /** ルール（書いたとおりの文字列）→ ヒット数。deny、rssi、allow の順 */
+    public Map<String,Long> getRuleHitCounts() {
+        Map<String,Long> out = new LinkedHashMap<>();
+        for (Rule r: denies) out.merge(r.spec, r.hits.sum(), Long::sum);
+        if (rssiRule != null) out.merge(rssiRule.spec, rssiRule.hits.sum(), Long::sum);
+        for (Rule r: allows) out.merge(r.spec, r.hits.sum(), Long::sum);
+        return out;
+    }
+
+    /** 詰めたアドレス用の小さなオープンアドレス集合（起動時に作るだけで消さない） */
+    private static final class LongHashSet {
+        private long[] keys = new long[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        private static int mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int)key;
+        }
+
+        void add(long key) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int m = keys.length - 1;
+            for (int i = mix(key) & m; ; i = (i + 1) & m) {
+                if (!used[i]) {
+                    used[i] = true;
+                    keys[i] = key;
+                    size++;
+                    return;
+                }
+                if (keys[i] == key) return;
+            }
+        }
+
+        boolean contains(long key) {
+            int m = keys.length - 1;
+            for (int i = mix(key) & m; used[i]; i = (i + 1) & m) {
+                if (keys[i] == key) return true;
+            }
+            return false;
+        }
+
+        private void grow() {
+            long[] ok = keys;
+            boolean[] ou = used;
+            keys = new long[ok.length * 2];
+            used = new boolean[ok.length * 2];
+            size = 0;
+            for (int i = 0; i < ok.length; i++) if (ou[i]) add(ok[i]);
+        }
+    }
+}
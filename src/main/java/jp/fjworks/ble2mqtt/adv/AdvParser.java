@@ -1,11 +1,18 @@
 package jp.fjworks.ble2mqtt.adv;
 
-import java.nio.ByteBuffer;
-
 public interface AdvParser {
-    public void parse(ByteBuffer bbuf, int offset, int len, OnParsedCallback callback);
+    /**
+     * frame の offset から len バイト（サブイベントの後ろ）のレポート群を解析して callback に渡す。
+     * 渡す Adv は frame を参照している（コピーしない）。
+     * 長さはすべて len の中に収まるか確かめてから読み、壊れていれば例外を投げずに理由を返す。
+     * そのときはレポートを1件も渡さない。
+     * @param len     offset から読んでよいバイト数（呼び出し側が frame に収まることを保証する）
+     * @param adapter 受信したアダプタの番号（hciN の N）
+     */
+    public ParseStatus parse(Frame frame, int offset, int len, int adapter, OnParsedCallback callback);
     public int[] getSupportedTypes();
     public interface OnParsedCallback {
+        /** adv の所有権は受け取った側に移る。使い終わったら adv.release() すること */
         public void onParsed(Adv adv);
     }
 }
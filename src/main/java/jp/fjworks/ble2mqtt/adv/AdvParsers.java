@@ -5,11 +5,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 public class AdvParsers {
     private Map<Integer,AdvParser> parserMap;
+    // 統計（受信スレッドが1つなら競合しないが、再生と並べて使えるよう LongAdder）
+    private final LongAdder[] subevents = new LongAdder[256];
+    private final LongAdder otherEvents = new LongAdder();
+    private final LongAdder unsupported = new LongAdder();
+    private final LongAdder[] parseErrors = new LongAdder[ParseStatus.values().length];
+    private final Collection<AdvParser> parsers;
     private AdvParsers() {
-        Collection<AdvParser> parsers = Arrays.asList(
+        parsers = Arrays.asList(
             (AdvParser)new LegacyAdvParser(),
             (AdvParser)new ExtendedAdvParser(),
             (AdvParser)new PeriodicAdvParser()
@@ -20,6 +27,8 @@ public class AdvParsers {
                 parserMap.put(i,parser);
             }
         }
+        for (int i = 0; i < subevents.length; i++) subevents[i] = new LongAdder();
+        for (int i = 0; i < parseErrors.length; i++) parseErrors[i] = new LongAdder();
     }
     private class SingletonHolder {
         private static final AdvParsers SINGLETON = new AdvParsers();
@@ -29,21 +38,120 @@ public class AdvParsers {
         return SingletonHolder.SINGLETON;
     }
 
-    public void parse(ByteBuffer bbuf, int offset, AdvParser.OnParsedCallback callback) {
+    private volatile AdvFilter filter;
+    private volatile AdvFilter loadFilter;
+
+    /**
+     * レポートを AdvView にする前に当てるフィルタ（null で解除）。
+     * 解析中に呼んでもよく、次のレポートから新しいフィルタで判定する
+     */
+    public void setFilter(AdvFilter filter) {
+        this.filter = filter;
+        for (AdvParser parser: parserMap.values()) {
+            if (parser instanceof BaseAdvParser) ((BaseAdvParser)parser).setFilter(filter);
+        }
+    }
+    /** いまのフィルタ（なければ null） */
+    public AdvFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * 負荷に応じた絞り込み（AdaptiveScan が段階ごとに差し替える。null で解除）。
+     * setFilter のフィルタとは別に持ち、両方通ったものだけ渡す
+     */
+    public void setLoadFilter(AdvFilter loadFilter) {
+        this.loadFilter = loadFilter;
+        for (AdvParser parser: parserMap.values()) {
+            if (parser instanceof BaseAdvParser) ((BaseAdvParser)parser).setLoadFilter(loadFilter);
+        }
+    }
+    public AdvFilter getLoadFilter() {
+        return loadFilter;
+    }
+
+    /** 両方のフィルタを通って渡したレポートの数 */
+    public long getAccepted() {
+        long n = 0;
+        for (AdvParser parser: parsers) {
+            if (parser instanceof BaseAdvParser) n += ((BaseAdvParser)parser).getAccepted();
+        }
+        return n;
+    }
+
+    /** 解析できる LE Meta サブイベントの一覧（昇順） */
+    public int[] getSupportedSubevents() {
+        return parserMap.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    /** プールを使わずに bbuf をそのまま参照して解析する（offset から limit までがイベント。レポートは bbuf を書き換えるまで有効） */
+    public ParseStatus parse(ByteBuffer bbuf, int offset, AdvParser.OnParsedCallback callback) {
+        Frame frame = Frame.wrap(bbuf);
+        ParseStatus status = parse(frame, offset, bbuf.limit() - offset, 0, callback);
+        frame.release();
+        return status;
+    }
+
+    /**
+     * frame の offset から len バイトの HCI イベントを解析する。
+     * 長さフィールドはすべて len の中に収まるか確かめてから読むので、壊れたイベントでも例外は投げない。
+     * そのときはレポートを渡さずに理由を返し、理由ごとに数える（受信スレッドは止まらない）。
+     */
+    public ParseStatus parse(Frame frame, int offset, int len, int adapter, AdvParser.OnParsedCallback callback) {
+        ByteBuffer bbuf = frame.buffer();
+        if (len < 1) return error(ParseStatus.TRUNCATED_EVENT);
 
         int evt  = bbuf.get(offset++) & 0xFF;
         // System.out.printf("evt: 0x%02x\n",evt);
-        if (evt != 0x3E /* LE Meta */) return; //TODO もうちょっとマシな返しを
-        int len = bbuf.get(offset++) & 0xFF;
-        // System.out.printf("len: 0x%02x\n",len);
+        if (evt != 0x3E /* LE Meta */) {
+            otherEvents.increment();
+            return ParseStatus.UNSUPPORTED;
+        }
+        if (len < 3) return error(ParseStatus.TRUNCATED_EVENT);
+        int plen = bbuf.get(offset++) & 0xFF;
+        // System.out.printf("len: 0x%02x\n",plen);
+        if (plen < 1 || plen > len - 2) return error(ParseStatus.TRUNCATED_EVENT);
         int subevt = bbuf.get(offset++) & 0xFF;
         // System.out.printf("subevt: 0x%02x\n",subevt);
-        if(parserMap.containsKey(Integer.valueOf(subevt))) {
-            parserMap.get(subevt).parse(bbuf, offset, len, callback);
-        }
-        else {
-            System.out.println("not supported.");
-            return;//TODO もうちょっとマシな返しを
+        LongAdder c = subevents[subevt];
+        AdvParser parser = parserMap.get(subevt);
+        if (parser == null) {
+            // 最初の1回だけ知らせて、あとは数えるだけ
+            if (c.sum() == 0) System.out.printf("[ADV] LE Meta subevent 0x%02x not supported.%n", subevt);
+            c.increment();
+            unsupported.increment();
+            return ParseStatus.UNSUPPORTED;
         }
+        c.increment();
+        ParseStatus status = parser.parse(frame, offset, plen - 1, adapter, callback);
+        return status.isError() ? error(status) : status;
+    }
+
+    private ParseStatus error(ParseStatus status) {
+        parseErrors[status.ordinal()].increment();
+        return status;
+    }
+
+    /** LE Meta サブイベントごとの受信数（対応していないものも含む） */
+    public long getSubeventCount(int subevent) {
+        return subevents[subevent & 0xFF].sum();
+    }
+    /** LE Meta 以外のイベント数 */
+    public long getOtherEvents() {
+        return otherEvents.sum();
+    }
+    /** 対応していないサブイベントの数 */
+    public long getUnsupported() {
+        return unsupported.sum();
+    }
+    /** 壊れていて捨てたイベントの数 */
+    public long getParseErrors() {
+        long n = 0;
+        for (LongAdder a: parseErrors) n += a.sum();
+        return n;
+    }
+    /** 理由ごとの壊れていて捨てたイベントの数 */
+    public long getParseErrors(ParseStatus status) {
+        return parseErrors[status.ordinal()].sum();
     }
 }
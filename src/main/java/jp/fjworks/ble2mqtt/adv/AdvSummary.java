@@ -0,0 +1,169 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * 1デバイスの1窓ぶんの広告をまとめたもの（AdvAggregator が窓を閉じるたびに作る）。
+ * 受信バッファは参照せず、最後の広告データはコピーを持つので release() は不要。
+ * RSSI の平均・標準偏差は 0.1dB 単位の整数で持つ。getRssi() は平均を丸めた値。
+ */
+public final class AdvSummary implements Adv {
+    /** TX Power Level を受けていないとき */
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    private final AdvType type;
+    private final int adapter;
+    private final long addr;
+    private final int windowSec;
+    private final int count;
+    private final int rssiMin, rssiMax;
+    private final int rssiMean10, rssiStddev10;
+    private final int txPower;
+    private final byte[] data;
+    private final long firstSeenMillis, lastSeenMillis;
+    private AdCursor cursor;
+
+    public AdvSummary(AdvType type, int adapter, long addr, int windowSec, int count,
+            int rssiMin, int rssiMax, int rssiMean10, int rssiStddev10, int txPower,
+            byte[] data, long firstSeenMillis, long lastSeenMillis) {
+        this.type = type;
+        this.adapter = adapter;
+        this.addr = addr;
+        this.windowSec = windowSec;
+        this.count = count;
+        this.rssiMin = rssiMin;
+        this.rssiMax = rssiMax;
+        this.rssiMean10 = rssiMean10;
+        this.rssiStddev10 = rssiStddev10;
+        this.txPower = txPower;
+        this.data = data;
+        this.firstSeenMillis = firstSeenMillis;
+        this.lastSeenMillis = lastSeenMillis;
+    }
+
+    @Override
+    public int getTotalLength() {
+        return data.length;
+    }
+    @Override
+    public AdvType getType() {
+        return type;
+    }
+    @Override
+    public int getAdapter() {
+        return adapter;
+    }
+    @Override
+    public long getAddress() {
+        return addr;
+    }
+    /** 窓の中の平均（dBm、丸め） */
+    @Override
+    public int getRssi() {
+        return Math.floorDiv(rssiMean10 + 5, 10);
+    }
+    @Override
+    public int getPayloadHash() {
+        return Arrays.hashCode(data);
+    }
+    @Override
+    public int getCompanyId() {
+        return AdStructure.companyId(ByteBuffer.wrap(data), 0, data.length);
+    }
+    @Override
+    public int getServiceUuid16() {
+        return AdStructure.serviceUuid16(ByteBuffer.wrap(data), 0, data.length);
+    }
+    @Override
+    public AdCursor adCursor() {
+        if (cursor == null) cursor = new AdCursor();
+        return cursor.reset(ByteBuffer.wrap(data), 0, data.length);
+    }
+    @Override
+    public Collection<AdStructure> getAdStructures() {
+        return AdStructure.parse(data);
+    }
+
+    /** 窓の長さ（秒） */
+    public int getWindowSec() {
+        return windowSec;
+    }
+    /** 窓の中で受けた広告の数 */
+    public int getCount() {
+        return count;
+    }
+    public int getRssiMin() {
+        return rssiMin;
+    }
+    public int getRssiMax() {
+        return rssiMax;
+    }
+    /** 平均（0.1dB 単位） */
+    public int getRssiMean10() {
+        return rssiMean10;
+    }
+    /** 標準偏差（0.1dB 単位） */
+    public int getRssiStddev10() {
+        return rssiStddev10;
+    }
+    /** 最後に受けた TX Power Level (dBm)。なければ NO_TX_POWER */
+    public int getTxPower() {
+        return txPower;
+    }
+    public long getFirstSeenMillis() {
+        return firstSeenMillis;
+    }
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    @Override
+    public void writeJson(JsonEncoder enc) {
+        if (type == AdvType.PERIODIC) {
+            enc.ascii("{\"src\":\"hci\",\"type\":\"periodic\"");
+        } else {
+            enc.ascii("{\"type\":\"").ascii(type.label()).ascii("\",\"addr\":\"").mac(addr).ch('"');
+        }
+        enc.ascii(",\"window\":").dec(windowSec).ascii(",\"count\":").dec(count)
+           .ascii(",\"rssi\":").dec(getRssi())
+           .ascii(",\"rssi_min\":").dec(rssiMin).ascii(",\"rssi_max\":").dec(rssiMax)
+           .ascii(",\"rssi_mean\":");
+        fixed1(enc, rssiMean10);
+        enc.ascii(",\"rssi_stddev\":");
+        fixed1(enc, rssiStddev10);
+        if (txPower != NO_TX_POWER) enc.ascii(",\"tx_power\":").dec(txPower);
+        enc.ascii(",\"structure\":");
+        AdStructure.writeJson(enc, ByteBuffer.wrap(data), 0, data.length);
+        enc.ascii(",\"raw\":\"").hex(data, 0, data.length)
+           .ascii("\",\"first_seen\":\"").instant(Math.floorDiv(firstSeenMillis, 1000), Math.floorMod(firstSeenMillis, 1000) * 1_000_000)
+           .ascii("\",\"last_seen\":\"").instant(Math.floorDiv(lastSeenMillis, 1000), Math.floorMod(lastSeenMillis, 1000) * 1_000_000)
+           .ascii("\",\"ts\":\"").now().ascii("\"}");
+    }
+
+    /** 0.1 単位の整数を小数1桁で書く（-613 → -61.3） */
+    private static void fixed1(JsonEncoder enc, int v10) {
+        if (v10 < 0) enc.ch('-');
+        int a = Math.abs(v10);
+        enc.dec(a / 10).ch('.').ch((char)('0' + a % 10));
+    }
+
+    @Override
+    public void writeCbor(CborEncoder enc) {
+        int n = 10 + (txPower != NO_TX_POWER ? 1 : 0);
+        if (type == AdvType.PERIODIC) {
+            enc.map(n).text("t").text(type.label());
+        } else {
+            enc.map(n + 1).text("t").text(type.label()).text("a").address(addr);
+        }
+        enc.text("r").integer(getRssi())
+           .text("w").integer(windowSec).text("n").integer(count)
+           .text("rmin").integer(rssiMin).text("rmax").integer(rssiMax)
+           .text("rm").integer(rssiMean10).text("rsd").integer(rssiStddev10);
+        if (txPower != NO_TX_POWER) enc.text("tx").integer(txPower);
+        enc.text("s");
+        AdStructure.writeCbor(enc, ByteBuffer.wrap(data), 0, data.length);
+        enc.text("ts").nowMicros();
+    }
+}
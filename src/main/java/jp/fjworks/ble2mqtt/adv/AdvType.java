@@ -0,0 +1,16 @@
+package jp.fjworks.ble2mqtt.adv;
+
+public enum AdvType {
+    LEGACY("legacy"),
+    EXTENDED("extended"),
+    PERIODIC("periodic");
+
+    private final String label;
+    private AdvType(String label) {
+        this.label = label;
+    }
+    /** JSON の "type" に出す名前 */
+    public String label() {
+        return label;
+    }
+}
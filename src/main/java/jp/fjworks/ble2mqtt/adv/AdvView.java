@@ -0,0 +1,130 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * 受信フレーム上のオフセットだけを持つ Adv（フライウェイト）。
+ * 広告データはコピーせず、AD structure も読まれたとき／書き出すときにその場でデコードする。
+ * 生きている間はフレームを retain し、release() で返す。
+ * 中身は書き換え可能で、release() すると AdvViewPool に戻って次のレポートに使い回される。
+ * なので release() の後は（同じ参照を持っていても）触らないこと。
+ */
+public final class AdvView implements Adv {
+    private final AdvViewPool pool;
+    AdvView next; // AdvViewPool の空きリスト用
+    private AdCursor cursor;
+
+    private Frame frame;
+    private ByteBuffer buf;
+    private AdvType type;
+    private int adapter;
+    private long addr;
+    private int rssi;
+    private int dataOff;
+    private int dlen;
+    private int totalLength;
+
+    AdvView(AdvViewPool pool) {
+        this.pool = pool;
+    }
+
+    /** フレームが FramePool に属していればそのプールの AdvView を使い回す（解析スレッドから呼ぶ） */
+    static AdvView obtain(Frame frame, AdvType type, int adapter, long addr, int rssi, int dataOff, int dlen, int totalLength) {
+        AdvViewPool views = frame.views();
+        AdvView v = views != null ? views.acquire() : new AdvView(null);
+        v.frame = frame.retain();
+        v.buf = frame.buffer();
+        v.type = type;
+        v.adapter = adapter;
+        v.addr = addr;
+        v.rssi = rssi;
+        v.dataOff = dataOff;
+        v.dlen = dlen;
+        v.totalLength = totalLength;
+        return v;
+    }
+
+    @Override
+    public int getTotalLength() {
+        return totalLength;
+    }
+    @Override
+    public AdvType getType() {
+        return type;
+    }
+    @Override
+    public int getAdapter() {
+        return adapter;
+    }
+    @Override
+    public long getAddress() {
+        return addr;
+    }
+    @Override
+    public int getRssi() {
+        return rssi;
+    }
+    /** Arrays.hashCode(広告データ) と同じ値 */
+    @Override
+    public int getPayloadHash() {
+        int h = 1;
+        for (int i = 0; i < dlen; i++) h = 31 * h + buf.get(dataOff + i);
+        return h;
+    }
+    @Override
+    public int getCompanyId() {
+        return AdStructure.companyId(buf, dataOff, dlen);
+    }
+    @Override
+    public int getServiceUuid16() {
+        return AdStructure.serviceUuid16(buf, dataOff, dlen);
+    }
+    /** このレポートの AD structure をたどるカーソル（release() まで有効。呼ぶたびに先頭へ戻る） */
+    @Override
+    public AdCursor adCursor() {
+        if (cursor == null) cursor = new AdCursor();
+        return cursor.reset(buf, dataOff, dlen);
+    }
+    @Override
+    public Collection<AdStructure> getAdStructures() {
+        byte[] data = new byte[dlen];
+        buf.get(dataOff, data, 0, dlen);
+        return AdStructure.parse(data);
+    }
+
+    @Override
+    public void writeJson(JsonEncoder enc) {
+        if (type == AdvType.PERIODIC) {
+            enc.ascii("{\"src\":\"hci\",\"type\":\"periodic\"");
+        } else {
+            enc.ascii("{\"type\":\"").ascii(type.label()).ascii("\",\"addr\":\"").mac(addr).ch('"');
+        }
+        enc.ascii(",\"rssi\":").dec(rssi).ascii(",\"structure\":");
+        AdStructure.writeJson(enc, buf, dataOff, dlen);
+        enc.ascii(",\"raw\":\"").hex(buf, dataOff, dlen).ascii("\",\"ts\":\"").now().ascii("\"}");
+    }
+
+    @Override
+    public void writeCbor(CborEncoder enc) {
+        if (type == AdvType.PERIODIC) {
+            enc.map(4).text("t").text(type.label());
+        } else {
+            enc.map(5).text("t").text(type.label()).text("a").address(addr);
+        }
+        enc.text("r").integer(rssi).text("s");
+        AdStructure.writeCbor(enc, buf, dataOff, dlen);
+        enc.text("ts").nowMicros();
+    }
+
+    @Override
+    public void release() {
+        Frame f = frame;
+        if (f == null) return;
+        frame = null;
+        buf = null;
+        if (cursor != null) cursor.reset(null, 0, 0);
+        f.release();
+        if (pool != null) pool.recycle(this);
+    }
+}
@@ -0,0 +1,55 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * AdvView の使い回し用プール（FramePool と同じ作り）。
+ * acquire はフレームを受け取って解析するスレッド1本だけから、release はどのスレッドからでもよい。
+ * 空なら maxViews まで新しく作り、それも超えたらプールに戻らない AdvView を渡す。
+ */
+public final class AdvViewPool {
+    private final int maxViews;
+    private final AtomicReference<AdvView> free = new AtomicReference<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AdvViewPool(int initialViews, int maxViews) {
+        this.maxViews = Math.max(initialViews, maxViews);
+        for (int i = 0; i < initialViews; i++) recycle(new AdvView(this));
+        allocated.set(initialViews);
+    }
+
+    AdvView acquire() {
+        AdvView v;
+        while (true) {
+            v = free.get();
+            if (v == null) break;
+            // pop するのは1スレッドだけなので ABA は起きない
+            if (free.compareAndSet(v, v.next)) break;
+        }
+        if (v == null) {
+            misses.incrementAndGet();
+            v = new AdvView(allocated.incrementAndGet() <= maxViews ? this : null);
+        }
+        v.next = null;
+        return v;
+    }
+
+    void recycle(AdvView v) {
+        while (true) {
+            AdvView head = free.get();
+            v.next = head;
+            if (free.compareAndSet(head, v)) return;
+        }
+    }
+
+    /** プールが空で新しく作った回数 */
+    public long getMisses() {
+        return misses.get();
+    }
+    public int getAllocated() {
+        return Math.min(allocated.get(), maxViews);
+    }
+}
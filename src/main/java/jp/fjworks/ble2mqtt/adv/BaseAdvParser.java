@@ -1,8 +1,36 @@
 package jp.fjworks.ble2mqtt.adv;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
 
 public abstract class BaseAdvParser {
+    /** null ならすべて通す（AdvParsers.setFilter で設定する。動作中に差し替えられるので1回だけ読むこと） */
+    private volatile AdvFilter filter;
+    /** 負荷に応じた絞り込み（AdvParsers.setLoadFilter）。filter と両方通ったものだけ渡す */
+    private volatile AdvFilter loadFilter;
+    private final LongAdder accepted = new LongAdder();
+
+    void setFilter(AdvFilter filter) {
+        this.filter = filter;
+    }
+    void setLoadFilter(AdvFilter loadFilter) {
+        this.loadFilter = loadFilter;
+    }
+
+    /** フィルタを通すか。AdvView を作る前にフレーム上のバイト列のまま判定する */
+    protected final boolean accept(ByteBuffer b, long addr, int addrType, int rssi, int dataOff, int dlen) {
+        AdvFilter f = filter;
+        if (f != null && !f.accept(b, addr, addrType, rssi, dataOff, dlen)) return false;
+        AdvFilter l = loadFilter;
+        if (l != null && !l.accept(b, addr, addrType, rssi, dataOff, dlen)) return false;
+        accepted.increment();
+        return true;
+    }
+
+    /** フィルタを通ったレポートの数 */
+    long getAccepted() {
+        return accepted.sum();
+    }
 
     // 16進 → byte[]
     static byte[] hexToBytes(String hex) {
@@ -15,20 +43,21 @@ public abstract class BaseAdvParser {
     }
 
     static String hex(byte[] b, int off, int len) {
-        StringBuilder sb = new StringBuilder(len*2);
-        for (int k=0;k<len;k++) sb.append(String.format("%02x", b[off+k]));
-        return sb.toString();
+        return new JsonEncoder(len*2).hex(b, off, len).toString();
     }
 
     static String hex(ByteBuffer bbuf, int pos, int len) {
-        StringBuilder sb = new StringBuilder(len*2);
-        for (int i=0;i<len;i++) sb.append(String.format("%02x", bbuf.get(pos+i)));
-        return sb.toString();
+        return new JsonEncoder(len*2).hex(bbuf, pos, len).toString();
     }
-    
+
     static String mac(ByteBuffer bbuf, int pos) { // little-endian
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
-                bbuf.get(pos+5)&0xFF, bbuf.get(pos+4)&0xFF, bbuf.get(pos+3)&0xFF,
-                bbuf.get(pos+2)&0xFF, bbuf.get(pos+1)&0xFF, bbuf.get(pos)&0xFF);
+        return new JsonEncoder(17).mac(macLong(bbuf, pos)).toString();
+    }
+
+    /** little-endianの6バイトアドレスを48bitのlongに詰める（上位がAA:BB:...の先頭） */
+    static long macLong(ByteBuffer bbuf, int pos) {
+        long v = 0;
+        for (int i = 5; i >= 0; i--) v = (v << 8) | (bbuf.get(pos+i) & 0xFF);
+        return v;
     }
 }
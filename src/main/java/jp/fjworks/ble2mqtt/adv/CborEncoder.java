@@ -0,0 +1,135 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * 再利用可能なバッファへ CBOR (RFC 8949) を直接書き出すエンコーダ。
+ * 使う型は整数・バイト列・ASCII文字列・配列・マップだけ。
+ * スレッドセーフではないので、スレッドごとに1つ持つこと。
+ */
+public final class CborEncoder {
+    private static final int MAJOR_UINT = 0, MAJOR_NINT = 1, MAJOR_BYTES = 2, MAJOR_TEXT = 3,
+        MAJOR_ARRAY = 4, MAJOR_MAP = 5;
+    private static final int INDEFINITE_ARRAY = 0x9f;
+    private static final int BREAK = 0xff;
+
+    private byte[] buf;
+    private int len;
+
+    public CborEncoder() {
+        this(512);
+    }
+    public CborEncoder(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    public CborEncoder reset() {
+        len = 0;
+        return this;
+    }
+    public int length() {
+        return len;
+    }
+    /** 内部バッファそのもの（有効なのは [0, length()) の範囲） */
+    public byte[] array() {
+        return buf;
+    }
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+
+    private CborEncoder head(int major, long v) {
+        ensure(9);
+        int m = major << 5;
+        if (v < 24) {
+            buf[len++] = (byte)(m | v);
+        } else if (v < 0x100) {
+            buf[len++] = (byte)(m | 24);
+            buf[len++] = (byte)v;
+        } else if (v < 0x10000) {
+            buf[len++] = (byte)(m | 25);
+            putBE(v, 2);
+        } else if (v < 0x100000000L) {
+            buf[len++] = (byte)(m | 26);
+            putBE(v, 4);
+        } else {
+            buf[len++] = (byte)(m | 27);
+            putBE(v, 8);
+        }
+        return this;
+    }
+
+    private void putBE(long v, int n) {
+        for (int i = n - 1; i >= 0; i--) buf[len++] = (byte)(v >>> (i * 8));
+    }
+
+    public CborEncoder integer(long v) {
+        return v >= 0 ? head(MAJOR_UINT, v) : head(MAJOR_NINT, -1 - v);
+    }
+
+    public CborEncoder bytes(byte[] b, int off, int n) {
+        head(MAJOR_BYTES, n);
+        ensure(n);
+        System.arraycopy(b, off, buf, len, n);
+        len += n;
+        return this;
+    }
+
+    public CborEncoder bytes(ByteBuffer bbuf, int pos, int n) {
+        head(MAJOR_BYTES, n);
+        ensure(n);
+        bbuf.get(pos, buf, len, n);
+        len += n;
+        return this;
+    }
+
+    /** 48bitに詰めたアドレスを6バイトのバイト列（AA が先頭）で書く */
+    public CborEncoder address(long addr) {
+        head(MAJOR_BYTES, 6);
+        ensure(6);
+        putBE(addr, 6);
+        return this;
+    }
+
+    /** ASCIIのみの文字列（キーや固定値） */
+    public CborEncoder text(String s) {
+        int n = s.length();
+        head(MAJOR_TEXT, n);
+        ensure(n);
+        for (int i = 0; i < n; i++) buf[len++] = (byte)s.charAt(i);
+        return this;
+    }
+
+    public CborEncoder array(int n) {
+        return head(MAJOR_ARRAY, n);
+    }
+    public CborEncoder map(int n) {
+        return head(MAJOR_MAP, n);
+    }
+
+    /** 長さ未定の配列の開始。endIndefinite() で閉じる */
+    public CborEncoder beginIndefiniteArray() {
+        ensure(1);
+        buf[len++] = (byte)INDEFINITE_ARRAY;
+        return this;
+    }
+    public CborEncoder endIndefinite() {
+        ensure(1);
+        buf[len++] = (byte)BREAK;
+        return this;
+    }
+
+    /** 現在時刻をエポックからのマイクロ秒で書く */
+    public CborEncoder nowMicros() {
+        Instant t = Instant.now();
+        return integer(t.getEpochSecond() * 1_000_000L + t.getNano() / 1_000);
+    }
+}
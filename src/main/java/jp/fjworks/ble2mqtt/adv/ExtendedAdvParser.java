@@ -1,28 +1,39 @@
 package jp.fjworks.ble2mqtt.adv;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
 
 public class ExtendedAdvParser extends BaseAdvParser implements AdvParser {
     private int[] supportedTypes = new int[] { 0x0d };
+    private static final int MAX_REPORTS = 0x0A;
+    private static final int REPORT_FIXED = 24; // データ長（offset 23）までの固定部分
+    private static final int MAX_DATA = 229;
     
     @Override
-    public void parse(ByteBuffer bbuf, int offset, int len, OnParsedCallback callback) {
-        if (len < 1) throw new IllegalArgumentException(String.format("invalid len: %d",len));
+    public ParseStatus parse(Frame frame, int offset, int len, int adapter, OnParsedCallback callback) {
+        if (len < 1) return ParseStatus.TRUNCATED_EVENT;
+        ByteBuffer bbuf = frame.buffer();
         int num = bbuf.get(offset++) & 0xFF; len--;
         // System.out.printf("num: %d",num);
+        if (num < 1 || num > MAX_REPORTS) return ParseStatus.BAD_NUM_REPORTS;
+        // 先に長さだけたどり、全部収まっているときだけ渡す
+        for (int i = 0, p = offset, rest = len; i < num; i++) {
+            if (rest < REPORT_FIXED) return ParseStatus.TRUNCATED_REPORT;
+            int dlen = bbuf.get(p + REPORT_FIXED - 1) & 0xFF;
+            if (dlen > MAX_DATA) return ParseStatus.BAD_DATA_LENGTH;
+            if (rest < REPORT_FIXED + dlen) return ParseStatus.TRUNCATED_REPORT;
+            p += REPORT_FIXED + dlen;
+            rest -= REPORT_FIXED + dlen;
+        }
         for (int i=0;i<num;i++) {
-            Adv adv = parseOne(bbuf,offset,len-1);
-            callback.onParsed(adv);
-            offset+=adv.getTotalLength();
-            len-=adv.getTotalLength();
+            offset += parseOne(frame,bbuf,offset,adapter,callback);
         }
+        return ParseStatus.OK;
     }
-    private static Adv parseOne(ByteBuffer bbuf, int offset, int len) {
-        if (len < 24) throw new IllegalArgumentException(); //TODO message
+    /** 1件読んで（フィルタを通れば）callback に渡し、レポートの長さを返す（長さは parse で確かめ済み） */
+    private int parseOne(Frame frame, ByteBuffer bbuf, int offset, int adapter, OnParsedCallback callback) {
         int type     = Short.toUnsignedInt(bbuf.getShort(offset)); offset+=2;
         int addrType = bbuf.get(offset++) & 0xFF;
-        String addr  = mac(bbuf, offset); offset+=6;
+        long addr    = macLong(bbuf, offset); offset+=6;
         int priPhy   = bbuf.get(offset++) & 0xFF;
         int secPhy   = bbuf.get(offset++) & 0xFF;
         int sid      = bbuf.get(offset++) & 0xFF;
@@ -30,26 +41,15 @@ public class ExtendedAdvParser extends BaseAdvParser implements AdvParser {
         int rssi     = (byte)bbuf.get(offset++);
         int interval = Short.toUnsignedInt(bbuf.getShort(offset)); offset+=2;
         int daddrT   = bbuf.get(offset++) & 0xFF;
-        String daddr = mac(bbuf, offset); offset+=6;
+        long daddr   = macLong(bbuf, offset); offset+=6;
         int dlen     = bbuf.get(offset++) & 0xFF;
-        byte[] data = new byte[dlen]; bbuf.get(offset, data, 0, dlen);offset += dlen;
-        int totallength = dlen + 24;
-
-        Collection<AdStructure> adStructures = AdStructure.parse(data);
+        int dataOff  = offset; offset += dlen;
+        int totallength = dlen + REPORT_FIXED;
 
-        return new Adv() {
-            @Override
-            public int getTotalLength() {
-                return totallength;
-            }
-
-            @Override
-            public String toJsonString() {
-                return String.format(
-                    "{\"type\":\"extended\",\"addr\":\"%s\",\"rssi\":%d,\"structure\":%s,\"raw\":\"%s\",\"ts\":\"%s\"}",
-                    addr, rssi, AdStructure.toJsonString(adStructures), hex(data, 0, dlen), java.time.Instant.now());
-            }
-        };
+        if (accept(bbuf, addr, addrType, rssi, dataOff, dlen)) {
+            callback.onParsed(AdvView.obtain(frame, AdvType.EXTENDED, adapter, addr, rssi, dataOff, dlen, totallength));
+        }
+        return totallength;
     }
     @Override
     public int[] getSupportedTypes() {
@@ -0,0 +1,62 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 受信した1フレーム分のバッファ。参照カウントで寿命を管理し、
+ * 0 になったら {@link FramePool} に戻る（プールに属さないものは GC 任せ）。
+ * AdvView はフレームを参照している間 retain しておく。
+ */
+public final class Frame {
+    private final ByteBuffer buf;
+    private final long address;
+    private final FramePool pool;
+    private final AtomicInteger refs = new AtomicInteger();
+    Frame next; // FramePool の空きリスト用
+
+    Frame(ByteBuffer buf, long address, FramePool pool) {
+        this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        this.address = address;
+        this.pool = pool;
+    }
+
+    /** プールに属さない使い捨てフレーム（リプレイやベンチマーク用）。参照カウントは1 */
+    public static Frame wrap(ByteBuffer buf) {
+        Frame f = new Frame(buf, 0, null);
+        f.refs.set(1);
+        return f;
+    }
+
+    /** このフレームを指す AdvView の使い回し用プール（プールに属さないフレームは null） */
+    AdvViewPool views() {
+        return pool != null ? pool.views() : null;
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+    /** ダイレクトバッファのネイティブアドレス（わからなければ 0） */
+    public long address() {
+        return address;
+    }
+
+    public Frame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (r < 0) {
+            throw new IllegalStateException("frame released too many times");
+        }
+    }
+
+    void acquired() {
+        refs.set(1);
+    }
+}
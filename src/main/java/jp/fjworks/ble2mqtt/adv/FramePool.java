@@ -0,0 +1,86 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+
+/**
+ * 受信用ダイレクトバッファのプール。
+ * acquire は受信スレッド1本だけから呼ぶこと（release はどのスレッドからでもよい）。
+ * 空なら maxFrames まで新しく確保し、それも超えたらプールに戻らないフレームを渡す。
+ * 受信スレッドが待たされることはない。
+ * フレームを解析してできる AdvView もこのプールに付いた AdvViewPool で使い回す。
+ */
+public final class FramePool {
+    private final int frameSize;
+    private final int maxFrames;
+    private final ToLongFunction<ByteBuffer> addressOf;
+    private final AtomicReference<Frame> free = new AtomicReference<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicLong misses = new AtomicLong();
+    private final AdvViewPool views;
+
+    /**
+     * @param addressOf ダイレクトバッファのネイティブアドレスを求める関数（不要なら null）
+     */
+    public FramePool(int frameSize, int initialFrames, int maxFrames, ToLongFunction<ByteBuffer> addressOf) {
+        this.frameSize = frameSize;
+        this.maxFrames = Math.max(initialFrames, maxFrames);
+        this.addressOf = addressOf;
+        // 最初の分はまとめて1つ確保して切り分ける
+        ByteBuffer block = ByteBuffer.allocateDirect(frameSize * initialFrames);
+        long base = addressOf != null ? addressOf.applyAsLong(block) : 0;
+        for (int i = 0; i < initialFrames; i++) {
+            ByteBuffer b = block.slice(i * frameSize, frameSize);
+            recycle(new Frame(b, base == 0 ? 0 : base + (long)i * frameSize, this));
+        }
+        allocated.set(initialFrames);
+        // 1フレームに複数レポートが載ることもあるので AdvView は多めに持てるようにしておく
+        this.views = new AdvViewPool(initialFrames, this.maxFrames * 2);
+    }
+
+    public Frame acquire() {
+        Frame f;
+        while (true) {
+            f = free.get();
+            if (f == null) break;
+            // pop するのは1スレッドだけなので ABA は起きない
+            if (free.compareAndSet(f, f.next)) break;
+        }
+        if (f == null) {
+            misses.incrementAndGet();
+            ByteBuffer b = ByteBuffer.allocateDirect(frameSize);
+            long addr = addressOf != null ? addressOf.applyAsLong(b) : 0;
+            f = new Frame(b, addr, allocated.incrementAndGet() <= maxFrames ? this : null);
+        }
+        f.next = null;
+        f.acquired();
+        return f;
+    }
+
+    void recycle(Frame f) {
+        while (true) {
+            Frame head = free.get();
+            f.next = head;
+            if (free.compareAndSet(head, f)) return;
+        }
+    }
+
+    /** フレームを解析して作る AdvView のプール（acquire と同じスレッドで使う） */
+    public AdvViewPool views() {
+        return views;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+    /** プールが空で新しく確保した回数 */
+    public long getMisses() {
+        return misses.get();
+    }
+    public int getAllocated() {
+        return Math.min(allocated.get(), maxFrames);
+    }
+}
@@ -0,0 +1,217 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * 再利用可能なバッファへJSONを直接書き出すエンコーダ。
+ * String.format / 中間Stringを作らずにUTF-8バイト列を組み立てる。
+ * スレッドセーフではないので、スレッドごとに1つ持つこと。
+ */
+public final class JsonEncoder {
+    private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    // US_ASCIIでデコードできないバイトは U+FFFD (EF BF BD) になる
+    private static final byte[] REPLACEMENT = { (byte)0xEF, (byte)0xBF, (byte)0xBD };
+
+    private byte[] buf;
+    private int len;
+
+    public JsonEncoder() {
+        this(512);
+    }
+    public JsonEncoder(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    public JsonEncoder reset() {
+        len = 0;
+        return this;
+    }
+    public int length() {
+        return len;
+    }
+    /** 内部バッファそのもの（有効なのは [0, length()) の範囲） */
+    public byte[] array() {
+        return buf;
+    }
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+
+    public JsonEncoder ch(char c) {
+        ensure(1);
+        buf[len++] = (byte)c;
+        return this;
+    }
+
+    /** ASCIIのみの文字列（キーや固定値）をそのまま書く */
+    public JsonEncoder ascii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) buf[len++] = (byte)s.charAt(i);
+        return this;
+    }
+
+    /** new String(b, US_ASCII) と同じ結果になるように書く（エスケープはしない） */
+    public JsonEncoder asciiBytes(byte[] b, int off, int n) {
+        ensure(n * REPLACEMENT.length);
+        for (int i = 0; i < n; i++) {
+            byte v = b[off + i];
+            if (v >= 0) {
+                buf[len++] = v;
+            } else {
+                buf[len++] = REPLACEMENT[0];
+                buf[len++] = REPLACEMENT[1];
+                buf[len++] = REPLACEMENT[2];
+            }
+        }
+        return this;
+    }
+
+    public JsonEncoder asciiBytes(ByteBuffer bbuf, int pos, int n) {
+        ensure(n * REPLACEMENT.length);
+        for (int i = 0; i < n; i++) {
+            byte v = bbuf.get(pos + i);
+            if (v >= 0) {
+                buf[len++] = v;
+            } else {
+                buf[len++] = REPLACEMENT[0];
+                buf[len++] = REPLACEMENT[1];
+                buf[len++] = REPLACEMENT[2];
+            }
+        }
+        return this;
+    }
+
+    /** %d 相当 */
+    public JsonEncoder dec(long v) {
+        if (v == Long.MIN_VALUE) return ascii(Long.toString(v));
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte)('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        reverse(start, len - 1);
+        return this;
+    }
+
+    /** %0Nx 相当（負数は32bit符号なしとして扱う） */
+    public JsonEncoder hexInt(int v, int minDigits) {
+        int digits = Math.max(minDigits, (32 - Integer.numberOfLeadingZeros(v) + 3) / 4);
+        ensure(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buf[len++] = HEX_LOWER[(i < 8) ? (v >>> (i * 4)) & 0x0F : 0];
+        }
+        return this;
+    }
+
+    /** 1バイトにつき小文字16進2桁 */
+    public JsonEncoder hex(byte[] b, int off, int n) {
+        ensure(n * 2);
+        for (int i = 0; i < n; i++) {
+            int v = b[off + i];
+            buf[len++] = HEX_LOWER[(v >> 4) & 0x0F];
+            buf[len++] = HEX_LOWER[v & 0x0F];
+        }
+        return this;
+    }
+
+    public JsonEncoder hex(ByteBuffer bbuf, int pos, int n) {
+        ensure(n * 2);
+        for (int i = 0; i < n; i++) {
+            int v = bbuf.get(pos + i);
+            buf[len++] = HEX_LOWER[(v >> 4) & 0x0F];
+            buf[len++] = HEX_LOWER[v & 0x0F];
+        }
+        return this;
+    }
+
+    /** 48bitに詰めたアドレスを AA:BB:CC:DD:EE:FF 形式で書く */
+    public JsonEncoder mac(long addr) {
+        ensure(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int v = (int)(addr >>> shift);
+            buf[len++] = HEX_UPPER[(v >> 4) & 0x0F];
+            buf[len++] = HEX_UPPER[v & 0x0F];
+            if (shift != 0) buf[len++] = ':';
+        }
+        return this;
+    }
+
+    public JsonEncoder now() {
+        Instant t = Instant.now();
+        return instant(t.getEpochSecond(), t.getNano());
+    }
+
+    /** Instant.toString()（ISO_INSTANT）と同じ書式 */
+    public JsonEncoder instant(long epochSecond, int nano) {
+        long days = Math.floorDiv(epochSecond, 86400);
+        int secOfDay = Math.floorMod(epochSecond, 86400);
+        // civil_from_days (H. Hinnant)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return ascii(Instant.ofEpochSecond(epochSecond, nano).toString());
+        }
+        ensure(30);
+        digits((int)year, 4); buf[len++] = '-';
+        digits(month, 2);     buf[len++] = '-';
+        digits(day, 2);       buf[len++] = 'T';
+        digits(secOfDay / 3600, 2);      buf[len++] = ':';
+        digits(secOfDay / 60 % 60, 2);   buf[len++] = ':';
+        digits(secOfDay % 60, 2);
+        if (nano != 0) {
+            buf[len++] = '.';
+            if (nano % 1_000_000 == 0) {
+                digits(nano / 1_000_000, 3);
+            } else if (nano % 1_000 == 0) {
+                digits(nano / 1_000, 6);
+            } else {
+                digits(nano, 9);
+            }
+        }
+        buf[len++] = 'Z';
+        return this;
+    }
+
+    private void digits(int v, int n) {
+        for (int i = len + n - 1; i >= len; i--) {
+            buf[i] = (byte)('0' + v % 10);
+            v /= 10;
+        }
+        len += n;
+    }
+
+    private void reverse(int i, int j) {
+        while (i < j) {
+            byte t = buf[i];
+            buf[i++] = buf[j];
+            buf[j--] = t;
+        }
+    }
+}
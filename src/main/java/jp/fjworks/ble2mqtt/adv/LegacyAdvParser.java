@@ -1,47 +1,48 @@
 package jp.fjworks.ble2mqtt.adv;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
 
 public class LegacyAdvParser extends BaseAdvParser implements AdvParser {
     private int[] supportedTypes = new int[] { 0x02 };
+    private static final int MAX_REPORTS = 0x19;
+    private static final int REPORT_FIXED = 10; // evtType, addrType, addr(6), dlen, rssi
+    private static final int MAX_DATA = 31;
+
     @Override
-    public void parse(ByteBuffer bbuf, int offset, int len, OnParsedCallback callback) {
-        if (len < 1) throw new IllegalArgumentException(String.format("invalid len: %d",len));
+    public ParseStatus parse(Frame frame, int offset, int len, int adapter, OnParsedCallback callback) {
+        if (len < 1) return ParseStatus.TRUNCATED_EVENT;
+        ByteBuffer bbuf = frame.buffer();
         int num = bbuf.get(offset++) & 0xFF; len--;
+        if (num < 1 || num > MAX_REPORTS) return ParseStatus.BAD_NUM_REPORTS;
+        // 先に長さだけたどり、全部収まっているときだけ渡す
+        for (int i = 0, p = offset, rest = len; i < num; i++) {
+            if (rest < REPORT_FIXED) return ParseStatus.TRUNCATED_REPORT;
+            int dlen = bbuf.get(p + 8) & 0xFF;
+            if (dlen > MAX_DATA) return ParseStatus.BAD_DATA_LENGTH;
+            if (rest < REPORT_FIXED + dlen) return ParseStatus.TRUNCATED_REPORT;
+            p += REPORT_FIXED + dlen;
+            rest -= REPORT_FIXED + dlen;
+        }
         for (int i=0;i<num;i++) {
-            Adv adv = parseOne(bbuf,offset,len-1);
-            callback.onParsed(adv);
-            offset+=adv.getTotalLength();
-            len-=adv.getTotalLength();
+            offset += parseOne(frame,bbuf,offset,adapter,callback);
         }
+        return ParseStatus.OK;
     }
     
-    private static Adv parseOne(ByteBuffer bbuf, int offset, int len) {
-        if (len < 10) throw new IllegalArgumentException(String.format("invalid len: %d",len));
+    /** 1件読んで（フィルタを通れば）callback に渡し、レポートの長さを返す（長さは parse で確かめ済み） */
+    private int parseOne(Frame frame, ByteBuffer bbuf, int offset, int adapter, OnParsedCallback callback) {
         int evtType = bbuf.get(offset++) & 0xFF;
         int addrType= bbuf.get(offset++) & 0xFF;
-        String addr = mac(bbuf, offset); offset += 6;
+        long addr   = macLong(bbuf, offset); offset += 6;
         int dlen    = bbuf.get(offset++) & 0xFF;
-        byte[] data = new byte[dlen]; bbuf.get(offset, data, 0, dlen);offset += dlen;
+        int dataOff = offset; offset += dlen;
         int rssi    = (byte)bbuf.get(offset++);
-        int totallength = dlen + 10;
-        len -= totallength;
+        int totallength = dlen + REPORT_FIXED;
 
-        Collection<AdStructure> adStructures = AdStructure.parse(data);
-
-        return new Adv() {
-            @Override
-            public int getTotalLength() {
-                return totallength;
-            }
-            @Override
-            public String toJsonString() {
-                return String.format(
-                    "{\"type\":\"legacy\",\"addr\":\"%s\",\"rssi\":%d,\"structure\":%s,\"raw\":\"%s\",\"ts\":\"%s\"}",
-                    addr, rssi, AdStructure.toJsonString(adStructures), hex(data, 0, dlen), java.time.Instant.now());
-            }
-        };
+        if (accept(bbuf, addr, addrType, rssi, dataOff, dlen)) {
+            callback.onParsed(AdvView.obtain(frame, AdvType.LEGACY, adapter, addr, rssi, dataOff, dlen, totallength));
+        }
+        return totallength;
     }
 
     @Override
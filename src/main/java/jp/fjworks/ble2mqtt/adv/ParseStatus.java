@@ -0,0 +1,32 @@
+package jp.fjworks.ble2mqtt.adv;
+
+/**
+ * AdvParsers.parse / AdvParser.parse の結果。壊れたイベントは例外ではなくこれで知らせる。
+ * OK と UNSUPPORTED 以外はイベントごと捨てている（レポートは1件も渡さない）。
+ */
+public enum ParseStatus {
+    OK("ok"),
+    /** LE Meta 以外のイベント、対応していないサブイベント（壊れてはいない） */
+    UNSUPPORTED("unsupported"),
+    /** イベントのヘッダや長さフィールドがフレームに収まらない */
+    TRUNCATED_EVENT("truncated_event"),
+    /** レポート数が 0 か規格の上限を超える */
+    BAD_NUM_REPORTS("bad_num_reports"),
+    /** レポートの固定部分か広告データが、イベントの残りに収まらない */
+    TRUNCATED_REPORT("truncated_report"),
+    /** 広告データの長さが規格の上限を超える */
+    BAD_DATA_LENGTH("bad_data_length");
+
+    private final String label;
+    private ParseStatus(String label) {
+        this.label = label;
+    }
+    /** 統計のラベルに出す名前 */
+    public String label() {
+        return label;
+    }
+    /** 壊れていて捨てたか */
+    public boolean isError() {
+        return this != OK && this != UNSUPPORTED;
+    }
+}
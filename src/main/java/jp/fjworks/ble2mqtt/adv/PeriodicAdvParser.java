@@ -1,34 +1,30 @@
 package jp.fjworks.ble2mqtt.adv;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
 
 public class PeriodicAdvParser extends BaseAdvParser implements AdvParser {
     private int[] supportedTypes = new int[] { 0x0f };
+    private static final int REPORT_FIXED = 7; // sync(2), tx, rssi, cte, status, dlen
+    private static final int MAX_DATA = 247;
+
     @Override
-    public void parse(ByteBuffer bbuf, int offset, int len, OnParsedCallback callback) {
+    public ParseStatus parse(Frame frame, int offset, int len, int adapter, OnParsedCallback callback) {
+        ByteBuffer bbuf = frame.buffer();
+        if (len < REPORT_FIXED) return ParseStatus.TRUNCATED_REPORT;
+        int dlen = bbuf.get(offset + REPORT_FIXED - 1) & 0xFF;
+        if (dlen > MAX_DATA) return ParseStatus.BAD_DATA_LENGTH;
+        if (len < REPORT_FIXED + dlen) return ParseStatus.TRUNCATED_REPORT;
         int sync = Short.toUnsignedInt(bbuf.getShort(offset)); offset+=2;
         int tx   = (byte)bbuf.get(offset++); 
         int rssi = (byte)bbuf.get(offset++);
         int cte  = bbuf.get(offset++) & 0xFF;
         int st   = bbuf.get(offset++) & 0xFF;
-        int dlen = bbuf.get(offset++) & 0xFF;
-        byte[] data = new byte[dlen]; bbuf.get(offset, data, 0, dlen);offset += dlen;
-
-        Collection<AdStructure> adStructures = AdStructure.parse(data);
+        offset++; // dlen
+        int dataOff = offset; offset += dlen;
 
-        callback.onParsed(new Adv() {
-            @Override
-            public int getTotalLength() {
-                return 7+dlen;
-            }
-            @Override
-            public String toJsonString() {
-                return String.format(
-                    "{\"src\":\"hci\",\"type\":\"periodic\",\"rssi\":%d,\"structure\":%s,\"raw\":\"%s\",\"ts\":\"%s\"}",
-                    rssi, AdStructure.toJsonString(adStructures), hex(data, 0, dlen), java.time.Instant.now());
-            }
-        });
+        if (!accept(bbuf, -1, -1, rssi, dataOff, dlen)) return ParseStatus.OK;
+        callback.onParsed(AdvView.obtain(frame, AdvType.PERIODIC, adapter, Adv.SYNC_HANDLE_KEY | sync, rssi, dataOff, dlen, REPORT_FIXED+dlen));
+        return ParseStatus.OK;
     }
 
     @Override
@@ -0,0 +1,96 @@
+package jp.fjworks.ble2mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * あふれ続けている間も、取り出す順序が入れた順（LATEST_PER_DEVICE はデバイスごと）を保ち、
+ * 入れたものがちょうど1回ずつ取り出されるか捨てられることを確かめる。
+ */
+class SpscRingTest {
+    private static final int DEVICES = 8;
+    private static final long END = -1;
+
+    @Test
+    void dropOldestKeepsOrderUnderOverload() throws Exception {
+        run(SpscRing.OverflowPolicy.DROP_OLDEST, 1_000_000);
+    }
+
+    @Test
+    void latestPerDeviceKeepsPerDeviceOrderUnderOverload() throws Exception {
+        run(SpscRing.OverflowPolicy.LATEST_PER_DEVICE, 1_000_000);
+    }
+
+    @Test
+    void blockLosesNothing() throws Exception {
+        assertEquals(0, run(SpscRing.OverflowPolicy.BLOCK, 200_000));
+    }
+
+    @Test
+    void dropOldestSingleThread() throws Exception {
+        AtomicLong dropped = new AtomicLong();
+        SpscRing<Long> r = new SpscRing<>(4, SpscRing.OverflowPolicy.DROP_OLDEST, null, e -> dropped.incrementAndGet());
+        for (long i = 0; i < 6; i++) assertTrue(r.offer(i));
+        assertEquals(2, dropped.get());
+        for (long i = 2; i < 6; i++) assertEquals(i, r.poll());
+        assertNull(r.poll());
+        // 一周したあとも同じ
+        assertTrue(r.offer(6L));
+        assertEquals(6L, r.poll());
+        assertEquals(0, r.size());
+    }
+
+    @Test
+    void dropNewestRejects() throws Exception {
+        SpscRing<Long> r = new SpscRing<>(2, SpscRing.OverflowPolicy.DROP_NEWEST);
+        assertTrue(r.offer(0L));
+        assertTrue(r.offer(1L));
+        assertFalse(r.offer(2L));
+        assertEquals(0L, r.poll());
+        assertEquals(1L, r.poll());
+        assertEquals(1, r.getDropped());
+    }
+
+    /** 別スレッドから n 件入れて取り出し、順序と件数を確かめる。捨てた件数を返す */
+    private static long run(SpscRing.OverflowPolicy policy, long n) throws Exception {
+        AtomicLong dropped = new AtomicLong();
+        SpscRing<long[]> r = new SpscRing<>(16, policy, e -> e[0] % DEVICES, e -> dropped.incrementAndGet());
+        Thread producer = new Thread(() -> {
+            try {
+                for (long i = 0; i < n; i++) r.offer(new long[] { i });
+                r.offer(new long[] { END });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        long[] last = new long[DEVICES];
+        Arrays.fill(last, -1);
+        long prev = -1;
+        long got = 0;
+        while (true) {
+            long[] e = r.take();
+            if (e[0] == END) break;
+            got++;
+            if (policy == SpscRing.OverflowPolicy.LATEST_PER_DEVICE) {
+                int d = (int)(e[0] % DEVICES);
+                assertTrue(e[0] > last[d], "device " + d + ": " + e[0] + " after " + last[d]);
+                last[d] = e[0];
+            } else {
+                assertTrue(e[0] > prev, e[0] + " after " + prev);
+                prev = e[0];
+            }
+        }
+        producer.join();
+        // END は最後に入れるので捨てられない（そのあとに入るものがない）
+        assertEquals(n, got + dropped.get());
+        return dropped.get();
+    }
+}
@@ -0,0 +1,211 @@
+package jp.fjworks.ble2mqtt.adv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 解析器が壊れたフレームで例外を投げず、途中までのレポートも渡さないことを確かめる。
+ * フレームは hci_mon_hdr(6) + HCI イベントで、HciMonitor.onFrame と同じく offset 6 から解析する。
+ * 解析はプールのフレームの後ろをゴミで埋めてから行うので、フレームの外を読めば見つかる。
+ */
+class AdvParsersTest {
+    private static final int MON_HDR_SIZE = 6;
+
+    private final AdvParsers parsers = AdvParsers.getInstance();
+    private final FramePool pool = new FramePool(512, 4, 4, null);
+    private final List<String> failures = new ArrayList<>();
+
+    // 1回の parse の間だけ使う
+    private int reports;
+    private int end;
+    private String outOfRange;
+    private final AdvParser.OnParsedCallback check = this::check;
+
+    @AfterEach
+    void noFailures() {
+        if (!failures.isEmpty()) fail(failures.size() + " failures:\n" + String.join("\n", failures));
+    }
+
+    @Test
+    void corpusParsesWithReports() {
+        List<byte[]> frames = frames("/corpus/frames.hex");
+        assertFalse(frames.isEmpty());
+        for (byte[] b: frames) {
+            ParseStatus s = parse(b, null);
+            if (s != ParseStatus.OK || reports == 0) failure(b, "expected OK with reports, got " + s + " (" + reports + ")");
+        }
+    }
+
+    @Test
+    void malformedFramesReturnExpectedStatus() {
+        List<String> lines = lines("/corpus/malformed.hex");
+        assertFalse(lines.isEmpty());
+        for (String line: lines) {
+            String[] f = line.split("\\s+");
+            ParseStatus expected = ParseStatus.valueOf(f[0].toUpperCase());
+            byte[] b = hex(f[1]);
+            ParseStatus s = parse(b, null);
+            if (s != expected) failure(b, "expected " + expected + ", got " + s);
+        }
+    }
+
+    /** 回数と seed は -Dfuzz.iterations / -Dfuzz.seed で変えられる */
+    @Test
+    void mutatedFramesNeverThrowOrPartiallyReport() {
+        long iterations = Long.getLong("fuzz.iterations", 100_000);
+        long seed = Long.getLong("fuzz.seed", 1);
+        List<byte[]> corpus = frames("/corpus/frames.hex");
+        Random rnd = new Random(seed);
+        int errors = 0;
+        for (long i = 0; i < iterations && failures.size() < 20; i++) {
+            ParseStatus s = parse(mutate(corpus.get(rnd.nextInt(corpus.size())), rnd), rnd);
+            if (s != null && s.isError()) errors++;
+        }
+        // 壊し方が弱くなってエラーの経路を通らなくなっていないこと
+        assertTrue(errors > iterations / 10, "only " + errors + " of " + iterations + " mutated frames were rejected");
+    }
+
+    @Test
+    void errorsAreCountedByReason() {
+        long before = parsers.getParseErrors(ParseStatus.BAD_NUM_REPORTS);
+        parse(hex("0300000004003e020200"), null); // legacy: レポート数 0
+        assertEquals(before + 1, parsers.getParseErrors(ParseStatus.BAD_NUM_REPORTS));
+    }
+
+    /** 負荷に応じたフィルタは BLE_FILTER に重ねてかかり、外れたレポートは渡さない */
+    @Test
+    void loadFilterDropsReportsBeforeCallback() {
+        byte[] b = frames("/corpus/frames.hex").get(0);
+        long accepted = parsers.getAccepted();
+        try {
+            parsers.setLoadFilter(AdvFilter.compile("rssi 127"));
+            parse(b, null);
+            assertEquals(0, reports);
+            assertEquals(accepted, parsers.getAccepted());
+            parsers.setLoadFilter(AdvFilter.compile("rssi -127").and(AdvFilter.compile("allow pattern zz")));
+            parse(b, null);
+            assertEquals(0, reports);
+            parsers.setLoadFilter(AdvFilter.compile("allow uuid feaa").and(AdvFilter.compile("allow pattern c4:7c")));
+            parse(b, null);
+            assertEquals(0, reports);
+            parsers.setLoadFilter(AdvFilter.compile("rssi -127").and(AdvFilter.compile("allow pattern c4:7C:8d")));
+            parse(b, null);
+            assertTrue(reports > 0);
+            assertEquals(accepted + reports, parsers.getAccepted());
+        } finally {
+            parsers.setLoadFilter(null);
+        }
+    }
+
+    private void check(Adv adv) {
+        reports++;
+        AdCursor c = adv.adCursor();
+        while (c.next()) {
+            if (c.valueOffset() + c.valueLength() > end) outOfRange = "AD structure ends at " + (c.valueOffset() + c.valueLength());
+        }
+        adv.release();
+    }
+
+    /** プールのフレームにコピーして解析する。後ろはゴミで埋める。例外が出たら null */
+    private ParseStatus parse(byte[] b, Random garbage) {
+        Frame f = pool.acquire();
+        ByteBuffer buf = f.buffer();
+        for (int i = b.length; i < buf.capacity(); i++) buf.put(i, (byte)(garbage == null ? 0xA5 : garbage.nextInt(256)));
+        buf.put(0, b);
+        reports = 0;
+        end = b.length;
+        outOfRange = null;
+        ParseStatus s;
+        try {
+            s = parsers.parse(f, MON_HDR_SIZE, b.length - MON_HDR_SIZE, 0, check);
+        } catch (RuntimeException e) {
+            failure(b, "threw " + e);
+            return null;
+        } finally {
+            f.release();
+        }
+        if (s.isError() && reports > 0) failure(b, s + " but passed " + reports + " reports");
+        if (outOfRange != null) failure(b, outOfRange);
+        return s;
+    }
+
+    private void failure(byte[] frame, String why) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x: frame) sb.append(String.format("%02x", x));
+        failures.add(why + ": " + sb);
+    }
+
+    /**
+     * frame を1〜4か所ランダムに壊したもの（バイトの書き換え、長さフィールドを 0 / 0xff / ±1、切り詰め、ゴミの追加）。
+     * hci_mon_hdr の長さはフレームに合わせるので、HciMonitor.onFrame の検査は通る（壊れているのはイベントの中身）
+     */
+    static byte[] mutate(byte[] frame, Random rnd) {
+        byte[] b = frame.clone();
+        for (int k = 1 + rnd.nextInt(4); k > 0; k--) {
+            int n = b.length;
+            switch (rnd.nextInt(6)) {
+                case 0 -> { if (n > MON_HDR_SIZE) b[MON_HDR_SIZE + rnd.nextInt(n - MON_HDR_SIZE)] = (byte)rnd.nextInt(256); }
+                case 1 -> { if (n > MON_HDR_SIZE + 3) b[MON_HDR_SIZE + 3] = (byte)(rnd.nextBoolean() ? 0 : 0xff); }   // レポート数
+                case 2 -> { if (n > MON_HDR_SIZE + 1) b[MON_HDR_SIZE + 1] += rnd.nextBoolean() ? 1 : -1; }         // パラメータ長
+                case 3 -> { if (n > MON_HDR_SIZE) b[MON_HDR_SIZE + rnd.nextInt(n - MON_HDR_SIZE)] = (byte)(rnd.nextBoolean() ? 0 : 0xff); }
+                case 4 -> b = Arrays.copyOf(b, MON_HDR_SIZE + rnd.nextInt(Math.max(1, n - MON_HDR_SIZE)));
+                default -> {
+                    int extra = 1 + rnd.nextInt(32);
+                    b = Arrays.copyOf(b, Math.min(MON_HDR_SIZE + 257, n + extra));
+                    for (int i = n; i < b.length; i++) b[i] = (byte)rnd.nextInt(256);
+                }
+            }
+        }
+        int len = b.length - MON_HDR_SIZE;
+        b[4] = (byte)len;
+        b[5] = (byte)(len >>> 8);
+        return b;
+    }
+
+    private static List<byte[]> frames(String resource) {
+        List<byte[]> frames = new ArrayList<>();
+        for (String line: lines(resource)) frames.add(hex(line));
+        return frames;
+    }
+
+    /** コメントと空行を除いた行 */
+    private static List<String> lines(String resource) {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = AdvParsersTest.class.getResourceAsStream(resource);
+             BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash >= 0) line = line.substring(0, hash);
+                line = line.trim();
+                if (!line.isEmpty()) lines.add(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) b[i] = (byte)Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        return b;
+    }
+}